@@ -0,0 +1,180 @@
+package com.github.yaa110.db.benchmark;
+
+import com.github.yaa110.db.Backend;
+import com.github.yaa110.db.BackendStatement;
+import com.github.yaa110.db.JdbcBackend;
+import com.github.yaa110.db.RestorableDatabase;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory SQLite database of a single table, which stands in for the database of a device.
+ * The columns cycle through TEXT, INTEGER and REAL, so the width of the table is a parameter of the benchmarks.
+ * The untagged methods make the same changes without capturing them, as android's SQLiteDatabase does.
+ */
+final class BenchmarkDatabase {
+
+    static final String TABLE = "bench";
+    static final String COLUMN_ROWID = "_id";
+    static final String TAG = "bench";
+
+    private final JdbcBackend mBackend;
+    private final RestorableDatabase mDatabase;
+    private final String[] mColumns;
+
+    private final String mInsertSql;
+    private final String mReplaceSql;
+
+    /**
+     * Opens the database and creates its table.
+     * @param width the number of columns besides the ROWID.
+     */
+    BenchmarkDatabase(int width) {
+        try {
+            mBackend = new JdbcBackend(DriverManager.getConnection("jdbc:sqlite::memory:"));
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+
+        mColumns = new String[width];
+
+        StringBuilder create = new StringBuilder();
+        StringBuilder columns = new StringBuilder();
+        StringBuilder parameters = new StringBuilder();
+
+        create.append("CREATE TABLE ").append(TABLE).append(" (").append(COLUMN_ROWID).append(" INTEGER PRIMARY KEY");
+
+        for (int i = 0; i < width; i++) {
+            mColumns[i] = "c" + i;
+
+            create.append(", ").append(mColumns[i]).append(i % 3 == 0 ? " TEXT" : i % 3 == 1 ? " INTEGER" : " REAL");
+            columns.append(", ").append(mColumns[i]);
+            parameters.append(", ?");
+        }
+
+        create.append(")");
+        mBackend.execSQL(create.toString(), null);
+
+        mInsertSql = "INSERT INTO " + TABLE + " (" + columns.substring(2) + ") VALUES (" + parameters.substring(2) + ")";
+        mReplaceSql = "INSERT OR REPLACE INTO " + TABLE + " (" + COLUMN_ROWID + columns + ") VALUES (?" + parameters + ")";
+
+        mDatabase = new RestorableDatabase(mBackend, Collections.singletonMap(TABLE, COLUMN_ROWID));
+    }
+
+    RestorableDatabase restorable() {
+        return mDatabase;
+    }
+
+    Backend backend() {
+        return mBackend;
+    }
+
+    /**
+     * Provides the values of all columns of a row.
+     * @param seed distinguishes the values of rows.
+     * @return the values by their columns, in the order of the columns.
+     */
+    Map<String, Object> values(long seed) {
+        LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+
+        for (int i = 0; i < mColumns.length; i++) {
+            values.put(mColumns[i], value(i, seed));
+        }
+
+        return values;
+    }
+
+    /**
+     * Inserts rows whose ROWID starts at 1, without capturing them.
+     * @param rows the number of rows.
+     */
+    void populate(int rows) {
+        mBackend.beginTransaction();
+        try {
+            BackendStatement statement = mBackend.compileStatement(mReplaceSql);
+
+            try {
+                for (long rowid = 1; rowid <= rows; rowid++) {
+                    statement.bindLong(1, rowid);
+
+                    for (int i = 0; i < mColumns.length; i++) {
+                        Object value = value(i, rowid);
+
+                        if (value instanceof String) {
+                            statement.bindString(i + 2, (String) value);
+                        } else if (value instanceof Long) {
+                            statement.bindLong(i + 2, (Long) value);
+                        } else {
+                            statement.bindDouble(i + 2, (Double) value);
+                        }
+                    }
+
+                    statement.execute();
+                }
+            } finally {
+                statement.close();
+            }
+
+            mBackend.setTransactionSuccessful();
+        } finally {
+            mBackend.endTransaction();
+        }
+    }
+
+    /**
+     * Inserts a row without capturing it.
+     * @param values the values of the row.
+     */
+    void insert(Map<String, Object> values) {
+        execute(mInsertSql, values.values().toArray());
+    }
+
+    /**
+     * Inserts or replaces a row without capturing it.
+     * @param rowid the ROWID of the row.
+     * @param values the values of the row.
+     */
+    void replace(long rowid, Map<String, Object> values) {
+        Object[] bindArgs = new Object[mColumns.length + 1];
+        bindArgs[0] = rowid;
+
+        System.arraycopy(values.values().toArray(), 0, bindArgs, 1, mColumns.length);
+
+        execute(mReplaceSql, bindArgs);
+    }
+
+    /**
+     * Executes a SQL statement in its own transaction without capturing it.
+     * @param sql the SQL statement.
+     * @param bindArgs arguments to be bound to the parameters of the SQL statement.
+     */
+    void execute(String sql, Object[] bindArgs) {
+        mBackend.beginTransaction();
+        try {
+            mBackend.execSQL(sql, bindArgs);
+            mBackend.setTransactionSuccessful();
+        } finally {
+            mBackend.endTransaction();
+        }
+    }
+
+    void close() {
+        mDatabase.close();
+    }
+
+    private static Object value(int column, long seed) {
+        switch (column % 3) {
+            case 0:
+                return "value " + seed;
+            case 1:
+                return seed * 31 + column;
+            default:
+                return seed * 0.5 + column;
+        }
+    }
+
+}
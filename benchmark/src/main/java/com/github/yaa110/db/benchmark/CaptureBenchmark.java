@@ -0,0 +1,179 @@
+package com.github.yaa110.db.benchmark;
+
+import com.github.yaa110.db.BackendCursor;
+import com.github.yaa110.db.RestorableDatabase;
+
+import net.sf.jsqlparser.JSQLParserException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.yaa110.db.benchmark.BenchmarkDatabase.COLUMN_ROWID;
+import static com.github.yaa110.db.benchmark.BenchmarkDatabase.TABLE;
+import static com.github.yaa110.db.benchmark.BenchmarkDatabase.TAG;
+
+/**
+ * Measures the overhead of capturing a single-row change, against the same change made without a tag.
+ * Each tagged change is mapped to the same tag, so the undo log keeps a single tag during the benchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CaptureBenchmark {
+
+    /**
+     * The number of rows of the table, which are updated, replaced and deleted in turn.
+     */
+    private static final int ROWS = 10000;
+
+    @Param({"4", "16"})
+    public int width;
+
+    @Param({"cursor", "triggers", "shadow"})
+    public String capture;
+
+    private BenchmarkDatabase mDatabase;
+    private RestorableDatabase mRestorable;
+
+    private Map<String, Object> mValues;
+    private String mUpdateSql;
+    private long mRowid = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mDatabase = new BenchmarkDatabase(width);
+        mDatabase.populate(ROWS);
+
+        mRestorable = mDatabase.restorable();
+        mRestorable.setCaptureMode(captureMode(capture));
+
+        mValues = mDatabase.values(-1);
+        mUpdateSql = "UPDATE " + TABLE + " SET c0 = ? WHERE " + COLUMN_ROWID + " = ?";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Benchmark
+    public long insertTagged() {
+        return mRestorable.insertWithOnConflict(TABLE, null, mValues, RestorableDatabase.CONFLICT_NONE, TAG);
+    }
+
+    @Benchmark
+    public void insertUntagged() {
+        mDatabase.insert(mValues);
+    }
+
+    @Benchmark
+    public long replaceTagged() {
+        long rowid = nextRow();
+        Map<String, Object> values = mDatabase.values(rowid);
+        values.put(COLUMN_ROWID, rowid);
+
+        return mRestorable.insertWithOnConflict(TABLE, null, values, RestorableDatabase.CONFLICT_REPLACE, TAG);
+    }
+
+    @Benchmark
+    public void replaceUntagged() {
+        long rowid = nextRow();
+        mDatabase.replace(rowid, mDatabase.values(rowid));
+    }
+
+    @Benchmark
+    public int updateTagged() {
+        long rowid = nextRow();
+
+        return mRestorable.updateWithOnConflict(
+                TABLE,
+                Collections.<String, Object>singletonMap("c0", "updated"),
+                COLUMN_ROWID + " = ?",
+                new String[] {Long.toString(rowid)},
+                RestorableDatabase.CONFLICT_NONE,
+                TAG
+        );
+    }
+
+    @Benchmark
+    public void updateUntagged() {
+        mDatabase.execute(mUpdateSql, new Object[] {"updated", nextRow()});
+    }
+
+    /**
+     * Deletes a row and inserts it back without a tag, so the table keeps its rows.
+     */
+    @Benchmark
+    public int deleteTagged() {
+        long rowid = nextRow();
+        int rows = mRestorable.delete(TABLE, COLUMN_ROWID + " = ?", new String[] {Long.toString(rowid)}, TAG);
+        mDatabase.replace(rowid, mValues);
+
+        return rows;
+    }
+
+    @Benchmark
+    public void deleteUntagged() {
+        long rowid = nextRow();
+        mDatabase.execute("DELETE FROM " + TABLE + " WHERE " + COLUMN_ROWID + " = ?", new Object[] {rowid});
+        mDatabase.replace(rowid, mValues);
+    }
+
+    /**
+     * The SQL query is classified once and then read from the cache of statements.
+     */
+    @Benchmark
+    public void rawQueryTagged() throws JSQLParserException {
+        BackendCursor cursor = mRestorable.executeRaw(
+                mUpdateSql,
+                new String[] {"raw", Long.toString(nextRow())},
+                TAG
+        );
+
+        cursor.close();
+    }
+
+    @Benchmark
+    public void rawQueryUntagged() {
+        mDatabase.execute(mUpdateSql, new Object[] {"raw", nextRow()});
+    }
+
+    /**
+     * Moves to the next row of the table, so the changes do not hit a single page.
+     * @return the ROWID of the row.
+     */
+    private long nextRow() {
+        mRowid = mRowid % ROWS + 1;
+        return mRowid;
+    }
+
+    private static int captureMode(String capture) {
+        switch (capture) {
+            case "triggers":
+                return RestorableDatabase.CAPTURE_TRIGGERS;
+            case "shadow":
+                return RestorableDatabase.CAPTURE_SHADOW;
+            default:
+                return RestorableDatabase.CAPTURE_CURSOR;
+        }
+    }
+
+}
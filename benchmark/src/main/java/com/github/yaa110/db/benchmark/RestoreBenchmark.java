@@ -0,0 +1,132 @@
+package com.github.yaa110.db.benchmark;
+
+import com.github.yaa110.db.RestorableDatabase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.yaa110.db.benchmark.BenchmarkDatabase.COLUMN_ROWID;
+import static com.github.yaa110.db.benchmark.BenchmarkDatabase.TABLE;
+import static com.github.yaa110.db.benchmark.BenchmarkDatabase.TAG;
+
+/**
+ * Measures the restore of the captured rows across row counts and table widths.
+ * The rows are captured again before each invocation, which is not measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RestoreBenchmark {
+
+    /**
+     * The number of tags among which the rows are captured for restoreAll.
+     */
+    private static final int TAGS = 10;
+
+    @Param({"1", "100", "10000"})
+    public int rows;
+
+    @Param({"4", "16"})
+    public int width;
+
+    private BenchmarkDatabase mDatabase;
+    private RestorableDatabase mRestorable;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mDatabase = new BenchmarkDatabase(width);
+        mDatabase.populate(rows);
+
+        mRestorable = mDatabase.restorable();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    /**
+     * Deletes the rows with a tag, so restore and restoreAll insert them back.
+     */
+    @State(Scope.Thread)
+    public static class DeletedRows {
+
+        @Setup(Level.Invocation)
+        public void capture(RestoreBenchmark benchmark) {
+            benchmark.mRestorable.delete(TABLE, null, null, TAG);
+        }
+    }
+
+    /**
+     * Updates all columns of the rows with a tag, so restore updates them back.
+     */
+    @State(Scope.Thread)
+    public static class UpdatedRows {
+
+        @Setup(Level.Invocation)
+        public void capture(RestoreBenchmark benchmark) {
+            benchmark.mRestorable.updateWithOnConflict(
+                    TABLE,
+                    benchmark.mDatabase.values(0),
+                    null,
+                    null,
+                    RestorableDatabase.CONFLICT_NONE,
+                    TAG
+            );
+        }
+    }
+
+    /**
+     * Deletes the rows in ranges of ROWID, each with its own tag.
+     */
+    @State(Scope.Thread)
+    public static class DeletedTags {
+
+        @Setup(Level.Invocation)
+        public void capture(RestoreBenchmark benchmark) {
+            int size = Math.max(1, benchmark.rows / TAGS);
+
+            for (int tag = 0; tag * size < benchmark.rows; tag++) {
+                benchmark.mRestorable.delete(
+                        TABLE,
+                        COLUMN_ROWID + " > ? AND " + COLUMN_ROWID + " <= ?",
+                        new String[] {Integer.toString(tag * size), Integer.toString((tag + 1) * size)},
+                        TAG + tag
+                );
+            }
+        }
+    }
+
+    @Benchmark
+    public int restoreDeleted(DeletedRows deleted) {
+        return mRestorable.restore(TAG);
+    }
+
+    @Benchmark
+    public int restoreUpdated(UpdatedRows updated) {
+        return mRestorable.restore(Collections.singleton(TAG));
+    }
+
+    @Benchmark
+    public int restoreAll(DeletedTags deleted) {
+        return mRestorable.restoreAll();
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.github.yaa110.db;
+
+/**
+ * The storage of a SQLite database on which the {@link RestorableDatabase} captures and restores changes.
+ * The implementations wrap a connection of a platform, e.g. the SQLiteDatabase of android or a JDBC connection,
+ * and throw the unchecked exceptions of their platform if a SQL statement fails.
+ */
+public interface Backend {
+
+    /**
+     * Begins a transaction in IMMEDIATE mode, so the write lock of the database is held from its beginning.
+     * Transactions may be nested; the outermost transaction is only committed
+     * if every nested transaction is marked as successful.
+     */
+    void beginTransaction();
+
+    /**
+     * Marks the current transaction as successful.
+     */
+    void setTransactionSuccessful();
+
+    /**
+     * Ends the current transaction, which is rolled back if it is not marked as successful.
+     */
+    void endTransaction();
+
+    /**
+     * Opens a savepoint in the transaction of the current thread.
+     * @param name the name of the savepoint, which is quoted by the implementation.
+     */
+    void savepoint(String name);
+
+    /**
+     * Rolls back the changes made since the savepoint was opened, which stays open.
+     * @param name the name of the savepoint.
+     */
+    void rollbackToSavepoint(String name);
+
+    /**
+     * Releases the savepoint and the savepoints opened after it, keeping their changes in the transaction.
+     * @param name the name of the savepoint.
+     */
+    void releaseSavepoint(String name);
+
+    /**
+     * Executes a single SQL statement which returns no rows.
+     * @param sql the SQL statement.
+     * @param bindArgs arguments to be bound to the parameters of the SQL statement, or null.
+     */
+    void execSQL(String sql, Object[] bindArgs);
+
+    /**
+     * Runs a SQL query.
+     * The rows may be read from the database as the cursor moves, so the cursor must be closed by the thread
+     * which runs the query, and the database may be held by that thread until the cursor is closed.
+     * @param sql the SQL query.
+     * @param selectionArgs arguments to be bound to the parameters of the SQL query, or null.
+     * @return the cursor of the result, positioned before the first row.
+     */
+    BackendCursor query(String sql, String[] selectionArgs);
+
+    /**
+     * Compiles a SQL statement to be executed several times.
+     * @param sql the SQL statement.
+     * @return the compiled statement, to be closed once it is not used anymore.
+     */
+    BackendStatement compileStatement(String sql);
+
+    /**
+     * Closes the database.
+     */
+    void close();
+
+}
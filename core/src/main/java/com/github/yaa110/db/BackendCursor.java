@@ -0,0 +1,69 @@
+package com.github.yaa110.db;
+
+/**
+ * The rows of a SQL query run by a {@link Backend}.
+ */
+public interface BackendCursor {
+
+    /**
+     * The type of columns whose type is not provided by the platform, which are read as strings.
+     */
+    int TYPE_UNKNOWN = -1;
+
+    int TYPE_NULL = 0;
+    int TYPE_INTEGER = 1;
+    int TYPE_FLOAT = 2;
+    int TYPE_STRING = 3;
+    int TYPE_BLOB = 4;
+
+    /**
+     * Provides the number of rows.
+     * @return the number of rows.
+     */
+    int getCount();
+
+    int getColumnCount();
+
+    String[] getColumnNames();
+
+    /**
+     * Provides the index of a column.
+     * @param columnName the name of the column.
+     * @return the index of the column, or -1 if the column does not exist.
+     */
+    int getColumnIndex(String columnName);
+
+    /**
+     * Moves the cursor to the first row.
+     * @return true if the cursor is positioned at a row; false if the result is empty.
+     */
+    boolean moveToFirst();
+
+    /**
+     * Moves the cursor to the next row.
+     * @return true if the cursor is positioned at a row; false if it is after the last row.
+     */
+    boolean moveToNext();
+
+    /**
+     * Provides the type of a column of the current row.
+     * @param column the index of the column.
+     * @return one of TYPE_NULL, TYPE_INTEGER, TYPE_FLOAT, TYPE_STRING, TYPE_BLOB or TYPE_UNKNOWN.
+     */
+    int getType(int column);
+
+    boolean isNull(int column);
+
+    int getInt(int column);
+
+    long getLong(int column);
+
+    double getDouble(int column);
+
+    String getString(int column);
+
+    byte[] getBlob(int column);
+
+    void close();
+
+}
@@ -0,0 +1,43 @@
+package com.github.yaa110.db;
+
+/**
+ * A SQL statement compiled by a {@link Backend}, whose parameters are bound before each execution.
+ * The indexes of the parameters start at 1.
+ */
+public interface BackendStatement {
+
+    void bindNull(int index);
+
+    void bindLong(int index, long value);
+
+    void bindDouble(int index, double value);
+
+    void bindString(int index, String value);
+
+    void bindBlob(int index, byte[] value);
+
+    /**
+     * Binds null to all parameters.
+     */
+    void clearBindings();
+
+    /**
+     * Executes the statement, which returns no rows.
+     */
+    void execute();
+
+    /**
+     * Executes an INSERT statement.
+     * @return the ROWID of the inserted row, or -1 if no row is inserted.
+     */
+    long executeInsert();
+
+    /**
+     * Executes an UPDATE or DELETE statement.
+     * @return the number of changed rows.
+     */
+    int executeUpdateDelete();
+
+    void close();
+
+}
@@ -0,0 +1,3009 @@
+package com.github.yaa110.db;
+
+import net.sf.jsqlparser.JSQLParserException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Captures and restores the changes of a SQLite database stored by a {@link Backend}.
+ * This class makes it possible to undo changes made after execution of SQL commands on any platform,
+ * e.g. android or the JVM.
+ * The class is thread-safe: the restoring queries are captured in the same transaction as the change they undo.
+ */
+@SuppressWarnings("UnusedDeclaration")
+public class RestorableDatabase {
+
+    /**
+     * The default heap budget of the journal in bytes.
+     */
+    public static final long DEFAULT_HEAP_BUDGET = 1024 * 1024;
+
+    /**
+     * Disables a limit of the undo log.
+     */
+    public static final int NO_LIMIT = 0;
+
+    /**
+     * Evicts the tags in the order of their capture.
+     */
+    public static final int EVICTION_OLDEST_FIRST = 0;
+
+    /**
+     * Evicts the least recently captured or accessed tags first.
+     */
+    public static final int EVICTION_LEAST_RECENTLY_USED = 1;
+
+    /**
+     * Evicts the tags which expire soonest first, and the tags without time to live in the order of their capture.
+     */
+    public static final int EVICTION_SOONEST_EXPIRING = 2;
+
+    /**
+     * The tag is evicted since a limit of the undo log is exceeded.
+     */
+    public static final int EVICTED_BY_LIMIT = 0;
+
+    /**
+     * The tag is evicted since its time to live is elapsed.
+     */
+    public static final int EVICTED_BY_TTL = 1;
+
+    /**
+     * The tag is evicted by {@link #trimHeap(int) trimHeap}.
+     */
+    public static final int EVICTED_BY_MEMORY_PRESSURE = 2;
+
+    /**
+     * The default number of affected rows read by a single query while capturing.
+     */
+    public static final int DEFAULT_CAPTURE_CHUNK_SIZE = 1000;
+
+    /**
+     * The default number of restoring queries executed in a single transaction by the asynchronous restores.
+     */
+    public static final int DEFAULT_RESTORE_SLICE_SIZE = 500;
+
+    /**
+     * Captures the affected rows by reading them through a cursor before each change.
+     */
+    public static final int CAPTURE_CURSOR = 0;
+
+    /**
+     * Captures the affected rows inside SQLite by temporary triggers on the captured tables.
+     */
+    public static final int CAPTURE_TRIGGERS = 1;
+
+    /**
+     * Captures the rows affected by updates and deletions inside SQLite by copying them into shadow tables,
+     * so each capture is restored by a single set-based query.
+     */
+    public static final int CAPTURE_SHADOW = 2;
+
+    /**
+     * The conflict algorithms of insertions and updates, which have the values of android's SQLiteDatabase.
+     */
+    public static final int CONFLICT_NONE = 0;
+    public static final int CONFLICT_ROLLBACK = 1;
+    public static final int CONFLICT_ABORT = 2;
+    public static final int CONFLICT_FAIL = 3;
+    public static final int CONFLICT_IGNORE = 4;
+    public static final int CONFLICT_REPLACE = 5;
+
+    /**
+     * Only evicts the expired tags.
+     */
+    public static final int TRIM_EXPIRED = 0;
+
+    /**
+     * Sheds half of the restoring queries kept in the heap.
+     */
+    public static final int TRIM_HALF = 1;
+
+    /**
+     * Sheds all restoring queries kept in the heap.
+     */
+    public static final int TRIM_ALL = 2;
+
+    /**
+     * The change captured by insertWithOnConflict, insertAll or replaceAll.
+     */
+    public static final int OPERATION_INSERT = 0;
+
+    /**
+     * The change captured by updateWithOnConflict.
+     */
+    public static final int OPERATION_UPDATE = 1;
+
+    /**
+     * The change captured by delete.
+     */
+    public static final int OPERATION_DELETE = 2;
+
+    /**
+     * The change captured by executeRaw or rawQuery.
+     */
+    public static final int OPERATION_RAW_QUERY = 3;
+
+    /**
+     * The change captured by execSQL.
+     */
+    public static final int OPERATION_EXEC_SQL = 4;
+
+    /**
+     * Interface definition for a callback to be invoked when a tag is evicted from the undo log.
+     */
+    public interface OnTagEvictedListener {
+
+        /**
+         * Called when the restoring queries of a tag are evicted, so the tag is not restorable anymore.
+         * @param tag the evicted tag.
+         * @param reason the reason of the eviction, one of EVICTED_BY_LIMIT, EVICTED_BY_TTL or EVICTED_BY_MEMORY_PRESSURE.
+         */
+        void onTagEvicted(String tag, int reason);
+    }
+
+    /**
+     * Interface definition for a callback to be invoked while tags are restored asynchronously.
+     */
+    public interface OnRestoreProgressListener {
+
+        /**
+         * Called on the thread of the executor once a slice of restoring queries is committed.
+         * @param restoredQueries the number of restoring queries executed so far.
+         * @param totalQueries the number of restoring queries of all restored tags.
+         */
+        void onRestoreProgress(int restoredQueries, int totalQueries);
+    }
+
+    /**
+     * Interface definition for callbacks to be invoked with the costs of captures and restores, e.g. {@link UndoMetrics}.
+     * The callbacks are invoked on the calling thread after the transaction is ended, so they must return quickly.
+     */
+    public interface OnMetricsListener {
+
+        /**
+         * Called once a change is captured and committed.
+         * @param operation one of the OPERATION constants.
+         * @param tag the tag mapped to the restoring queries.
+         * @param capturedRows the number of captured restoring queries.
+         * @param captureNanos the time spent reading the affected rows, in nanoseconds.
+         * @param totalNanos the time spent by the whole change, including the capture, in nanoseconds.
+         * @param logBytes the estimated size of the undo log in bytes.
+         */
+        void onCapture(int operation, String tag, int capturedRows, long captureNanos, long totalNanos, long logBytes);
+
+        /**
+         * Called once the SQL query of executeRaw or rawQuery is classified.
+         * @param sql the SQL query.
+         * @param parseNanos the time spent classifying and parsing the SQL query, in nanoseconds.
+         * @param cached true if the metadata of the SQL query is read from the cache of statements.
+         */
+        void onParse(String sql, long parseNanos, boolean cached);
+
+        /**
+         * Called once a restore is committed, or once all slices of an asynchronous restore are committed.
+         * @param restoredTags the number of restored tags.
+         * @param restoredQueries the number of executed restoring queries.
+         * @param restoreNanos the time spent by the restore, in nanoseconds.
+         * @param logBytes the estimated size of the undo log in bytes.
+         */
+        void onRestore(int restoredTags, int restoredQueries, long restoreNanos, long logBytes);
+    }
+
+    /**
+     * Interface definition for the changes made within a savepoint tag by {@link #runInSavepoint(String, SavepointBody) runInSavepoint}.
+     */
+    public interface SavepointBody<T> {
+
+        /**
+         * Called on the calling thread while the savepoint tag is open.
+         * The changes are kept once this method returns, unless the savepoint tag is restored by this method.
+         * @param tag the open savepoint tag.
+         * @return the result of the changes.
+         */
+        T run(String tag);
+    }
+
+    /**
+     * The SQL query of {@link #executeRaw(String, String[], String, RawQuery) executeRaw},
+     * which is applied by the platform so its result is returned to the caller.
+     */
+    interface RawQuery<T> {
+
+        /**
+         * Applies the SQL query in the transaction of the capture.
+         * @return the result of the SQL query.
+         */
+        T apply();
+    }
+
+    /**
+     * The signal of the platform which stops an asynchronous restore between slices.
+     */
+    interface Cancellation {
+
+        /**
+         * Throws the exception of the platform if the restore is cancelled.
+         */
+        void throwIfCanceled();
+    }
+
+    /**
+     * The number of rows of insertAll whose replaced rows are read by a single query,
+     * within the limit of 999 parameters of a SQL query.
+     */
+    private static final int BATCH_CHUNK_SIZE = 500;
+
+    /**
+     * The alias of the ROWID which pages the chunks of captured rows.
+     */
+    private static final String COLUMN_CHUNK_ROWID = "restorable_chunk_rowid";
+
+    /**
+     * The savepoint which makes the insertion of rows under a savepoint tag atomic.
+     */
+    private static final String SAVEPOINT_BATCH = "restorable_batch";
+
+    /**
+     * The conflict clauses of the conflict algorithms, in the order of their values.
+     */
+    private static final String[] CONFLICT_VALUES = new String[] {
+            "", " OR ROLLBACK", " OR ABORT", " OR FAIL", " OR IGNORE", " OR REPLACE"
+    };
+
+    private final Backend mBackend;
+
+    /**
+     * The undo log to map a tag to its restoring queries and their parameters.
+     */
+    private final UndoLog mUndoLog;
+
+    /**
+     * Caches the columns and the ROWID column of each table for the current schema version.
+     */
+    private final TableInfoCache mTables;
+
+    /**
+     * Caches the restoring query templates and their compiled statements.
+     */
+    private final RestoringQueryCache mQueryCache = new RestoringQueryCache();
+
+    /**
+     * Caches the metadata of the SQL queries of executeRaw methods.
+     */
+    private final SqlStatementCache mStatementCache = new SqlStatementCache();
+
+    /**
+     * The triggers which capture the changed rows inside SQLite.
+     */
+    private final UndoTriggers mTriggers;
+
+    /**
+     * The shadow tables which keep the rows captured by {@link #CAPTURE_SHADOW} inside SQLite.
+     */
+    private final UndoShadows mShadows;
+
+    private volatile int mCaptureMode = CAPTURE_CURSOR;
+
+    private volatile int mCaptureChunkSize = DEFAULT_CAPTURE_CHUNK_SIZE;
+
+    private volatile int mRestoreSliceSize = DEFAULT_RESTORE_SLICE_SIZE;
+
+    private volatile boolean mRedoEnabled = false;
+    private volatile boolean mCoalescingEnabled = false;
+
+    /**
+     * The callbacks of the costs, or null if no time is measured.
+     */
+    private volatile OnMetricsListener mMetricsListener;
+
+    /**
+     * The thread which holds the transaction of the open savepoint tags, or null if no savepoint tag is open.
+     */
+    private volatile Thread mSavepointThread = null;
+
+    /**
+     * The open savepoint tags in the order of their opening, only accessed by the thread which holds them.
+     */
+    private final ArrayList<Savepoint> mSavepoints = new ArrayList<>();
+
+    /**
+     * The number of changed rows which are rolled back while the savepoint tags are open.
+     */
+    private long mUndoneChanges = 0;
+
+    /**
+     * Constructs a new instance of the RestorableDatabase which captures all tables of the database.
+     * The columns, the primary key and the ROWID column of each table are discovered by PRAGMA table_info.
+     * @param backend the storage of the database.
+     * @throws IllegalArgumentException if the backend is null.
+     * @see #RestorableDatabase(Backend, Map)
+     */
+    public RestorableDatabase(Backend backend) {
+        this(backend, null);
+    }
+
+    /**
+     * Constructs a new instance of the RestorableDatabase.
+     * If the database contains a journal, it is opened with the default heap budget,
+     * so the tags stored by previous instances are restorable.
+     * The columns and the primary key of each table are read by PRAGMA table_info once for each schema version,
+     * and a table without a ROWID column in the map is identified by its INTEGER PRIMARY KEY or its hidden ROWID.
+     * The rows of a table WITHOUT ROWID are identified by their primary key, which may span several columns.
+     * @param backend the storage of the database.
+     * @param tableRowid maps the table name to its ROWID column name, where a null column is discovered,
+     *                   or null to capture all tables of the database.
+     * @throws IllegalArgumentException if the backend is null.
+     */
+    public RestorableDatabase(Backend backend, Map<String, String> tableRowid) {
+        if (backend == null)
+            throw new IllegalArgumentException("The backend must not be null.");
+
+        mBackend = backend;
+        mTables = new TableInfoCache(tableRowid);
+        mShadows = new UndoShadows(backend, mQueryCache, mTables);
+        mUndoLog = new UndoLog(mQueryCache, mShadows);
+        mTriggers = new UndoTriggers(mTables);
+
+        openExistingJournal();
+    }
+
+    /**
+     * Opens the journal with the default heap budget if the database contains a journal,
+     * and deletes the shadow rows of the captures which are not in the journal.
+     */
+    private void openExistingJournal() {
+        Backend db = beginImmediateTransaction();
+        try {
+            if (UndoJournal.exists(db))
+                mUndoLog.openJournal(new UndoJournal(db, mQueryCache), DEFAULT_HEAP_BUDGET);
+
+            mUndoLog.retainShadows();
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Begins a transaction in IMMEDIATE mode, so the write lock of the database is held from its beginning.
+     * The restoring queries are captured and the change is made in such a transaction,
+     * so no other writer can change the affected rows in between.
+     * The lock of the database is always acquired before the monitor of the undo log.
+     * @return the database in which the transaction is begun.
+     */
+    private Backend beginImmediateTransaction() {
+        if (mSavepointThread == Thread.currentThread())
+            throw new IllegalStateException("The thread holds open savepoint tags.");
+
+        mBackend.beginTransaction();
+        return mBackend;
+    }
+
+    /**
+     * Provides the storage of the database.
+     * @return the backend.
+     */
+    public Backend getBackend() {
+        return mBackend;
+    }
+
+    /**
+     * Checks if the hash table contains the tag.
+     * The open savepoint tags of the current thread are contained as well.
+     * @param tag possible tag of restoring query.
+     * @return true if the hash table contains the tag; false otherwise.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public boolean containsTag(String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        if (isSavepoint(tag))
+            return true;
+
+        mUndoLog.touch(tag);
+        return mUndoLog.contains(tag);
+    }
+
+    /**
+     * Provides a Set view of the tags contained in the hash table.
+     * @return a Set view of the tags contained in the hash table.
+     */
+    public Set<String> tagSet() {
+        return mUndoLog.tags();
+    }
+
+    /**
+     * Provides the tags which start with the prefix in the order of their capture, e.g. the tags of an editing session.
+     * The tags are found in a sorted index, so the cost depends on the number of matches rather than all tags.
+     * @param prefix the prefix of the tags, e.g. "session:42:".
+     * @return a new Set of the tags which start with the prefix.
+     * @throws IllegalArgumentException if the prefix is null.
+     */
+    public Set<String> tagsWithPrefix(String prefix) {
+        if (prefix == null)
+            throw new IllegalArgumentException("The prefix must not be null.");
+
+        return mUndoLog.tagsWithPrefix(prefix);
+    }
+
+    /**
+     * Provides the query to which the tag is mapped.
+     * @param tag possible tag of restoring queries.
+     * @throws IllegalArgumentException if the tag is null.
+     * @return the queries to which the tag is mapped, or null if the hash table contains no mapping for the tag.
+     */
+    public ArrayList<String> getQueries(String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        mUndoLog.touch(tag);
+        return mUndoLog.queries(tag);
+    }
+
+    /**
+     * Provides the hash table.
+     * The hash table is materialized from the undo log, so changing it has no effect on the restoring queries.
+     * @return the hash table.
+     */
+    public Hashtable<String, ArrayList<String>> getTagQueryTable() {
+        return mUndoLog.queryTable();
+    }
+
+    /**
+     * Provides the parameters hash table.
+     * The hash table is materialized from the undo log, so changing it has no effect on the restoring queries.
+     * @return the parameters hash table.
+     */
+    public Hashtable<String, ArrayList<String[]>> getTagQueryParameters() {
+        return mUndoLog.parameterTable();
+    }
+
+    /**
+     * Changes the hash table.
+     * @param tagQueryTable the substitute hash table.
+     */
+    public void setTagQueryTable(Hashtable<String, ArrayList<String>> tagQueryTable) {
+        Backend db = beginImmediateTransaction();
+        try {
+            mUndoLog.replace(tagQueryTable, mUndoLog.parameterTable());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Changes the parameters hash table.
+     * @param tagQueryParameters the substitute hash table.
+     */
+    public void setTagQueryParameters(Hashtable<String, ArrayList<String[]>> tagQueryParameters) {
+        Backend db = beginImmediateTransaction();
+        try {
+            mUndoLog.replace(mUndoLog.queryTable(), tagQueryParameters);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Writes the undo log to the channel in a versioned binary format, e.g. to survive the death of the process.
+     * The table and column names and the query templates are written once, and the ROWIDs and values as varints,
+     * so no SQL query of an entry is materialized. The spilled captures are streamed from the journal.
+     * The captures which are expired or restored in slices are not written.
+     * @param channel the channel to be written, e.g. a FileChannel.
+     * @return the number of written bytes.
+     * @throws IllegalArgumentException if the channel is null.
+     * @throws IOException if writing to the channel fails.
+     */
+    public long exportUndoLog(WritableByteChannel channel) throws IOException {
+        if (channel == null)
+            throw new IllegalArgumentException("The channel must not be null.");
+
+        Backend db = beginImmediateTransaction();
+        try {
+            long bytes = mUndoLog.writeArchive(new UndoArchive(mQueryCache, channel));
+            db.setTransactionSuccessful();
+            return bytes;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces the undo log with the undo log written by {@link #exportUndoLog(WritableByteChannel) exportUndoLog}.
+     * The entries of each capture are kept encoded until the capture is restored, unless the journal is open and stores them.
+     * The time to live of the imported tags starts when they are imported.
+     * @param channel the channel to be read, e.g. a FileChannel.
+     * @return the number of imported tags.
+     * @throws IllegalArgumentException if the channel is null.
+     * @throws IOException if reading from the channel fails, or the data is not an undo log of a supported version.
+     */
+    public int importUndoLog(ReadableByteChannel channel) throws IOException {
+        if (channel == null)
+            throw new IllegalArgumentException("The channel must not be null.");
+
+        ByteBuffer buffer = ByteBuffer.allocate(UndoArchive.BUFFER_SIZE);
+        buffer.flip();
+
+        return importUndoLog(new UndoArchive(mQueryCache, buffer, channel));
+    }
+
+    /**
+     * Replaces the undo log with the undo log written by {@link #exportUndoLog(WritableByteChannel) exportUndoLog},
+     * e.g. of a file mapped by FileChannel.map.
+     * The entries of each capture are kept encoded until the capture is restored, unless the journal is open and stores them.
+     * The time to live of the imported tags starts when they are imported.
+     * @param buffer the buffer positioned at the beginning of the undo log, whose position is advanced past the undo log.
+     * @return the number of imported tags.
+     * @throws IllegalArgumentException if the buffer is null.
+     * @throws IOException if the data is not an undo log of a supported version.
+     */
+    public int importUndoLog(ByteBuffer buffer) throws IOException {
+        if (buffer == null)
+            throw new IllegalArgumentException("The buffer must not be null.");
+
+        return importUndoLog(new UndoArchive(mQueryCache, buffer, null));
+    }
+
+    private int importUndoLog(UndoArchive archive) throws IOException {
+        Backend db = beginImmediateTransaction();
+        try {
+            int tags = mUndoLog.readArchive(archive);
+            db.setTransactionSuccessful();
+            return tags;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Estimates the heap size of the restoring queries to which the tag is mapped.
+     * @param tag possible tag of restoring queries.
+     * @return the estimated size in bytes, or 0 if the undo log contains no mapping for the tag.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public long estimateSize(String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        return mUndoLog.estimateBytes(tag);
+    }
+
+    /**
+     * Estimates the heap size of all restoring queries.
+     * @return the estimated size in bytes.
+     */
+    public long estimateSize() {
+        return mUndoLog.estimateBytes();
+    }
+
+    /**
+     * Stores the restoring queries in a journal table of the database with the default heap budget.
+     * @see #enableJournal(long)
+     */
+    public void enableJournal() {
+        enableJournal(DEFAULT_HEAP_BUDGET);
+    }
+
+    /**
+     * Stores the restoring queries in a journal table of the database.
+     * Only the most recent restoring queries are kept in the heap until the heap budget is exceeded,
+     * the others are read from the journal while restoring.
+     * The tags survive restarts, since a new instance opens the journal of the database if it exists.
+     * If the journal is already enabled, only the heap budget is changed.
+     * @param heapBudget the maximum estimated heap size of restoring queries, in bytes.
+     * @throws IllegalArgumentException if the heap budget is negative.
+     */
+    public void enableJournal(long heapBudget) {
+        if (heapBudget < 0)
+            throw new IllegalArgumentException("The heap budget must not be negative.");
+
+        Backend db = beginImmediateTransaction();
+        try {
+            mUndoLog.openJournal(new UndoJournal(db, mQueryCache), heapBudget);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Loads all restoring queries of the journal into the heap and drops the journal table.
+     */
+    public void disableJournal() {
+        Backend db = beginImmediateTransaction();
+        try {
+            mUndoLog.closeJournal();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Checks if the restoring queries are stored in a journal table.
+     * @return true if the journal is enabled; false otherwise.
+     */
+    public boolean isJournalEnabled() {
+        return mUndoLog.journal() != null;
+    }
+
+    /**
+     * Captures the rows changed by each restore, so the restored tags are redoable by {@link #redo(String) redo}.
+     * The changed rows are captured by the triggers of {@link #CAPTURE_TRIGGERS} while the restoring queries are executed,
+     * so no cursor reads them, and the redo of a tag is kept in the heap until the tag is redone or captured again.
+     */
+    public void enableRedo() {
+        mRedoEnabled = true;
+    }
+
+    /**
+     * Stops capturing the rows changed by restores, and removes the redo of the restored tags.
+     * The triggers are dropped unless the capture mode is {@link #CAPTURE_TRIGGERS}.
+     */
+    public void disableRedo() {
+        Backend db = beginImmediateTransaction();
+        try {
+            mRedoEnabled = false;
+            mUndoLog.clearRedo();
+
+            if (mCaptureMode != CAPTURE_TRIGGERS)
+                mTriggers.uninstall(db);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Checks if the restores capture the rows they change.
+     * @return true if the redo is enabled; false otherwise.
+     */
+    public boolean isRedoEnabled() {
+        return mRedoEnabled;
+    }
+
+    /**
+     * Coalesces the restoring queries of the captures restored in a single transaction, e.g. by {@link #restoreAll() restoreAll},
+     * so only the queries which determine the final state of each row are executed.
+     * A row which is changed by many captures is restored by the queries of its earliest captures,
+     * e.g. a row which is inserted and then updated many times is only deleted,
+     * and a row which the captures insert and then delete is not restored at all.
+     * The coalesced queries are grouped by their table, and the queries of a row are executed in the order of the restore,
+     * but the rows are not restored through their intermediate states,
+     * so the tables must not have other unique constraints, foreign keys or triggers which depend on those states.
+     * The restores in slices and the restores while the redo is enabled are not coalesced.
+     */
+    public void enableCoalescing() {
+        mCoalescingEnabled = true;
+    }
+
+    /**
+     * Executes every restoring query of the restored captures, which is the default.
+     */
+    public void disableCoalescing() {
+        mCoalescingEnabled = false;
+    }
+
+    /**
+     * Checks if the restoring queries of the captures restored in a single transaction are coalesced.
+     * @return true if the coalescing is enabled; false otherwise.
+     */
+    public boolean isCoalescingEnabled() {
+        return mCoalescingEnabled;
+    }
+
+    /**
+     * Limits the undo log. Once a limit is exceeded, tags are evicted by the eviction policy.
+     * @param maxTags the maximum number of tags, or {@link #NO_LIMIT}.
+     * @param maxRows the maximum number of captured rows of all tags, or {@link #NO_LIMIT}.
+     * @param maxBytes the maximum heap size of all tags as estimated by {@link #estimateSize() estimateSize}, or {@link #NO_LIMIT}.
+     * @throws IllegalArgumentException if any limit is negative.
+     */
+    public void setLimits(int maxTags, long maxRows, long maxBytes) {
+        if (maxTags < 0 || maxRows < 0 || maxBytes < 0)
+            throw new IllegalArgumentException("The limits must not be negative.");
+
+        Backend db = beginImmediateTransaction();
+        try {
+            mUndoLog.setLimits(maxTags, maxRows, maxBytes);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Changes the order in which tags are evicted once a limit is exceeded.
+     * The default policy is {@link #EVICTION_OLDEST_FIRST}.
+     * @param policy one of EVICTION_OLDEST_FIRST, EVICTION_LEAST_RECENTLY_USED or EVICTION_SOONEST_EXPIRING.
+     * @throws IllegalArgumentException if the policy is unknown.
+     */
+    public void setEvictionPolicy(int policy) {
+        if (policy != EVICTION_OLDEST_FIRST &&
+                policy != EVICTION_LEAST_RECENTLY_USED &&
+                policy != EVICTION_SOONEST_EXPIRING)
+            throw new IllegalArgumentException("The eviction policy is unknown.");
+
+        mUndoLog.setEvictionPolicy(policy);
+    }
+
+    /**
+     * Changes the time to live of the tags captured later.
+     * @param ttl the time to live in milliseconds, or 0 if the tags do not expire.
+     * @throws IllegalArgumentException if the time to live is negative.
+     */
+    public void setDefaultTtl(long ttl) {
+        if (ttl < 0)
+            throw new IllegalArgumentException("The time to live must not be negative.");
+
+        mUndoLog.setDefaultTtl(ttl);
+    }
+
+    /**
+     * Changes the time to live of the tag, measured from the capture of its restoring queries.
+     * The tag is evicted once its time to live is elapsed.
+     * @param tag the tag mapped to restoring queries.
+     * @param ttl the time to live in milliseconds, or 0 if the tag does not expire.
+     * @return true if the undo log contains the tag; false otherwise.
+     * @throws IllegalArgumentException if the tag is null or the time to live is negative.
+     */
+    public boolean setTagTtl(String tag, long ttl) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        if (ttl < 0)
+            throw new IllegalArgumentException("The time to live must not be negative.");
+
+        Backend db = beginImmediateTransaction();
+        try {
+            boolean contained = mUndoLog.setTtl(tag, ttl);
+            db.setTransactionSuccessful();
+            return contained;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Registers a callback to be invoked when a tag is evicted.
+     * @param listener the callback, or null to remove the callback.
+     */
+    public void setOnTagEvictedListener(OnTagEvictedListener listener) {
+        mUndoLog.setEvictedListener(listener);
+    }
+
+    /**
+     * Registers the callbacks to be invoked with the costs of captures and restores.
+     * No time is measured while no callbacks are registered.
+     * @param listener the callbacks, e.g. an {@link UndoMetrics}, or null to remove the callbacks.
+     */
+    public void setOnMetricsListener(OnMetricsListener listener) {
+        mMetricsListener = listener;
+    }
+
+    /**
+     * Changes how the affected rows are captured by the methods with a tag.
+     * The default mode is {@link #CAPTURE_CURSOR}.
+     * The triggers of {@link #CAPTURE_TRIGGERS} are installed on the captured tables once a row is captured,
+     * and they are dropped once the mode is changed to another mode.
+     * The shadow tables of {@link #CAPTURE_SHADOW} are created once a row of their table is captured,
+     * and their rows are deleted once their captures are restored or removed, or are no longer in the undo log when it is opened or replaced.
+     * @param mode one of CAPTURE_CURSOR, CAPTURE_TRIGGERS or CAPTURE_SHADOW.
+     * @throws IllegalArgumentException if the mode is unknown.
+     */
+    public void setCaptureMode(int mode) {
+        if (mode != CAPTURE_CURSOR && mode != CAPTURE_TRIGGERS && mode != CAPTURE_SHADOW)
+            throw new IllegalArgumentException("The capture mode is unknown.");
+
+        Backend db = beginImmediateTransaction();
+        try {
+            if (mode != CAPTURE_TRIGGERS)
+                mTriggers.uninstall(db);
+
+            mCaptureMode = mode;
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Provides how the affected rows are captured.
+     * @return one of CAPTURE_CURSOR, CAPTURE_TRIGGERS or CAPTURE_SHADOW.
+     */
+    public int getCaptureMode() {
+        return mCaptureMode;
+    }
+
+    /**
+     * Changes the number of affected rows read by a single query while capturing.
+     * Once the journal is enabled, the restoring queries of each chunk are appended to the journal
+     * before the next chunk is read, so the heap used by a capture is bounded by the chunk size.
+     * Without the journal, the restoring queries of all chunks are kept in the heap by the undo log,
+     * so the chunks only bound the rows read by each query.
+     * @param rows the number of rows of each chunk.
+     * @throws IllegalArgumentException if the number of rows is not positive.
+     */
+    public void setCaptureChunkSize(int rows) {
+        if (rows <= 0)
+            throw new IllegalArgumentException("The chunk size must be positive.");
+
+        mCaptureChunkSize = rows;
+    }
+
+    /**
+     * Changes the number of restoring queries executed in a single transaction by the asynchronous restores.
+     * Other readers and writers of the database are able to access it between the transactions.
+     * @param queries the number of restoring queries of each slice.
+     * @throws IllegalArgumentException if the number of restoring queries is not positive.
+     */
+    public void setRestoreSliceSize(int queries) {
+        if (queries <= 0)
+            throw new IllegalArgumentException("The slice size must be positive.");
+
+        mRestoreSliceSize = queries;
+    }
+
+    /**
+     * Sheds the restoring queries kept in the heap.
+     * If the journal is enabled, the restoring queries are only spilled to the journal; otherwise, tags are evicted.
+     * Nothing is shed while the current thread holds open savepoint tags, since their rollback would undo the spill.
+     * @param trim one of TRIM_EXPIRED, TRIM_HALF or TRIM_ALL.
+     * @return the estimated number of released bytes.
+     */
+    public long trimHeap(int trim) {
+        if (mSavepointThread == Thread.currentThread())
+            return 0;
+
+        long bytes = mUndoLog.estimateBytes();
+
+        Backend db = beginImmediateTransaction();
+        try {
+            if (trim == TRIM_ALL) {
+                mUndoLog.shed(0);
+            } else if (trim == TRIM_HALF) {
+                mUndoLog.shed(mUndoLog.residentBytes() / 2);
+            } else {
+                mUndoLog.purgeExpired();
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return Math.max(0, bytes - mUndoLog.estimateBytes());
+    }
+
+    /**
+     * Inserts a row into the table.
+     * The restoring query is captured and the row is inserted in a single transaction.
+     * @param table the table to insert the row into.
+     * @param nullColumnHack the column to which null is inserted if the values are empty, or null.
+     * @param initialValues the initial column values of the row, or null if the values are empty.
+     * @param conflictAlgorithm one of the CONFLICT constants.
+     * @param tag the tag to be mapped to the restoring query.
+     * @return the row ID of the inserted row, or -1 if the row is not inserted, e.g. by CONFLICT_IGNORE.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public long insertWithOnConflict(String table, String nullColumnHack,
+                                     Map<String, Object> initialValues, int conflictAlgorithm, String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        if (initialValues == null)
+            initialValues = Collections.emptyMap();
+
+        if (initialValues.isEmpty() && nullColumnHack != null)
+            initialValues = Collections.singletonMap(nullColumnHack, null);
+
+        if (isSavepoint(tag))
+            return insertWithoutCapture(table, Collections.singletonList(initialValues), conflictAlgorithm)[0];
+
+        HashMap<List<String>, BackendStatement> statements = new HashMap<>();
+
+        OnMetricsListener metrics = mMetricsListener;
+        long start = nanoTime(metrics);
+        long captureNanos = 0;
+
+        UndoSegment segment = new UndoSegment();
+        long id;
+
+        Backend db = beginImmediateTransaction();
+        try {
+            TableInfo info = mTables.get(db, table);
+
+            if (!info.hasRowid()) {
+                // The rows of a table WITHOUT ROWID are identified by their primary key, which the triggers capture
+                mTriggers.begin(db, tag);
+                id = executeInsert(db, table, initialValues, conflictAlgorithm, statements);
+
+                long captureStart = nanoTime(metrics);
+                segment = generateTriggeredQueries(db);
+                captureNanos = nanoTime(metrics) - captureStart;
+            } else {
+                String rowidColumn = info.rowidColumn;
+                Object rowidValue = initialValues.get(rowidColumn);
+
+                // Determines if restoring query of replacement is generated
+                boolean restore_status = false;
+
+                // Generates replacement restoring query
+                if (conflictAlgorithm == CONFLICT_REPLACE && rowidValue != null) {
+                    long captureStart = nanoTime(metrics);
+                    BackendCursor restoring_cursor = db.query(
+                            "SELECT " + info.projection + " FROM " + table + " WHERE " + rowidColumn + " = ?",
+                            new String[] {rowidValue.toString()}
+                    );
+
+                    if (restoring_cursor.moveToFirst()) {
+                        generateRestoringReplace(segment, info, restoring_cursor, rowidValue);
+                        restore_status = true;
+                    }
+
+                    restoring_cursor.close();
+                    captureNanos = nanoTime(metrics) - captureStart;
+                }
+
+                // Executes query
+                id = executeInsert(db, table, initialValues, conflictAlgorithm, statements);
+
+                // Generates query to restore insertion
+                if (!restore_status) {
+                    segment.add(mQueryCache.delete(table, rowidColumn), id);
+                }
+            }
+
+            // Add queries and their parameters if no error has occurred
+            if (id != -1 && segment.size() > 0) {
+                mUndoLog.put(tag, segment);
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+
+            for (BackendStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+
+        if (metrics != null && id != -1 && segment.size() > 0)
+            reportCapture(metrics, OPERATION_INSERT, tag, segment, captureNanos, start);
+
+        return id;
+    }
+
+    /**
+     * Inserts the rows in a single transaction, and maps the tag to the restoring queries of all rows.
+     * Each distinct set of columns is compiled once, and the rows replaced by CONFLICT_REPLACE
+     * are captured by a single query for each chunk of rows.
+     * If a row cannot be inserted, the transaction is rolled back and no row is inserted.
+     * @param table the table to insert the rows into.
+     * @param values the initial column values of each row.
+     * @param conflictAlgorithm one of the CONFLICT constants.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the row ID of each inserted row, or -1 if the row is not inserted, e.g. by CONFLICT_IGNORE.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public long[] insertAll(String table, List<? extends Map<String, Object>> values, int conflictAlgorithm, String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        if (isSavepoint(tag))
+            return insertWithoutCapture(table, values, conflictAlgorithm);
+
+        long[] ids = new long[values.size()];
+        HashMap<List<String>, BackendStatement> statements = new HashMap<>();
+
+        OnMetricsListener metrics = mMetricsListener;
+        long start = nanoTime(metrics);
+        long captureNanos = 0;
+
+        UndoSegment segment = new UndoSegment();
+
+        Backend db = beginImmediateTransaction();
+        try {
+            TableInfo info = mTables.get(db, table);
+            String rowidColumn = info.rowidColumn;
+            UndoSegment captured = new UndoSegment();
+
+            // The rows of a table WITHOUT ROWID are identified by their primary key, which the triggers capture
+            if (!info.hasRowid())
+                mTriggers.begin(db, tag);
+
+            for (int first = 0; info.hasRowid() && first < ids.length; first += BATCH_CHUNK_SIZE) {
+                int end = Math.min(ids.length, first + BATCH_CHUNK_SIZE);
+
+                long captureStart = nanoTime(metrics);
+                UndoSegment replaced = new UndoSegment();
+                HashMap<String, Integer> replacedRows = conflictAlgorithm == CONFLICT_REPLACE ?
+                        generateRestoringReplaces(db, info, values.subList(first, end), replaced) : null;
+                captureNanos += nanoTime(metrics) - captureStart;
+
+                for (int i = first; i < end; i++) {
+                    Map<String, Object> rowValues = values.get(i);
+                    ids[i] = executeInsert(db, table, rowValues, conflictAlgorithm, statements);
+
+                    Object rowidValue = rowValues.get(rowidColumn);
+                    Integer replacedRow = replacedRows == null || rowidValue == null ?
+                            null : replacedRows.get(rowidValue.toString());
+
+                    if (replacedRow != null) {
+                        captured.add(replaced, replacedRow);
+                    } else if (ids[i] != -1) {
+                        captured.add(mQueryCache.delete(table, rowidColumn), ids[i]);
+                    }
+                }
+            }
+
+            if (!info.hasRowid()) {
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = executeInsert(db, table, values.get(i), conflictAlgorithm, statements);
+                }
+
+                long captureStart = nanoTime(metrics);
+                segment = generateTriggeredQueries(db);
+                captureNanos = nanoTime(metrics) - captureStart;
+            }
+
+            // The rows are restored in the reverse order of their insertion
+            for (int i = captured.size() - 1; i >= 0; i--) {
+                segment.add(captured, i);
+            }
+
+            mUndoLog.put(tag, segment);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+
+            for (BackendStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+
+        if (metrics != null)
+            reportCapture(metrics, OPERATION_INSERT, tag, segment, captureNanos, start);
+
+        return ids;
+    }
+
+    /**
+     * Inserts the rows under an open savepoint tag without capturing them.
+     * The rows are inserted in a nested savepoint, so either all rows or no row is inserted.
+     * @param table the table to insert the rows into.
+     * @param values the initial column values of each row.
+     * @param conflictAlgorithm one of the CONFLICT constants.
+     * @return the row ID of each inserted row, or -1 if the row is not inserted.
+     */
+    private long[] insertWithoutCapture(String table, List<? extends Map<String, Object>> values, int conflictAlgorithm) {
+        long[] ids = new long[values.size()];
+        HashMap<List<String>, BackendStatement> statements = new HashMap<>();
+
+        long changes = savepointChanges();
+
+        mBackend.savepoint(SAVEPOINT_BATCH);
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = executeInsert(mBackend, table, values.get(i), conflictAlgorithm, statements);
+            }
+        } catch (RuntimeException e) {
+            mUndoneChanges += savepointChanges() - changes;
+            mBackend.rollbackToSavepoint(SAVEPOINT_BATCH);
+            throw e;
+        } finally {
+            mBackend.releaseSavepoint(SAVEPOINT_BATCH);
+
+            for (BackendStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * Inserts or replaces the rows in a single transaction, and maps the tag to the restoring queries of all rows.
+     * @param table the table to insert the rows into.
+     * @param values the initial column values of each row.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the row ID of each inserted row.
+     * @throws IllegalArgumentException if the tag is null.
+     * @see #insertAll(String, List, int, String)
+     */
+    public long[] replaceAll(String table, List<? extends Map<String, Object>> values, String tag) {
+        return insertAll(table, values, CONFLICT_REPLACE, tag);
+    }
+
+    /**
+     * Inserts a row by the compiled statement of its columns.
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @param values the initial column values of the row.
+     * @param conflictAlgorithm the conflict algorithm.
+     * @param statements the compiled statements of the batch by their columns.
+     * @return the row ID of the inserted row, or -1 if the row is not inserted.
+     */
+    private static long executeInsert(Backend db, String table, Map<String, Object> values,
+                                      int conflictAlgorithm, HashMap<List<String>, BackendStatement> statements) {
+        String[] columns = columnNames(values);
+        List<String> key = Arrays.asList(columns);
+        BackendStatement statement = statements.get(key);
+
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder();
+            sql.append("INSERT");
+            sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+            sql.append(" INTO ");
+            sql.append(table);
+
+            if (columns.length == 0) {
+                sql.append(" DEFAULT VALUES");
+            } else {
+                sql.append(" (");
+
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0) sql.append(", ");
+
+                    sql.append(columns[i]);
+                }
+
+                sql.append(") VALUES (");
+
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append(i > 0 ? ", ?" : "?");
+                }
+
+                sql.append(")");
+            }
+
+            statement = db.compileStatement(sql.toString());
+            statements.put(key, statement);
+        }
+
+        statement.clearBindings();
+
+        for (int i = 0; i < columns.length; i++) {
+            bindObject(statement, i + 1, values.get(columns[i]));
+        }
+
+        return statement.executeInsert();
+    }
+
+    /**
+     * Generates the restoring queries of the rows to be replaced by a chunk of rows, by a single query.
+     * @param db the database in which the transaction is begun.
+     * @param info the metadata of the table.
+     * @param values the initial column values of the rows to be inserted.
+     * @param segment the segment to which the restoring queries are appended.
+     * @return maps the ROWID of each row to be replaced to the entry of its restoring query.
+     */
+    private HashMap<String, Integer> generateRestoringReplaces(Backend db, TableInfo info,
+                                                               List<? extends Map<String, Object>> values,
+                                                               UndoSegment segment) {
+        String rowidColumn = info.rowidColumn;
+        HashMap<String, Integer> entries = new HashMap<>();
+        ArrayList<String> rowids = new ArrayList<>();
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ");
+        sql.append(info.projection);
+        sql.append(" FROM ");
+        sql.append(info.name);
+        sql.append(" WHERE ");
+        sql.append(rowidColumn);
+        sql.append(" IN (");
+
+        for (Map<String, Object> rowValues : values) {
+            Object rowid = rowValues.get(rowidColumn);
+
+            if (rowid == null)
+                continue;
+
+            sql.append(rowids.isEmpty() ? "?" : ", ?");
+            rowids.add(rowid.toString());
+        }
+
+        sql.append(")");
+
+        if (rowids.isEmpty())
+            return entries;
+
+        BackendCursor restoring_cursor = db.query(sql.toString(), rowids.toArray(new String[rowids.size()]));
+
+        int rowidIndex = restoring_cursor.getColumnIndex(rowidColumn);
+
+        while (restoring_cursor.moveToNext()) {
+            String rowid = restoring_cursor.getString(rowidIndex);
+
+            entries.put(rowid, segment.size());
+            generateRestoringReplace(segment, info, restoring_cursor, rowid);
+        }
+
+        restoring_cursor.close();
+
+        return entries;
+    }
+
+    /**
+     * Generates the restoring query of a row to be replaced by an insertion.
+     * @param segment the segment to which the restoring query is appended.
+     * @param info the metadata of the table.
+     * @param restoring_cursor the cursor positioned at the row to be replaced.
+     * @param rowidValue the ROWID of the row.
+     */
+    private void generateRestoringReplace(UndoSegment segment, TableInfo info, BackendCursor restoring_cursor,
+                                          Object rowidValue) {
+        String table = info.name;
+        String rowidColumn = info.rowidColumn;
+        String[] columnNames = restoring_cursor.getColumnNames();
+        String[] columns = new String[columnNames.length - 1];
+
+        int i = 0;
+
+        for (String columnName : columnNames) {
+            if (columnName.equals(rowidColumn))
+                continue;
+
+            columns[i++] = columnName;
+        }
+
+        long rowid = rowidValue instanceof Number ?
+                ((Number) rowidValue).longValue() : parseRowid(rowidValue == null ? null : rowidValue.toString());
+
+        segment.add(rowidQuery(mQueryCache.update(table, columns, rowidColumn), rowid), rowid);
+
+        for (int column = 0; column < columnNames.length; column++) {
+            if (!columnNames[column].equals(rowidColumn))
+                addValue(segment.values(), restoring_cursor, column);
+        }
+
+        if (rowid == UndoSegment.NO_ROWID)
+            segment.values().addString(rowidValue == null ? null : rowidValue.toString());
+    }
+
+    /**
+     * Updates the rows of the table.
+     * The restoring queries are captured and the rows are updated in a single transaction.
+     * Only the columns of the values are captured and restored, besides the ROWID which identifies the rows.
+     * @param table the table to update.
+     * @param values the new column values.
+     * @param whereClause the optional WHERE clause of the updated rows, or null to update all rows.
+     * @param whereArgs arguments to be replaced with ? in the WHERE clause.
+     * @param conflictAlgorithm one of the CONFLICT constants.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the number of updated rows.
+     * @throws IllegalArgumentException if the tag is null or the values are empty.
+     */
+    public int updateWithOnConflict(String table, Map<String, Object> values,
+                                    String whereClause, String[] whereArgs, int conflictAlgorithm, String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        if (values == null || values.isEmpty())
+            throw new IllegalArgumentException("The values must not be empty.");
+
+        String[] columns = columnNames(values);
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("UPDATE");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+        sql.append(" ");
+        sql.append(table);
+        sql.append(" SET ");
+
+        Object[] bindArgs = new Object[columns.length + (whereArgs == null ? 0 : whereArgs.length)];
+
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "");
+            sql.append(columns[i]);
+            sql.append(" = ?");
+
+            bindArgs[i] = values.get(columns[i]);
+        }
+
+        if (whereArgs != null)
+            System.arraycopy(whereArgs, 0, bindArgs, columns.length, whereArgs.length);
+
+        if (whereClause != null && !whereClause.isEmpty())
+            sql.append(" WHERE ").append(whereClause);
+
+        if (isSavepoint(tag))
+            return executeUpdateDelete(mBackend, sql.toString(), bindArgs);
+
+        OnMetricsListener metrics = mMetricsListener;
+        long start = nanoTime(metrics);
+        long captureNanos;
+
+        UndoSegment segment = null;
+        int rows;
+
+        Backend db = beginImmediateTransaction();
+        try {
+            // The rows of a table WITHOUT ROWID are identified by their primary key, which the triggers capture
+            boolean triggers = mCaptureMode == CAPTURE_TRIGGERS || !mTables.get(db, table).hasRowid();
+            long captureStart = nanoTime(metrics);
+
+            if (triggers) {
+                mTriggers.begin(db, tag);
+            } else {
+                segment = generateRestoringUpdate(
+                        db,
+                        table,
+                        columns,
+                        whereClause,
+                        whereArgs,
+                        tag
+                );
+            }
+
+            captureNanos = nanoTime(metrics) - captureStart;
+            rows = executeUpdateDelete(db, sql.toString(), bindArgs);
+
+            if (triggers) {
+                captureStart = nanoTime(metrics);
+                segment = generateTriggeredQueries(db);
+                captureNanos += nanoTime(metrics) - captureStart;
+            }
+
+            mUndoLog.put(tag, segment);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (metrics != null)
+            reportCapture(metrics, OPERATION_UPDATE, tag, segment, captureNanos, start);
+
+        return rows;
+    }
+
+    /**
+     * Deletes the rows of the table.
+     * The restoring queries are captured and the rows are deleted in a single transaction.
+     * @param table the table to delete from.
+     * @param whereClause the optional WHERE clause of the deleted rows, or null to delete all rows.
+     * @param whereArgs arguments to be replaced with ? in the WHERE clause.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the number of deleted rows.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public int delete(String table, String whereClause, String[] whereArgs, String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        String sql = "DELETE FROM " + table +
+                (whereClause != null && !whereClause.isEmpty() ? " WHERE " + whereClause : "");
+
+        if (isSavepoint(tag))
+            return executeUpdateDelete(mBackend, sql, whereArgs);
+
+        OnMetricsListener metrics = mMetricsListener;
+        long start = nanoTime(metrics);
+        long captureNanos;
+
+        UndoSegment segment = null;
+        int rows;
+
+        Backend db = beginImmediateTransaction();
+        try {
+            // The rows of a table WITHOUT ROWID are identified by their primary key, which the triggers capture
+            boolean triggers = mCaptureMode == CAPTURE_TRIGGERS || !mTables.get(db, table).hasRowid();
+            long captureStart = nanoTime(metrics);
+
+            if (triggers) {
+                mTriggers.begin(db, tag);
+            } else {
+                segment = generateRestoringDelete(
+                        db,
+                        table,
+                        whereClause,
+                        whereArgs,
+                        tag
+                );
+            }
+
+            captureNanos = nanoTime(metrics) - captureStart;
+            rows = executeUpdateDelete(db, sql, whereArgs);
+
+            if (triggers) {
+                captureStart = nanoTime(metrics);
+                segment = generateTriggeredQueries(db);
+                captureNanos += nanoTime(metrics) - captureStart;
+            }
+
+            mUndoLog.put(tag, segment);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (metrics != null)
+            reportCapture(metrics, OPERATION_DELETE, tag, segment, captureNanos, start);
+
+        return rows;
+    }
+
+    /**
+     * Executes an UPDATE or DELETE statement by a statement compiled for a single execution.
+     * @param db the database in which the transaction is begun.
+     * @param sql the SQL statement.
+     * @param bindArgs arguments to be bound to the parameters of the SQL statement, or null.
+     * @return the number of changed rows.
+     */
+    private static int executeUpdateDelete(Backend db, String sql, Object[] bindArgs) {
+        BackendStatement statement = db.compileStatement(sql);
+
+        try {
+            if (bindArgs != null) {
+                for (int i = 0; i < bindArgs.length; i++) {
+                    bindObject(statement, i + 1, bindArgs[i]);
+                }
+            }
+
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Applies a SQL query which may insert, update or delete rows.
+     * The SQL query is classified by a single pass over its tokens and cached by its text,
+     * and the {@link net.sf.jsqlparser.parser.CCJSqlParserUtil#parse(String) parser} is only used for SQL queries which cannot be classified.
+     * The changes of REPLACE statements, insertions with a conflict resolution, upserts, UPDATE OR REPLACE, UPDATE ... FROM
+     * and statements with a WITH clause are captured by the temporary triggers of {@link #CAPTURE_TRIGGERS},
+     * since they cannot be captured from the WHERE clause. So are the insertions which may set the ROWID of their rows,
+     * e.g. by their INTEGER PRIMARY KEY, while the other insertions are restored by deleting the range of their ROWIDs.
+     * The SQL query is applied before this method returns, and the returned cursor is positioned at its first row.
+     * @param sql the SQL query.
+     * @param selectionArgs arguments to be replaced with ? in the SQL query.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the cursor of the applied SQL query.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public BackendCursor executeRaw(final String sql, final String[] selectionArgs, String tag)
+            throws JSQLParserException, ClassCastException {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        return executeRaw(sql, selectionArgs, tag, new RawQuery<BackendCursor>() {
+            @Override
+            public BackendCursor apply() {
+                BackendCursor cursor = mBackend.query(sql, selectionArgs);
+                cursor.moveToFirst();
+                return cursor;
+            }
+        });
+    }
+
+    /**
+     * Captures the restoring queries and applies the SQL query in a single transaction.
+     * @param sql the SQL query.
+     * @param selectionArgs arguments to be replaced with ? in the SQL query.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @param rawQuery applies the SQL query by the platform.
+     * @return the result of the applied SQL query.
+     * @throws JSQLParserException
+     * @throws ClassCastException
+     */
+    <T> T executeRaw(String sql, String[] selectionArgs, String tag, RawQuery<T> rawQuery)
+            throws JSQLParserException, ClassCastException {
+        if (isSavepoint(tag))
+            return rawQuery.apply();
+
+        if (mCaptureMode == CAPTURE_TRIGGERS)
+            return executeTriggeredRaw(rawQuery, tag);
+
+        OnMetricsListener metrics = mMetricsListener;
+        long start = nanoTime(metrics);
+
+        boolean cached = metrics != null && mStatementCache.contains(sql);
+        SqlStatement statement = mStatementCache.get(sql);
+
+        if (metrics != null)
+            metrics.onParse(sql, System.nanoTime() - start, cached);
+
+        TableInfo info = statement.table != null ? mTables.get(mBackend, statement.table) : null;
+
+        // The rows of an insertion which sets their ROWID are not the range of the ROWIDs chosen by SQLite
+        if (statement.kind == SqlStatement.KIND_WRITE || (info != null && !info.hasRowid()) ||
+                (statement.kind == SqlStatement.KIND_INSERT && info != null && info.setsRowid(statement.columns)))
+            return executeTriggeredRaw(rawQuery, tag);
+
+        long captureNanos;
+        UndoSegment segment;
+        T result;
+
+        Backend db = beginImmediateTransaction();
+        try {
+            long captureStart = nanoTime(metrics);
+            segment = generateRawUpdateDeleteQuery(db, statement, selectionArgs, tag);
+            captureNanos = nanoTime(metrics) - captureStart;
+
+            result = rawQuery.apply();
+
+            if (statement.kind == SqlStatement.KIND_INSERT) {
+                captureStart = nanoTime(metrics);
+                UndoSegment insertSegment = generateInsertRawQuery(db, statement.table);
+                captureNanos += nanoTime(metrics) - captureStart;
+
+                if (insertSegment != null)
+                    segment = insertSegment;
+            }
+
+            if (segment != null)
+                mUndoLog.put(tag, segment);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (metrics != null && segment != null)
+            reportCapture(metrics, OPERATION_RAW_QUERY, tag, segment, captureNanos, start);
+
+        return result;
+    }
+
+    /**
+     * Applies the SQL query of executeRaw methods while the triggers capture the changed rows.
+     * @param rawQuery applies the SQL query by the platform.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the result of the applied SQL query.
+     */
+    private <T> T executeTriggeredRaw(RawQuery<T> rawQuery, String tag) {
+        OnMetricsListener metrics = mMetricsListener;
+        long start = nanoTime(metrics);
+        long captureNanos;
+
+        UndoSegment segment;
+        T result;
+
+        Backend db = beginImmediateTransaction();
+        try {
+            long captureStart = nanoTime(metrics);
+            mTriggers.begin(db, tag);
+            captureNanos = nanoTime(metrics) - captureStart;
+
+            result = rawQuery.apply();
+
+            captureStart = nanoTime(metrics);
+            segment = generateTriggeredQueries(db);
+            captureNanos += nanoTime(metrics) - captureStart;
+
+            if (segment.size() > 0)
+                mUndoLog.put(tag, segment);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (metrics != null && segment.size() > 0)
+            reportCapture(metrics, OPERATION_RAW_QUERY, tag, segment, captureNanos, start);
+
+        return result;
+    }
+
+    /**
+     * Executes a single SQL statement which returns no rows.
+     * @see #execSQL(String, Object[], String)
+     */
+    public void execSQL(String sql, String tag) {
+        execSQL(sql, new Object[0], tag);
+    }
+
+    /**
+     * Executes a single SQL statement which returns no rows.
+     * The changed rows of the captured tables are captured by triggers, whatever the capture mode is,
+     * so any statement which changes rows is restorable without being parsed.
+     * Rows replaced on a conflict of their ROWID are captured as well, while the rows deleted by the REPLACE conflict resolution
+     * of other unique constraints are only captured if recursive triggers are enabled.
+     * The SQL statement must not begin or end a transaction.
+     * @param sql the SQL statement.
+     * @param bindArgs arguments to be bound to the parameters of the SQL statement.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public void execSQL(String sql, Object[] bindArgs, String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        if (isSavepoint(tag)) {
+            mBackend.execSQL(sql, bindArgs);
+            return;
+        }
+
+        OnMetricsListener metrics = mMetricsListener;
+        long start = nanoTime(metrics);
+        long captureNanos;
+
+        UndoSegment segment;
+
+        Backend db = beginImmediateTransaction();
+        try {
+            long captureStart = nanoTime(metrics);
+            mTriggers.begin(db, tag);
+            captureNanos = nanoTime(metrics) - captureStart;
+
+            db.execSQL(sql, bindArgs);
+
+            captureStart = nanoTime(metrics);
+            segment = generateTriggeredQueries(db);
+            captureNanos += nanoTime(metrics) - captureStart;
+
+            mUndoLog.put(tag, segment);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (metrics != null)
+            reportCapture(metrics, OPERATION_EXEC_SQL, tag, segment, captureNanos, start);
+    }
+
+    /**
+     * Reads the clock only if the costs are measured.
+     * @param metrics the callbacks of the costs, or null.
+     * @return the current time in nanoseconds, or 0 if the costs are not measured.
+     */
+    private static long nanoTime(OnMetricsListener metrics) {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Reports a committed capture to the callbacks of the costs.
+     * @param metrics the callbacks of the costs.
+     * @param operation one of the OPERATION constants.
+     * @param tag the tag mapped to the restoring queries.
+     * @param segment the captured restoring queries, or null if no query is captured.
+     * @param captureNanos the time spent reading the affected rows.
+     * @param start the time at which the change began.
+     */
+    private void reportCapture(OnMetricsListener metrics, int operation, String tag,
+                               UndoSegment segment, long captureNanos, long start) {
+        metrics.onCapture(
+                operation,
+                tag,
+                segment == null ? 0 : segment.size(),
+                captureNanos,
+                System.nanoTime() - start,
+                mUndoLog.estimateBytes()
+        );
+    }
+
+    /**
+     * Generates the restoring query of executeRaw methods.
+     * @param db the database in which the transaction is begun.
+     * @param statement the metadata of the SQL query.
+     * @param selectionArgs arguments to be replaced with ? in the SQL query.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the restoring queries, or null if the SQL query neither updates nor deletes rows.
+     */
+    private UndoSegment generateRawUpdateDeleteQuery(Backend db, SqlStatement statement,
+                                                     String[] selectionArgs, String tag) {
+        switch (statement.kind) {
+            case SqlStatement.KIND_UPDATE:
+                return generateRestoringUpdate(
+                        db,
+                        statement.table,
+                        statement.columns,
+                        statement.where,
+                        statement.whereArgs(selectionArgs),
+                        tag
+                );
+            case SqlStatement.KIND_DELETE:
+                return generateRestoringDelete(
+                        db,
+                        statement.table,
+                        statement.where,
+                        statement.whereArgs(selectionArgs),
+                        tag
+                );
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Generates the restoring query of executeRaw insertion, which leaves the ROWIDs of the inserted rows to SQLite.
+     * SQLite gives the rows of a single insertion consecutive ROWIDs, so the inserted rows are the changes() rows
+     * up to last_insert_rowid(), and a single query deletes them, e.g. of multi-row VALUES and INSERT ... SELECT.
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @return the restoring query, or null if no row is inserted.
+     */
+    private UndoSegment generateInsertRawQuery(Backend db, String table) {
+        BackendCursor cursor = db.query("SELECT changes(), last_insert_rowid()", null);
+
+        UndoSegment segment = null;
+
+        if (cursor.moveToFirst() && cursor.getLong(0) > 0) {
+            segment = new UndoSegment();
+            segment.add(mQueryCache.deleteRange(table), cursor.getLong(1));
+            segment.values().addLong(cursor.getLong(1) - cursor.getLong(0) + 1);
+        }
+
+        cursor.close();
+
+        return segment;
+    }
+
+    /**
+     * Generates the restoring query of deletion.
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @param whereClause the optional WHERE clause to apply when deleting.
+     * @param whereArgs arguments to be replaced with ? in the SQL query.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the restoring queries.
+     */
+    private UndoSegment generateRestoringDelete(Backend db,
+                                                String table,
+                                                String whereClause,
+                                                String[] whereArgs,
+                                                String tag) {
+        return generateRestoringRows(db, table, null, whereClause, whereArgs, false, tag);
+    }
+
+    /**
+     * Generates the restoring query of updating.
+     * Only the updated columns and the ROWID are captured, so the restoring queries only set the updated columns.
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @param updatedColumns the columns to be updated, or null to capture all columns.
+     * @param whereClause the optional WHERE clause to apply when updating.
+     * @param whereArgs arguments to be replaced with ? in the SQL query.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the restoring queries.
+     */
+    private UndoSegment generateRestoringUpdate(Backend db,
+                                                String table,
+                                                String[] updatedColumns,
+                                                String whereClause,
+                                                String[] whereArgs,
+                                                String tag) {
+        return generateRestoringRows(db, table, updatedColumns, whereClause, whereArgs, true, tag);
+    }
+
+    /**
+     * Generates the restoring queries of the affected rows, which are read in chunks in the order of their ROWID.
+     * Each chunk is read by its own query, so no cursor holds all affected rows.
+     * Once the journal is enabled, each chunk is appended to the journal and released before the next chunk is read,
+     * so the heap used by the capture does not depend on the number of affected rows.
+     * Without the journal, the restoring queries of all chunks are kept in the returned segment.
+     * The rows of each chunk are counted as the cursor moves, so the cursor is never asked for its number of rows.
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @param restoredColumns the columns to be restored, or null to restore all columns.
+     * @param whereClause the optional WHERE clause of the affected rows.
+     * @param whereArgs arguments to be replaced with ? in the WHERE clause.
+     * @param update determines if the rows are restored by UPDATE rather than INSERT OR REPLACE queries.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the restoring queries, or a spilled segment if the restoring queries are appended to the journal.
+     */
+    private UndoSegment generateRestoringRows(Backend db,
+                                              String table,
+                                              String[] restoredColumns,
+                                              String whereClause,
+                                              String[] whereArgs,
+                                              boolean update,
+                                              String tag) {
+        TableInfo info = mTables.get(db, table);
+        String rowidColumn = info.rowidColumn;
+        int chunkSize = mCaptureChunkSize;
+        boolean streamed = mUndoLog.journal() != null;
+
+        if (restoredColumns != null && restoredColumns.length == 0)
+            restoredColumns = null;
+
+        // The affected rows are copied into the shadow table by a single query, instead of being read in chunks
+        if (mCaptureMode == CAPTURE_SHADOW) {
+            String[] updatedColumns = restoredColumns == null ? info.columns : restoredColumns;
+            return mShadows.capture(db, info, update ? updatedColumns : null, whereClause, whereArgs);
+        }
+
+        // The ROWID of SQLite is the last column, which pages the chunks
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ");
+
+        if (restoredColumns == null) {
+            sql.append(info.projection).append(", ");
+        } else {
+            for (String column : restoredColumns) {
+                sql.append(column);
+                sql.append(", ");
+            }
+
+            if (!Arrays.asList(restoredColumns).contains(rowidColumn))
+                sql.append(rowidColumn).append(", ");
+        }
+
+        sql.append("rowid AS ").append(COLUMN_CHUNK_ROWID).append(" FROM ").append(table);
+
+        String firstChunk = sql + (whereClause == null ? "" : " WHERE (" + whereClause + ")") +
+                " ORDER BY rowid LIMIT " + chunkSize;
+        String nextChunk = sql + (whereClause == null ? " WHERE" : " WHERE (" + whereClause + ") AND") +
+                " rowid > ? ORDER BY rowid LIMIT " + chunkSize;
+
+        String[] nextArgs = new String[whereArgs == null ? 1 : whereArgs.length + 1];
+
+        if (whereArgs != null)
+            System.arraycopy(whereArgs, 0, nextArgs, 0, whereArgs.length);
+
+        UndoSegment segment = new UndoSegment();
+        String[] columns = restoredColumns;
+        RestoringQuery query = null;
+        int rowidIndex = -1;
+        int rows = 0;
+
+        BackendCursor restoring_cursor = null;
+
+        try {
+            while (true) {
+                restoring_cursor = rows == 0 ? db.query(firstChunk, whereArgs) : db.query(nextChunk, nextArgs);
+
+                int chunkRows = 0;
+                int chunkRowidIndex = restoring_cursor.getColumnCount() - 1;
+
+                if (query == null) {
+                    if (columns == null) {
+                        columns = new String[chunkRowidIndex];
+                        System.arraycopy(restoring_cursor.getColumnNames(), 0, columns, 0, columns.length);
+                    }
+
+                    query = update ? mQueryCache.update(table, columns, rowidColumn) : mQueryCache.replace(table, columns);
+                    rowidIndex = restoring_cursor.getColumnIndex(rowidColumn);
+                }
+
+                while (restoring_cursor.moveToNext()) {
+                    long rowid = rowidIndex == -1 ? UndoSegment.NO_ROWID : readRowid(restoring_cursor, rowidIndex);
+                    segment.add(update ? rowidQuery(query, rowid) : query, rowid);
+
+                    for (int i = 0; i < columns.length; i++) {
+                        addValue(segment.values(), restoring_cursor, i);
+                    }
+
+                    if (update && rowid == UndoSegment.NO_ROWID)
+                        addValue(segment.values(), restoring_cursor, rowidIndex);
+
+                    nextArgs[nextArgs.length - 1] = restoring_cursor.getString(chunkRowidIndex);
+                    chunkRows++;
+                }
+
+                restoring_cursor.close();
+                restoring_cursor = null;
+
+                // The journal is written in the transaction, so the streamed chunks are rolled back with the change
+                if (streamed && chunkRows > 0) {
+                    mUndoLog.stream(tag, segment, rows == 0);
+                    segment.clear();
+                }
+
+                rows += chunkRows;
+
+                if (chunkRows < chunkSize)
+                    break;
+            }
+        } finally {
+            if (restoring_cursor != null)
+                restoring_cursor.close();
+        }
+
+        return streamed && rows > 0 ? UndoSegment.spilled(rows) : segment;
+    }
+
+    /**
+     * Generates the restoring queries of the rows captured by the triggers, and removes the captured rows.
+     * The restoring queries are executed in the reverse order of the capture,
+     * so rows changed several times or in several tables, e.g. by cascades, are restored to their first image.
+     * @param db the database in which the transaction is begun.
+     * @return the restoring queries.
+     */
+    private UndoSegment generateTriggeredQueries(Backend db) {
+        ArrayList<String> tables = mTriggers.end(db);
+
+        if (tables.isEmpty())
+            return new UndoSegment();
+
+        UndoSegment[] segments = new UndoSegment[tables.size()];
+        long[][] sequences = new long[tables.size()][];
+
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new UndoSegment();
+            sequences[i] = generateTriggeredQueries(db, tables.get(i), segments[i]);
+        }
+
+        mTriggers.clear(db, tables);
+
+        if (segments.length == 1)
+            return segments[0];
+
+        // Merges the segments of the tables in the reverse order of the capture
+        UndoSegment segment = new UndoSegment();
+        int[] positions = new int[segments.length];
+
+        while (true) {
+            int next = -1;
+
+            for (int i = 0; i < segments.length; i++) {
+                if (positions[i] < segments[i].size() &&
+                        (next == -1 || sequences[i][positions[i]] > sequences[next][positions[next]]))
+                    next = i;
+            }
+
+            if (next == -1)
+                return segment;
+
+            segment.add(segments[next], positions[next]++);
+        }
+    }
+
+    /**
+     * Generates the restoring queries of the rows of a table captured by the triggers.
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @param segment the segment to which the restoring queries are appended.
+     * @return the order of the capture of each entry.
+     */
+    private long[] generateTriggeredQueries(Backend db, String table, UndoSegment segment) {
+        BackendCursor restoring_cursor = mTriggers.read(db, table);
+
+        TableInfo info = mTriggers.table(table);
+        String rowidColumn = info.rowidColumn;
+        String[] columns = info.rowColumns;
+        long[] sequences = new long[restoring_cursor.getCount()];
+
+        while (restoring_cursor.moveToNext()) {
+            sequences[segment.size()] = restoring_cursor.getLong(0);
+            long rowid = readRowid(restoring_cursor, 2);
+
+            switch (restoring_cursor.getInt(1)) {
+                case UndoTriggers.OP_UPDATE:
+                    segment.add(rowidQuery(mQueryCache.update(table, columns, rowidColumn), rowid), rowid);
+
+                    for (int i = 0; i < columns.length; i++) {
+                        addValue(segment.values(), restoring_cursor, UndoTriggers.FIRST_COLUMN + i);
+                    }
+
+                    if (rowid == UndoSegment.NO_ROWID)
+                        addValue(segment.values(), restoring_cursor, 2);
+                    break;
+                case UndoTriggers.OP_DELETE:
+                    segment.add(mQueryCache.replace(table, columns), rowid);
+
+                    for (int i = 0; i < columns.length; i++) {
+                        addValue(segment.values(), restoring_cursor, UndoTriggers.FIRST_COLUMN + i);
+                    }
+                    break;
+                default:
+                    if (!info.hasRowid()) {
+                        // The inserted row of a table WITHOUT ROWID is deleted by its primary key
+                        segment.add(mQueryCache.deleteByKey(table, info.primaryKey), UndoSegment.NO_ROWID);
+
+                        for (String column : info.primaryKey) {
+                            int index = Arrays.asList(columns).indexOf(column);
+                            addValue(segment.values(), restoring_cursor, UndoTriggers.FIRST_COLUMN + index);
+                        }
+                        break;
+                    }
+
+                    segment.add(rowidQuery(mQueryCache.delete(table, rowidColumn), rowid), rowid);
+
+                    if (rowid == UndoSegment.NO_ROWID)
+                        addValue(segment.values(), restoring_cursor, 2);
+                    break;
+            }
+        }
+
+        restoring_cursor.close();
+
+        return sequences;
+    }
+
+    /**
+     * Provides the names of the columns in the values.
+     * @param values the values of columns.
+     * @return the names of the columns.
+     */
+    private static String[] columnNames(Map<String, Object> values) {
+        return values.keySet().toArray(new String[values.size()]);
+    }
+
+    /**
+     * Binds a value to a parameter of the compiled statement by the type of the value.
+     * Booleans are bound as 1 or 0, and values of unknown types as their string.
+     * @param statement the compiled statement.
+     * @param index the index of the parameter, starting at 1.
+     * @param value the value.
+     */
+    private static void bindObject(BackendStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * Provides the query of an entry whose query binds the ROWID to its last parameter.
+     * If the ROWID is not an integer, the entry must be stored as a raw query and the ROWID becomes its last value.
+     * @param query the restoring query of the entry.
+     * @param rowid the ROWID of the affected row.
+     * @return the restoring query to be added to the segment.
+     */
+    private RestoringQuery rowidQuery(RestoringQuery query, long rowid) {
+        return rowid == UndoSegment.NO_ROWID ? mQueryCache.raw(query.sql) : query;
+    }
+
+    /**
+     * Reads a column of the current row of the cursor into the buffer with its type.
+     * @param values the buffer of values.
+     * @param cursor the cursor of the captured rows.
+     * @param column the index of the column.
+     */
+    private static void addValue(ValueBuffer values, BackendCursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case BackendCursor.TYPE_NULL:
+                values.addNull();
+                break;
+            case BackendCursor.TYPE_INTEGER:
+                values.addLong(cursor.getLong(column));
+                break;
+            case BackendCursor.TYPE_FLOAT:
+                values.addDouble(cursor.getDouble(column));
+                break;
+            case BackendCursor.TYPE_BLOB:
+                values.addBlob(cursor.getBlob(column));
+                break;
+            default:
+                values.addString(cursor.getString(column));
+                break;
+        }
+    }
+
+    /**
+     * Reads the ROWID of the current row of the cursor.
+     * @param cursor the cursor of the captured rows.
+     * @param column the index of the ROWID column.
+     * @return the ROWID, or {@link UndoSegment#NO_ROWID} if the ROWID is not an integer.
+     */
+    private static long readRowid(BackendCursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case BackendCursor.TYPE_INTEGER:
+                return cursor.getLong(column);
+            case BackendCursor.TYPE_UNKNOWN:
+                return parseRowid(cursor.getString(column));
+            default:
+                return UndoSegment.NO_ROWID;
+        }
+    }
+
+    /**
+     * Parses the ROWID of a row.
+     * @param rowid the ROWID of the row.
+     * @return the ROWID, or {@link UndoSegment#NO_ROWID} if the ROWID is not an integer.
+     */
+    private static long parseRowid(String rowid) {
+        if (rowid == null)
+            return UndoSegment.NO_ROWID;
+
+        try {
+            return Long.parseLong(rowid);
+        } catch (NumberFormatException e) {
+            return UndoSegment.NO_ROWID;
+        }
+    }
+
+    /**
+     * Opens a savepoint tag, whose changes are undone by rolling back to a SAVEPOINT instead of capturing restoring queries.
+     * The changes made with the tag are not captured, so they have no capture overhead,
+     * and restoring the tag rolls back every change made since it was opened, including the changes of later savepoint tags.
+     * The first savepoint tag begins a transaction which holds the write lock of the database until the last savepoint tag
+     * is released or restored, so the savepoint tags are meant for changes which are kept or undone within seconds;
+     * other threads wait for the transaction to end, and the tags with captured restoring queries are used for long-lived undo.
+     * While savepoint tags are open, the thread which opened them only changes and restores the database by those tags.
+     * Since the write lock is held until every savepoint tag is closed,
+     * {@link #runInSavepoint(String, SavepointBody) runInSavepoint} is preferred, which closes the tag whatever the changes throw.
+     * @param tag the tag of the savepoint.
+     * @throws IllegalArgumentException if the tag is null or is already mapped to restoring queries.
+     * @throws IllegalStateException if the tag is already an open savepoint tag.
+     */
+    public void beginSavepoint(String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        if (isSavepoint(tag))
+            throw new IllegalStateException("The savepoint tag is already open.");
+
+        boolean first = mSavepointThread != Thread.currentThread();
+
+        if (first)
+            mBackend.beginTransaction();
+
+        try {
+            if (mUndoLog.contains(tag))
+                throw new IllegalArgumentException("The tag is already mapped to restoring queries.");
+
+            long changes = savepointChanges();
+            mBackend.savepoint(tag);
+            mSavepoints.add(new Savepoint(tag, changes, mUndoLog.checkpoint()));
+        } catch (RuntimeException e) {
+            if (first)
+                mBackend.endTransaction();
+
+            throw e;
+        }
+
+        if (first)
+            mSavepointThread = Thread.currentThread();
+    }
+
+    /**
+     * Releases an open savepoint tag of the current thread and the savepoint tags opened after it, keeping their changes.
+     * Once the last savepoint tag is released, the transaction of the savepoint tags is committed.
+     * @param tag the open savepoint tag.
+     * @throws IllegalArgumentException if the tag is not an open savepoint tag of the current thread.
+     */
+    public void releaseSavepoint(String tag) {
+        int index = savepointIndex(tag);
+
+        if (index == -1)
+            throw new IllegalArgumentException("The tag is not an open savepoint tag.");
+
+        mBackend.releaseSavepoint(tag);
+        closeSavepoints(index);
+    }
+
+    /**
+     * Makes changes within a savepoint tag, which is closed before this method returns,
+     * so the write lock held by the savepoint tags is not left to the caller.
+     * The changes are kept if the body returns, unless it restores the tag, and rolled back if it throws;
+     * the savepoint tags opened by the body after the tag are closed with it.
+     * @param tag the tag of the savepoint.
+     * @param body makes the changes with the tag.
+     * @return the result of the body.
+     * @throws IllegalArgumentException if the tag is null or is already mapped to restoring queries.
+     * @throws IllegalStateException if the tag is already an open savepoint tag.
+     * @see #beginSavepoint(String)
+     */
+    public <T> T runInSavepoint(String tag, SavepointBody<T> body) {
+        beginSavepoint(tag);
+
+        boolean kept = false;
+
+        try {
+            T result = body.run(tag);
+            kept = true;
+            return result;
+        } finally {
+            int index = savepointIndex(tag);
+
+            if (index != -1) {
+                if (kept) {
+                    mBackend.releaseSavepoint(tag);
+                    closeSavepoints(index);
+                } else {
+                    rollbackSavepoint(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the tag is an open savepoint tag of the current thread.
+     * @param tag possible savepoint tag.
+     * @return true if the changes of the tag are not captured; false otherwise.
+     */
+    public boolean isSavepoint(String tag) {
+        return savepointIndex(tag) != -1;
+    }
+
+    /**
+     * Provides the index of an open savepoint tag of the current thread.
+     * @param tag possible savepoint tag.
+     * @return the index of the savepoint, or -1 if the tag is not an open savepoint tag of the current thread.
+     */
+    private int savepointIndex(String tag) {
+        if (mSavepointThread != Thread.currentThread())
+            return -1;
+
+        for (int i = 0; i < mSavepoints.size(); i++) {
+            if (mSavepoints.get(i).tag.equals(tag))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Rolls back to an open savepoint and releases it, so the savepoint tags opened after it are undone as well.
+     * @param index the index of the savepoint.
+     * @return the number of changed rows which are undone.
+     */
+    private int rollbackSavepoint(int index) {
+        Savepoint savepoint = mSavepoints.get(index);
+        long changes = savepointChanges() - savepoint.changes;
+
+        mUndoneChanges += changes;
+        mBackend.rollbackToSavepoint(savepoint.tag);
+        mBackend.releaseSavepoint(savepoint.tag);
+        closeSavepoints(index);
+
+        return (int) changes;
+    }
+
+    /**
+     * Forgets the released savepoints, and commits the transaction of the savepoint tags once no savepoint is open.
+     * @param index the index of the first released savepoint.
+     */
+    private void closeSavepoints(int index) {
+        mSavepoints.subList(index, mSavepoints.size()).clear();
+
+        if (mSavepoints.isEmpty()) {
+            mSavepointThread = null;
+            mUndoneChanges = 0;
+
+            mBackend.setTransactionSuccessful();
+            mBackend.endTransaction();
+        }
+    }
+
+    /**
+     * Counts the rows changed by the connection which are not rolled back by a savepoint,
+     * so the changes of a savepoint tag are counted without capturing them.
+     * @return the number of kept rows changed since the connection was opened.
+     */
+    private long savepointChanges() {
+        BackendCursor cursor = mBackend.query("SELECT total_changes()", null);
+
+        try {
+            return (cursor.moveToFirst() ? cursor.getLong(0) : 0) - mUndoneChanges;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Rolls back the open savepoint tags among the tags, and restores the queries of the other tags.
+     * @param tags the savepoint tags and the tags mapped to restoring queries.
+     * @return the number of undone rows of the savepoint tags plus the number of restored queries.
+     */
+    private int rollbackOrRestore(Collection<String> tags) {
+        if (mSavepointThread != Thread.currentThread())
+            return restoreTags(tags, Long.MIN_VALUE);
+
+        ArrayList<String> restoredTags = new ArrayList<>();
+        int first = -1;
+
+        for (String tag : tags) {
+            int index = savepointIndex(tag);
+
+            if (index == -1) {
+                restoredTags.add(tag);
+            } else if (first == -1 || index < first) {
+                first = index;
+            }
+        }
+
+        int changes = first == -1 ? 0 : rollbackSavepoint(first);
+
+        return restoredTags.isEmpty() ? changes : changes + restoreTags(restoredTags, Long.MIN_VALUE);
+    }
+
+    /**
+     * Restores all restoring SQL queries in the reverse order of their capture.
+     * All restoring queries are executed in a single transaction,
+     * after the open savepoint tags of the current thread are rolled back.
+     * @return possible number of restored queries to which tag is mapped.
+     */
+    public int restoreAll() {
+        int changes = mSavepointThread == Thread.currentThread() ? rollbackSavepoint(0) : 0;
+
+        return changes + restoreTags(null, Long.MIN_VALUE);
+    }
+
+    /**
+     * Marks the current point of the undo log, so the changes captured since are restored by {@link #restoreTo(long) restoreTo}.
+     * @return the checkpoint, which is valid for this instance.
+     */
+    public long checkpoint() {
+        return mUndoLog.checkpoint();
+    }
+
+    /**
+     * Restores the changes captured after the checkpoint in the reverse order of their capture,
+     * without looking up their tags. The changes captured earlier with the same tags stay restorable.
+     * All restoring queries are executed in a single transaction,
+     * after the savepoint tags of the current thread opened after the checkpoint are rolled back.
+     * @param checkpoint the checkpoint provided by {@link #checkpoint() checkpoint}.
+     * @return possible number of restored queries of the changes.
+     */
+    public int restoreTo(long checkpoint) {
+        int changes = 0;
+
+        if (mSavepointThread == Thread.currentThread()) {
+            for (int i = 0; i < mSavepoints.size(); i++) {
+                if (mSavepoints.get(i).sequence > checkpoint) {
+                    changes = rollbackSavepoint(i);
+                    break;
+                }
+            }
+        }
+
+        return changes + restoreTags(null, checkpoint);
+    }
+
+    /**
+     * Restores the queries to which each tag is mapped in the reverse order of their capture, whatever the order of the tags is.
+     * All restoring queries are executed in a single transaction.
+     * The open savepoint tags of the current thread are rolled back to the earliest of their savepoints instead.
+     * @param tags an array of tags mapped to restoring SQL queries.
+     * @return possible number of restored queries to which tag is mapped.
+     */
+    public int restore(String[] tags) {
+        return rollbackOrRestore(Arrays.asList(tags));
+    }
+
+    /**
+     * Restores the queries to which each tag is mapped in the reverse order of their capture, whatever the order of the tags is.
+     * All restoring queries are executed in a single transaction.
+     * The open savepoint tags of the current thread are rolled back to the earliest of their savepoints instead.
+     * @param tags a set of tags mapped to restoring SQL queries.
+     * @return possible number of restored queries to which tag is mapped.
+     */
+    public int restore(Set<String> tags) {
+        return rollbackOrRestore(tags);
+    }
+
+    /**
+     * Restores the SQL queries to which the tag is mapped.
+     * All restoring queries are executed in a single transaction.
+     * An open savepoint tag of the current thread is rolled back to its savepoint and released instead.
+     * @param tag the tag mapped to restoring queries.
+     * @return possible number of restored queries to which tag is mapped.
+     */
+    public int restore(String tag) {
+        return rollbackOrRestore(Collections.singletonList(tag));
+    }
+
+    /**
+     * Restores the queries of the tags which start with the prefix in the reverse order of their capture.
+     * All restoring queries are executed in a single transaction.
+     * The open savepoint tags of the current thread which start with the prefix are rolled back as well.
+     * @param prefix the prefix of the tags, e.g. "session:42:".
+     * @return possible number of restored queries to which the tags are mapped.
+     * @throws IllegalArgumentException if the prefix is null.
+     */
+    public int restoreByPrefix(String prefix) {
+        if (prefix == null)
+            throw new IllegalArgumentException("The prefix must not be null.");
+
+        ArrayList<String> tags = new ArrayList<>(mUndoLog.tagsWithPrefix(prefix));
+
+        if (mSavepointThread == Thread.currentThread()) {
+            for (Savepoint savepoint : mSavepoints) {
+                if (savepoint.tag.startsWith(prefix))
+                    tags.add(savepoint.tag);
+            }
+        }
+
+        return rollbackOrRestore(tags);
+    }
+
+    /**
+     * Removes the tags which start with the prefix without restoring their queries, e.g. once an editing session is saved.
+     * The open savepoint tags are not removed, since they are kept or undone by their savepoints.
+     * @param prefix the prefix of the tags, e.g. "session:42:".
+     * @return the number of removed tags.
+     * @throws IllegalArgumentException if the prefix is null.
+     */
+    public int dropByPrefix(String prefix) {
+        if (prefix == null)
+            throw new IllegalArgumentException("The prefix must not be null.");
+
+        Backend db = beginImmediateTransaction();
+        try {
+            int tags = mUndoLog.removeWithPrefix(prefix);
+            db.setTransactionSuccessful();
+            return tags;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Restores all restoring SQL queries on the executor in the reverse order of their capture.
+     * The restoring queries are executed in slices, each in its own transaction,
+     * and the restore is stopped between slices once the future is cancelled.
+     * @param executor the executor which runs the restore.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     */
+    public Future<Integer> restoreAllAsync(Executor executor, OnRestoreProgressListener listener) {
+        return restoreTagsAsync(null, executor, null, listener);
+    }
+
+    /**
+     * Restores the queries to which each tag is mapped on the executor in the reverse order of their capture.
+     * @param tags an array of tags mapped to restoring SQL queries.
+     * @param executor the executor which runs the restore.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     * @see #restoreAllAsync(Executor, OnRestoreProgressListener)
+     */
+    public Future<Integer> restoreAsync(String[] tags, Executor executor, OnRestoreProgressListener listener) {
+        return restoreTagsAsync(Arrays.asList(tags), executor, null, listener);
+    }
+
+    /**
+     * Restores the queries to which each tag is mapped on the executor in the reverse order of their capture.
+     * @param tags a set of tags mapped to restoring SQL queries.
+     * @param executor the executor which runs the restore.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     * @see #restoreAllAsync(Executor, OnRestoreProgressListener)
+     */
+    public Future<Integer> restoreAsync(Set<String> tags, Executor executor, OnRestoreProgressListener listener) {
+        return restoreTagsAsync(new ArrayList<>(tags), executor, null, listener);
+    }
+
+    /**
+     * Restores the SQL queries to which the tag is mapped on the executor.
+     * @param tag the tag mapped to restoring queries.
+     * @param executor the executor which runs the restore.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     * @see #restoreAllAsync(Executor, OnRestoreProgressListener)
+     */
+    public Future<Integer> restoreAsync(String tag, Executor executor, OnRestoreProgressListener listener) {
+        return restoreTagsAsync(Collections.singletonList(tag), executor, null, listener);
+    }
+
+    /**
+     * Checks if the restore of the tag is redoable.
+     * @param tag possible restored tag.
+     * @return true if the tag is restored while the redo is enabled, and is not redone or captured since; false otherwise.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public boolean containsRedoTag(String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        return mUndoLog.getRedo(tag) != null;
+    }
+
+    /**
+     * Provides the redoable tags in the order of their restore.
+     * @return a new Set of the redoable tags.
+     */
+    public Set<String> redoTagSet() {
+        return mUndoLog.redoTags();
+    }
+
+    /**
+     * Redoes the restore of the tag, so the tag is mapped again to the restoring queries of the redone changes.
+     * The queries captured by the restore are executed in a single transaction while the triggers capture their inverse,
+     * so the tag is undone and redone without reading the affected rows by a cursor.
+     * @param tag the restored tag.
+     * @return the number of executed queries, or 0 if the tag is not redoable.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public int redo(String tag) {
+        if (tag == null)
+            throw new IllegalArgumentException("The tag must not be null.");
+
+        int redone_queries = 0;
+        HashMap<String, BackendStatement> statements = new HashMap<>();
+
+        Backend db = beginImmediateTransaction();
+        try {
+            UndoSegment segment = mUndoLog.getRedo(tag);
+
+            if (segment != null) {
+                mTriggers.begin(db, tag);
+                redone_queries = execute(db, segment, 0, segment.size(), statements);
+
+                // Capturing the tag again removes its redo
+                mUndoLog.put(tag, generateTriggeredQueries(db));
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+
+            for (BackendStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+
+        return redone_queries;
+    }
+
+    /**
+     * Submits the restore of the tags in slices to the executor.
+     * @param tags the tags mapped to restoring queries, or null for all captures.
+     * @param executor the executor which runs the restore.
+     * @param cancellation the signal to stop the restore between slices, or null.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     */
+    Future<Integer> restoreTagsAsync(final Iterable<String> tags,
+                                     Executor executor,
+                                     final Cancellation cancellation,
+                                     final OnRestoreProgressListener listener) {
+        if (executor == null)
+            throw new IllegalArgumentException("The executor must not be null.");
+
+        final FutureTask<?>[] future = new FutureTask<?>[1];
+
+        FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return restoreTagsInSlices(tags, future[0], cancellation, listener);
+            }
+        });
+
+        future[0] = task;
+        executor.execute(task);
+
+        return task;
+    }
+
+    /**
+     * Executes the restoring queries of the tags in slices of {@link #setRestoreSliceSize(int) the slice size},
+     * each in its own transaction, so other readers and writers access the database between slices.
+     * The tags are reserved before the first slice, so they are not restorable by other restores until they are restored.
+     * The restored entries are removed from the log in the transaction of their slice,
+     * so a stopped or failed restore keeps the tags with the restoring queries which are not executed yet.
+     * A tag which is evicted or captured again between slices is not restored anymore.
+     * @param tags the tags mapped to restoring queries, or null for all captures.
+     * @param future the future of the restore, whose cancellation stops the restore between slices.
+     * @param cancellation the signal to stop the restore between slices, or null.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the number of restored queries.
+     */
+    private int restoreTagsInSlices(Iterable<String> tags,
+                                    Future<?> future,
+                                    Cancellation cancellation,
+                                    OnRestoreProgressListener listener) {
+        OnMetricsListener metrics = mMetricsListener;
+        long start = nanoTime(metrics);
+
+        ArrayList<UndoTag> reservedTags;
+        int total_queries = 0;
+
+        // The number of reserved captures of each tag which are not restored yet
+        HashMap<String, Integer> pendingCaptures = new HashMap<>();
+
+        Backend db = beginImmediateTransaction();
+        try {
+            // Expired tags are not restorable
+            mUndoLog.purgeExpired();
+
+            reservedTags = tags == null ? mUndoLog.capturesAfter(Long.MIN_VALUE) : mUndoLog.captures(tags);
+            mUndoLog.acquire(reservedTags);
+
+            for (UndoTag tag : reservedTags) {
+                Integer pending = pendingCaptures.get(tag.name);
+                pendingCaptures.put(tag.name, pending == null ? 1 : pending + 1);
+                total_queries += tag.remaining();
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        int restored_queries = 0;
+        boolean redo = mRedoEnabled;
+        HashMap<String, BackendStatement> statements = new HashMap<>();
+
+        // The redo of each slice of each tag, in the order of the slices
+        HashMap<String, ArrayList<UndoSegment>> redoSlices = new HashMap<>();
+
+        try {
+            for (UndoTag tag : reservedTags) {
+                ArrayList<UndoSegment> slices = redoSlices.get(tag.name);
+
+                if (slices == null) {
+                    slices = new ArrayList<>();
+                    redoSlices.put(tag.name, slices);
+                }
+
+                while (true) {
+                    if (future.isCancelled())
+                        return restored_queries;
+
+                    if (cancellation != null)
+                        cancellation.throwIfCanceled();
+
+                    int slice;
+
+                    db = beginImmediateTransaction();
+                    try {
+                        if (redo)
+                            mTriggers.begin(db, tag.name);
+
+                        int remaining = tag.remaining();
+                        slice = restoreSlice(db, tag, mRestoreSliceSize, statements);
+
+                        if (redo) {
+                            slices.add(generateTriggeredQueries(db));
+
+                            // A tag which is only partly restored, e.g. by eviction, is not redoable
+                            if (slice > 0 && slice == remaining) {
+                                int pending = pendingCaptures.get(tag.name) - 1;
+                                pendingCaptures.put(tag.name, pending);
+
+                                if (pending == 0)
+                                    mUndoLog.putRedo(tag.name, concatReversed(slices));
+                            }
+                        }
+
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+
+                    if (slice == 0)
+                        break;
+
+                    restored_queries += slice;
+
+                    if (listener != null)
+                        listener.onRestoreProgress(restored_queries, total_queries);
+                }
+            }
+        } finally {
+            for (BackendStatement statement : statements.values()) {
+                statement.close();
+            }
+
+            for (UndoTag tag : reservedTags) {
+                mUndoLog.release(tag);
+            }
+        }
+
+        if (metrics != null)
+            metrics.onRestore(pendingCaptures.size(), restored_queries, System.nanoTime() - start, mUndoLog.estimateBytes());
+
+        return restored_queries;
+    }
+
+    /**
+     * Executes the next slice of restoring queries of a reserved capture and removes them from the log.
+     * The capture is restored only while it is the latest capture of its tag,
+     * so the earlier captures of the tag are restored after the later ones.
+     * @param db the database in which the transaction is begun.
+     * @param tag the reserved capture.
+     * @param sliceSize the maximum number of restoring queries to be executed.
+     * @param statements the compiled raw queries of the current restore.
+     * @return the number of executed queries, or 0 if the capture is restored, evicted or followed by another capture.
+     */
+    private int restoreSlice(Backend db, UndoTag tag, int sliceSize, HashMap<String, BackendStatement> statements) {
+        if (!mUndoLog.isMapped(tag))
+            return 0;
+
+        UndoSegment segment = mUndoLog.unpack(tag);
+        int count = Math.min(sliceSize, tag.remaining());
+
+        if (count == 0)
+            return 0;
+
+        if (segment.isSpilled()) {
+            // Streams the first restoring queries from the journal, as the restored ones are removed
+            UndoJournal journal = mUndoLog.journal();
+            UndoSegment chunk = new UndoSegment();
+            BackendCursor cursor = journal.query(tag.name, tag.sequence, count);
+
+            try {
+                while (journal.read(cursor, chunk)) {
+                    execute(db, chunk, 0, chunk.size(), statements);
+                }
+            } finally {
+                cursor.close();
+            }
+        } else {
+            execute(db, segment, tag.restored, tag.restored + count, statements);
+        }
+
+        mUndoLog.advance(tag, count);
+
+        return count;
+    }
+
+    /**
+     * Executes the restoring queries of the tags in a single transaction.
+     * The captures of the tags are restored in the reverse order of their capture, each tag from its latest capture.
+     * Once the coalescing is enabled, which it is not by default, the captures of all tags are added to a single {@link UndoPlan},
+     * which is executed after all captures are read.
+     * Each distinct SQL query is compiled once and reused for all of its parameters.
+     * The templates of the query cache stay compiled, other queries are released after restoring.
+     * If any restoring query fails, the transaction is rolled back and no tag is removed.
+     * @param tags the tags mapped to restoring queries, or null for the captures after the checkpoint.
+     * @param checkpoint the checkpoint of the restored captures, if tags is null.
+     * @return possible number of restored queries to which tags are mapped.
+     */
+    private int restoreTags(Iterable<String> tags, long checkpoint) {
+        OnMetricsListener metrics = mMetricsListener;
+        long start = nanoTime(metrics);
+
+        int restored_queries = 0;
+        boolean redo = mRedoEnabled;
+
+        // The redo of each capture is captured by its own execution, so a redoable restore is not coalesced
+        UndoPlan plan = mCoalescingEnabled && !redo ? new UndoPlan(mQueryCache) : null;
+
+        ArrayList<UndoTag> restoredTags;
+        // The redo of each capture of each tag, in the order of the restore
+        LinkedHashMap<String, ArrayList<UndoSegment>> redoSegments = new LinkedHashMap<>();
+        HashMap<String, BackendStatement> statements = new HashMap<>();
+
+        Backend db = beginImmediateTransaction();
+        try {
+            // Expired tags are not restorable
+            mUndoLog.purgeExpired();
+
+            UndoJournal journal = mUndoLog.journal();
+            restoredTags = tags == null ? mUndoLog.capturesAfter(checkpoint) : mUndoLog.captures(tags);
+
+            for (UndoTag tag : restoredTags) {
+                UndoSegment segment = mUndoLog.unpack(tag);
+
+                // The triggers capture the rows changed by the restore, which are the redo of the tag
+                if (redo)
+                    mTriggers.begin(db, tag.name);
+
+                if (segment.isSpilled()) {
+                    // Streams the restoring queries from the journal
+                    UndoSegment chunk = new UndoSegment();
+                    BackendCursor cursor = journal.query(tag.name, tag.sequence);
+
+                    try {
+                        while (journal.read(cursor, chunk)) {
+                            if (plan == null) {
+                                restored_queries += execute(db, chunk, 0, chunk.size(), statements);
+                            } else {
+                                // The plan keeps the chunk, so the next chunk is read into a new segment
+                                plan.add(chunk);
+                                chunk = new UndoSegment();
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                } else if (plan == null) {
+                    restored_queries += execute(db, segment, 0, segment.size(), statements);
+                } else {
+                    plan.add(segment);
+                }
+
+                if (journal != null)
+                    journal.remove(tag.name, tag.sequence);
+
+                ArrayList<UndoSegment> segments = redoSegments.get(tag.name);
+
+                if (segments == null) {
+                    segments = new ArrayList<>();
+                    redoSegments.put(tag.name, segments);
+                }
+
+                if (redo)
+                    segments.add(generateTriggeredQueries(db));
+            }
+
+            if (plan != null) {
+                UndoSegment coalesced = plan.segment();
+                restored_queries = execute(db, coalesced, 0, coalesced.size(), statements);
+            }
+
+            // Removes the captures in the transaction, so no other thread restores them again
+            for (UndoTag tag : restoredTags) {
+                mUndoLog.discard(tag);
+            }
+
+            if (redo) {
+                for (Map.Entry<String, ArrayList<UndoSegment>> entry : redoSegments.entrySet()) {
+                    mUndoLog.putRedo(entry.getKey(), concatReversed(entry.getValue()));
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+
+            for (BackendStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+
+        if (metrics != null)
+            metrics.onRestore(redoSegments.size(), restored_queries, System.nanoTime() - start, mUndoLog.estimateBytes());
+
+        return restored_queries;
+    }
+
+    /**
+     * Concatenates the segments in the reverse order of the list.
+     * @param segments the segments.
+     * @return the entries of the last segment, followed by the entries of the previous segments.
+     */
+    private static UndoSegment concatReversed(ArrayList<UndoSegment> segments) {
+        if (segments.size() == 1)
+            return segments.get(0);
+
+        UndoSegment segment = new UndoSegment();
+
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            UndoSegment slice = segments.get(i);
+
+            for (int j = 0; j < slice.size(); j++) {
+                segment.add(slice, j);
+            }
+        }
+
+        return segment;
+    }
+
+    /**
+     * Executes a range of restoring queries of a segment.
+     * @param db the database in which the transaction is begun.
+     * @param segment the segment of restoring queries.
+     * @param start the index of the first entry to be executed.
+     * @param end the index after the last entry to be executed.
+     * @param statements the compiled raw queries of the current restore.
+     * @return the number of executed queries.
+     */
+    private int execute(Backend db, UndoSegment segment, int start, int end,
+                        HashMap<String, BackendStatement> statements) {
+        for (int i = start; i < end; i++) {
+            RestoringQuery query = mQueryCache.query(segment.query(i));
+            BackendStatement statement = mQueryCache.statement(db, query);
+
+            if (statement == null)
+                statement = statements.get(query.sql);
+
+            if (statement == null) {
+                statement = db.compileStatement(query.sql);
+                statements.put(query.sql, statement);
+            }
+
+            bindParameters(statement, query, segment, i);
+            statement.execute();
+        }
+
+        return end - start;
+    }
+
+    /**
+     * Binds the parameters of a restoring query to the compiled statement.
+     * @param statement the compiled restoring query.
+     * @param query the template of the restoring query.
+     * @param segment the segment containing the entry.
+     * @param entry the index of the entry in the segment.
+     */
+    private static void bindParameters(BackendStatement statement, RestoringQuery query, UndoSegment segment, int entry) {
+        statement.clearBindings();
+
+        ValueBuffer values = segment.values();
+        int start = segment.valueStart(entry);
+        int end = segment.valueEnd(entry);
+
+        for (int i = start; i < end; i++) {
+            int index = i - start + 1;
+
+            switch (values.type(i)) {
+                case ValueBuffer.TYPE_INTEGER:
+                    statement.bindLong(index, values.getLong(i));
+                    break;
+                case ValueBuffer.TYPE_FLOAT:
+                    statement.bindDouble(index, values.getDouble(i));
+                    break;
+                case ValueBuffer.TYPE_TEXT:
+                    statement.bindString(index, values.getString(i));
+                    break;
+                case ValueBuffer.TYPE_BLOB:
+                    statement.bindBlob(index, values.getBlob(i));
+                    break;
+                default:
+                    statement.bindNull(index);
+                    break;
+            }
+        }
+
+        if (query.bindsRowid)
+            statement.bindLong(end - start + 1, segment.rowid(entry));
+    }
+
+    /**
+     * Releases the compiled statements and the triggers of the connection,
+     * to be called once the backend is reconnected to the database.
+     */
+    void reopened() {
+        mQueryCache.releaseStatements();
+        mTriggers.reset();
+        mShadows.reset();
+
+        if (mUndoLog.journal() != null)
+            mUndoLog.journal().release();
+    }
+
+    /**
+     * Releases the compiled statements and closes the backend.
+     * The open savepoint tags of the current thread are rolled back, as SQLite rolls back the transaction of a closed connection.
+     * @throws IllegalStateException if savepoint tags are open on another thread, whose transaction holds the write lock.
+     */
+    public void close() {
+        Thread savepointThread = mSavepointThread;
+
+        if (savepointThread == Thread.currentThread())
+            rollbackSavepoint(0);
+        else if (savepointThread != null)
+            throw new IllegalStateException("The savepoint tags of another thread are open.");
+
+        reopened();
+        mBackend.close();
+    }
+
+    /**
+     * An open savepoint tag.
+     */
+    private static final class Savepoint {
+
+        final String tag;
+
+        /**
+         * The number of kept rows changed by the connection when the savepoint was opened.
+         */
+        final long changes;
+
+        /**
+         * The checkpoint taken when the savepoint was opened.
+         */
+        final long sequence;
+
+        Savepoint(String tag, long changes, long sequence) {
+            this.tag = tag;
+            this.changes = changes;
+            this.sequence = sequence;
+        }
+    }
+
+}
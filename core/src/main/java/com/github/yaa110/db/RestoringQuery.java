@@ -0,0 +1,86 @@
+package com.github.yaa110.db;
+
+/**
+ * A restoring query template shared by all restoring queries of the same table and column set.
+ * The table and column names are encoded as ids of the dictionary of {@link RestoringQueryCache}.
+ */
+final class RestoringQuery {
+
+    /**
+     * "UPDATE table SET column = ?, ... WHERE rowid = ?"
+     */
+    static final int KIND_UPDATE = 0;
+
+    /**
+     * "INSERT OR REPLACE INTO table (column, ...) VALUES (?, ...)"
+     */
+    static final int KIND_REPLACE = 1;
+
+    /**
+     * "DELETE FROM table WHERE rowid = ?", or "DELETE FROM table WHERE key = ? AND ..." for a table WITHOUT ROWID.
+     */
+    static final int KIND_DELETE = 2;
+
+    /**
+     * Any other SQL query, e.g. the queries provided by setTagQueryTable.
+     */
+    static final int KIND_RAW = 3;
+
+    /**
+     * "DELETE FROM table WHERE rowid BETWEEN ? AND ?", whose last ROWID is the ROWID of the entry.
+     */
+    static final int KIND_DELETE_RANGE = 4;
+
+    /**
+     * "INSERT OR REPLACE INTO table (...) SELECT ... FROM shadow WHERE capture = ?", whose capture is the ROWID of the entry.
+     */
+    static final int KIND_SHADOW_RESTORE = 5;
+
+    /**
+     * "UPDATE table SET column = (SELECT column FROM shadow WHERE capture = ?1 AND ...) WHERE rowid IN (...)",
+     * whose capture is the ROWID of the entry.
+     */
+    static final int KIND_SHADOW_UPDATE = 6;
+
+    /**
+     * "DELETE FROM shadow WHERE capture = ?", whose capture is the ROWID of the entry.
+     */
+    static final int KIND_SHADOW_DELETE = 7;
+
+    /**
+     * The id of this template in the query cache.
+     */
+    final int id;
+
+    final int kind;
+
+    /**
+     * The SQL query to be compiled.
+     */
+    final String sql;
+
+    /**
+     * The dictionary id of the table name, or -1 for raw queries.
+     */
+    final int table;
+
+    /**
+     * The dictionary ids of the restored columns in the order of their parameters.
+     */
+    final int[] columns;
+
+    /**
+     * Determines if the ROWID of the entry is bound to the last parameter of the query.
+     */
+    final boolean bindsRowid;
+
+    RestoringQuery(int id, int kind, String sql, int table, int[] columns, boolean bindsRowid) {
+        this.id = id;
+        this.kind = kind;
+        this.sql = sql;
+        this.table = table;
+        this.columns = columns;
+        this.bindsRowid = bindsRowid;
+    }
+
+}
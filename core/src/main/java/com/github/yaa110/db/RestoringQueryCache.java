@@ -0,0 +1,433 @@
+package com.github.yaa110.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Caches the restoring query templates of each table and column set.
+ * All restoring queries generated for the same table and columns share a single template,
+ * and each template is compiled at most once while the database is open.
+ * Table and column names are dictionary-encoded, so the templates only hold their ids.
+ * The cache is guarded by its monitor, since templates are shared by all threads.
+ */
+final class RestoringQueryCache {
+
+    /**
+     * Maps the kind and table name to the templates of each column set.
+     */
+    private final HashMap<String, HashMap<List<String>, RestoringQuery>> mTemplates = new HashMap<>();
+
+    /**
+     * Maps the kind and SQL query of all templates to the template.
+     */
+    private final HashMap<String, RestoringQuery> mSqlQueries = new HashMap<>();
+
+    /**
+     * All templates by their id.
+     */
+    private final ArrayList<RestoringQuery> mQueries = new ArrayList<>();
+
+    /**
+     * The compiled statements of templates by their id, or null if a template is not compiled yet.
+     */
+    private final ArrayList<BackendStatement> mStatements = new ArrayList<>();
+
+    /**
+     * The dictionary of table and column names.
+     */
+    private final HashMap<String, Integer> mNameIds = new HashMap<>();
+    private final ArrayList<String> mNames = new ArrayList<>();
+
+    /**
+     * Provides the template of "UPDATE table SET column = ?, ... WHERE rowid = ?".
+     * @param table the table name.
+     * @param columns the columns to be restored.
+     * @param rowidColumn the ROWID column name of the table.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery update(String table, String[] columns, String rowidColumn) {
+        HashMap<List<String>, RestoringQuery> templates = templates(RestoringQuery.KIND_UPDATE, table);
+        List<String> key = Arrays.asList(columns);
+
+        RestoringQuery template = templates.get(key);
+
+        if (template == null) {
+            StringBuilder sql = new StringBuilder();
+            sql.append("UPDATE ");
+            sql.append(table);
+            sql.append(" SET ");
+
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) sql.append(", ");
+
+                sql.append(columns[i]);
+                sql.append(" = ?");
+            }
+
+            sql.append(" WHERE ");
+            sql.append(rowidColumn);
+            sql.append(" = ?");
+
+            template = template(RestoringQuery.KIND_UPDATE, sql.toString(), table, columns, true);
+            templates.put(Arrays.asList(columns.clone()), template);
+        }
+
+        return template;
+    }
+
+    /**
+     * Provides the template of "INSERT OR REPLACE INTO table (column, ...) VALUES (?, ...)".
+     * @param table the table name.
+     * @param columns the columns to be restored.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery replace(String table, String[] columns) {
+        HashMap<List<String>, RestoringQuery> templates = templates(RestoringQuery.KIND_REPLACE, table);
+        List<String> key = Arrays.asList(columns);
+
+        RestoringQuery template = templates.get(key);
+
+        if (template == null) {
+            StringBuilder sql_columns = new StringBuilder();
+            StringBuilder sql_values = new StringBuilder();
+
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sql_columns.append(", ");
+                    sql_values.append(", ");
+                }
+
+                sql_columns.append(columns[i]);
+                sql_values.append("?");
+            }
+
+            String sql = "INSERT OR REPLACE INTO " + table +
+                    " (" + sql_columns.toString() + ")" +
+                    " VALUES " +
+                    " (" + sql_values.toString() + ")";
+
+            template = template(RestoringQuery.KIND_REPLACE, sql, table, columns, false);
+            templates.put(Arrays.asList(columns.clone()), template);
+        }
+
+        return template;
+    }
+
+    /**
+     * Provides the template of "DELETE FROM table WHERE rowid = ?".
+     * @param table the table name.
+     * @param rowidColumn the ROWID column name of the table.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery delete(String table, String rowidColumn) {
+        HashMap<List<String>, RestoringQuery> templates = templates(RestoringQuery.KIND_DELETE, table);
+        List<String> key = Collections.singletonList(rowidColumn);
+
+        RestoringQuery template = templates.get(key);
+
+        if (template == null) {
+            String sql = "DELETE FROM " + table + " WHERE " + rowidColumn + " = ?";
+
+            template = template(RestoringQuery.KIND_DELETE, sql, table, new String[0], true);
+            templates.put(key, template);
+        }
+
+        return template;
+    }
+
+    /**
+     * Provides the template of "DELETE FROM table WHERE key = ? AND ...", whose values are the primary key of the row.
+     * @param table the table name of a table WITHOUT ROWID.
+     * @param primaryKey the columns of the primary key.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery deleteByKey(String table, String[] primaryKey) {
+        HashMap<List<String>, RestoringQuery> templates = templates(RestoringQuery.KIND_DELETE, table);
+        List<String> key = Arrays.asList(primaryKey);
+
+        RestoringQuery template = templates.get(key);
+
+        if (template == null) {
+            StringBuilder sql = new StringBuilder();
+            sql.append("DELETE FROM ");
+            sql.append(table);
+
+            for (int i = 0; i < primaryKey.length; i++) {
+                sql.append(i > 0 ? " AND " : " WHERE ");
+                sql.append(primaryKey[i]);
+                sql.append(" = ?");
+            }
+
+            template = template(RestoringQuery.KIND_DELETE, sql.toString(), table, new String[0], false);
+            templates.put(Arrays.asList(primaryKey.clone()), template);
+        }
+
+        return template;
+    }
+
+    /**
+     * Provides the template of "DELETE FROM table WHERE rowid BETWEEN ? AND ?".
+     * The first ROWID of the range is the value of the entry, and the last ROWID is the ROWID of the entry.
+     * @param table the table name.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery deleteRange(String table) {
+        HashMap<List<String>, RestoringQuery> templates = templates(RestoringQuery.KIND_DELETE_RANGE, table);
+        List<String> key = Collections.emptyList();
+
+        RestoringQuery template = templates.get(key);
+
+        if (template == null) {
+            String sql = "DELETE FROM " + table + " WHERE rowid BETWEEN ? AND ?";
+
+            template = template(RestoringQuery.KIND_DELETE_RANGE, sql, table, new String[0], true);
+            templates.put(key, template);
+        }
+
+        return template;
+    }
+
+    /**
+     * Provides the template of "INSERT OR REPLACE INTO table (...) SELECT ... FROM shadow WHERE capture = ?",
+     * which restores the rows of a capture from the shadow table.
+     * @param table the table name.
+     * @param columns the row columns of the table.
+     * @param shadowTable the shadow table name.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery shadowRestore(String table, String[] columns, String shadowTable) {
+        HashMap<List<String>, RestoringQuery> templates = templates(RestoringQuery.KIND_SHADOW_RESTORE, table);
+        List<String> key = Arrays.asList(columns);
+
+        RestoringQuery template = templates.get(key);
+
+        if (template == null) {
+            StringBuilder projection = new StringBuilder();
+
+            for (String column : columns) {
+                if (projection.length() > 0) projection.append(", ");
+
+                projection.append(column);
+            }
+
+            String sql = "INSERT OR REPLACE INTO " + table + " (" + projection + ") SELECT " + projection +
+                    " FROM " + shadowTable + " WHERE capture = ?";
+
+            template = template(RestoringQuery.KIND_SHADOW_RESTORE, sql, table, columns, true);
+            templates.put(Arrays.asList(columns.clone()), template);
+        }
+
+        return template;
+    }
+
+    /**
+     * Provides the template of "UPDATE table SET column = (SELECT column FROM shadow WHERE capture = ?1 AND ...) WHERE rowid IN (...)",
+     * which restores the updated columns of the rows of a capture from the shadow table.
+     * The capture is bound once to the numbered parameter, which all subqueries share.
+     * @param table the table name.
+     * @param columns the columns to be restored.
+     * @param rowidColumn the ROWID column name of the table, which is also a column of the shadow table.
+     * @param shadowTable the shadow table name.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery shadowUpdate(String table, String[] columns, String rowidColumn, String shadowTable) {
+        HashMap<List<String>, RestoringQuery> templates = templates(RestoringQuery.KIND_SHADOW_UPDATE, table);
+        List<String> key = Arrays.asList(columns);
+
+        RestoringQuery template = templates.get(key);
+
+        if (template == null) {
+            StringBuilder sql = new StringBuilder();
+            sql.append("UPDATE ");
+            sql.append(table);
+            sql.append(" SET ");
+
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) sql.append(", ");
+
+                sql.append(columns[i]);
+                sql.append(" = (SELECT ").append(columns[i]).append(" FROM ").append(shadowTable);
+                sql.append(" WHERE capture = ?1 AND ").append(rowidColumn);
+                sql.append(" = ").append(table).append(".").append(rowidColumn).append(")");
+            }
+
+            sql.append(" WHERE ").append(rowidColumn).append(" IN (SELECT ").append(rowidColumn);
+            sql.append(" FROM ").append(shadowTable).append(" WHERE capture = ?1)");
+
+            template = template(RestoringQuery.KIND_SHADOW_UPDATE, sql.toString(), table, columns, true);
+            templates.put(Arrays.asList(columns.clone()), template);
+        }
+
+        return template;
+    }
+
+    /**
+     * Provides the template of "DELETE FROM shadow WHERE capture = ?", which deletes the shadow rows of a capture.
+     * @param shadowTable the shadow table name.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery shadowDelete(String shadowTable) {
+        HashMap<List<String>, RestoringQuery> templates = templates(RestoringQuery.KIND_SHADOW_DELETE, shadowTable);
+        List<String> key = Collections.emptyList();
+
+        RestoringQuery template = templates.get(key);
+
+        if (template == null) {
+            String sql = "DELETE FROM " + shadowTable + " WHERE capture = ?";
+
+            template = template(RestoringQuery.KIND_SHADOW_DELETE, sql, shadowTable, new String[0], true);
+            templates.put(key, template);
+        }
+
+        return template;
+    }
+
+    /**
+     * Provides the template of a SQL query which is not generated by this cache.
+     * All parameters of a raw query are stored as values of its entries.
+     * @param sql the SQL query.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery raw(String sql) {
+        return template(RestoringQuery.KIND_RAW, sql, null, new String[0], false);
+    }
+
+    /**
+     * Provides the template of a SQL query of any kind, e.g. a template loaded from the journal.
+     * @param kind the kind of the query.
+     * @param sql the SQL query.
+     * @param table the table name, or null for raw queries.
+     * @param columns the restored columns.
+     * @param bindsRowid determines if the ROWID is bound to the last parameter of the query.
+     * @return the shared restoring query.
+     */
+    synchronized RestoringQuery template(int kind, String sql, String table, String[] columns, boolean bindsRowid) {
+        RestoringQuery template = mSqlQueries.get(kind + sql);
+
+        if (template == null)
+            template = register(kind, sql, table, columns, bindsRowid);
+
+        return template;
+    }
+
+    /**
+     * Provides the template of an id.
+     * @param id the id of the template.
+     * @return the template.
+     */
+    synchronized RestoringQuery query(int id) {
+        return mQueries.get(id);
+    }
+
+    /**
+     * Provides the number of templates, whose ids are below the number.
+     * @return the number of templates.
+     */
+    synchronized int size() {
+        return mQueries.size();
+    }
+
+    /**
+     * Provides the number of names in the dictionary, whose ids are below the number.
+     * @return the number of names.
+     */
+    synchronized int nameCount() {
+        return mNames.size();
+    }
+
+    /**
+     * Provides the table or column name of a dictionary id.
+     * @param id the dictionary id.
+     * @return the name.
+     */
+    synchronized String name(int id) {
+        return mNames.get(id);
+    }
+
+    /**
+     * Provides the compiled statement of a template.
+     * Raw queries are not kept compiled, since they are not shared by the captured entries.
+     * @param db the database to compile the template.
+     * @param query the restoring query.
+     * @return the compiled statement, or null if the query is a raw query.
+     */
+    synchronized BackendStatement statement(Backend db, RestoringQuery query) {
+        if (query.kind == RestoringQuery.KIND_RAW)
+            return null;
+
+        BackendStatement statement = mStatements.get(query.id);
+
+        if (statement == null) {
+            statement = db.compileStatement(query.sql);
+            mStatements.set(query.id, statement);
+        }
+
+        return statement;
+    }
+
+    /**
+     * Closes all compiled statements.
+     * This method must be called if the database is closed or replaced.
+     */
+    synchronized void releaseStatements() {
+        for (int i = 0; i < mStatements.size(); i++) {
+            BackendStatement statement = mStatements.get(i);
+
+            if (statement != null) {
+                statement.close();
+                mStatements.set(i, null);
+            }
+        }
+    }
+
+    private RestoringQuery register(int kind, String sql, String table, String[] columns, boolean bindsRowid) {
+        int[] columnIds = new int[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+            columnIds[i] = nameId(columns[i]);
+        }
+
+        RestoringQuery template = new RestoringQuery(
+                mQueries.size(),
+                kind,
+                sql,
+                table == null ? -1 : nameId(table),
+                columnIds,
+                bindsRowid
+        );
+
+        mQueries.add(template);
+        mStatements.add(null);
+        mSqlQueries.put(kind + sql, template);
+
+        return template;
+    }
+
+    private int nameId(String name) {
+        Integer id = mNameIds.get(name);
+
+        if (id == null) {
+            id = mNames.size();
+            mNames.add(name);
+            mNameIds.put(name, id);
+        }
+
+        return id;
+    }
+
+    private HashMap<List<String>, RestoringQuery> templates(int kind, String table) {
+        String key = kind + table;
+        HashMap<List<String>, RestoringQuery> templates = mTemplates.get(key);
+
+        if (templates == null) {
+            templates = new HashMap<>();
+            mTemplates.put(key, templates);
+        }
+
+        return templates;
+    }
+
+}
@@ -0,0 +1,571 @@
+package com.github.yaa110.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The metadata of a raw SQL statement which is needed to capture its restoring queries.
+ * A statement is classified by a single pass over its tokens, so keywords, placeholders and
+ * parentheses inside string literals, quoted identifiers and comments are ignored.
+ * The parameters are numbered as SQLite numbers them, so the arguments of the WHERE clause are mapped by number,
+ * whatever the position of the WHERE clause and the kind of its parameters is.
+ */
+final class SqlStatement {
+
+    static final int KIND_OTHER = 0;
+    static final int KIND_INSERT = 1;
+    static final int KIND_UPDATE = 2;
+    static final int KIND_DELETE = 3;
+
+    /**
+     * A statement which changes rows that cannot be captured from its table and WHERE clause,
+     * e.g. a REPLACE, an upsert or a statement with a WITH clause, so its changes are captured by triggers.
+     */
+    static final int KIND_WRITE = 4;
+
+    static final int[] NO_ARGS = new int[0];
+
+    private static final int STATE_START = 0;
+    private static final int STATE_INSERT = 1;
+    private static final int STATE_UPDATE = 2;
+    private static final int STATE_CONFLICT = 3;
+    private static final int STATE_FROM = 4;
+    private static final int STATE_TABLE = 5;
+    private static final int STATE_TABLE_READ = 6;
+    private static final int STATE_AFTER_TABLE = 7;
+    private static final int STATE_SET = 8;
+    private static final int STATE_WHERE = 9;
+    private static final int STATE_DONE = 10;
+    private static final int STATE_WITH = 11;
+
+    final int kind;
+
+    /**
+     * The target table, or null if the statement is not classified.
+     */
+    final String table;
+
+    /**
+     * The columns set by UPDATE statements or listed by INSERT statements, or null if the columns are unknown.
+     */
+    final String[] columns;
+
+    /**
+     * The WHERE clause of UPDATE and DELETE statements, whose parameters are anonymous, or null if there is no WHERE clause.
+     */
+    final String where;
+
+    /**
+     * The index of the argument of the statement which is bound to each parameter of the WHERE clause.
+     */
+    final int[] whereArgIndexes;
+
+    SqlStatement(int kind, String table, String[] columns, String where, int[] whereArgIndexes) {
+        this.kind = kind;
+        this.table = table;
+        this.columns = columns;
+        this.where = where;
+        this.whereArgIndexes = whereArgIndexes;
+    }
+
+    /**
+     * Provides the arguments of the WHERE clause.
+     * @param selectionArgs the arguments of the statement.
+     * @return the arguments of the WHERE clause, or null if the WHERE clause has no parameter.
+     * @throws IllegalArgumentException if a parameter of the WHERE clause has no argument.
+     */
+    String[] whereArgs(String[] selectionArgs) {
+        if (whereArgIndexes.length == 0 || selectionArgs == null)
+            return null;
+
+        String[] whereArgs = new String[whereArgIndexes.length];
+
+        for (int i = 0; i < whereArgs.length; i++) {
+            int index = whereArgIndexes[i];
+
+            if (index < 0 || index >= selectionArgs.length)
+                throw new IllegalArgumentException("The parameter " + (index + 1) + " of the SQL query has no argument.");
+
+            whereArgs[i] = selectionArgs[index];
+        }
+
+        return whereArgs;
+    }
+
+    /**
+     * Classifies the SQL statement by a single pass over its tokens.
+     * The insertions with a conflict resolution or an upsert, the updates which may replace rows or read other tables,
+     * and the statements with a WITH clause, which their WHERE clause may refer to, are classified as {@link #KIND_WRITE},
+     * since their changed rows cannot be captured from their table and WHERE clause.
+     * @param sql the SQL statement.
+     * @return the metadata of the statement, whose table is null if the statement is malformed.
+     */
+    static SqlStatement classify(String sql) {
+        int length = sql.length();
+
+        int kind = KIND_OTHER;
+        int state = STATE_START;
+        String table = null;
+
+        Numbering numbering = new Numbering();
+        ArrayList<int[]> whereParameters = new ArrayList<>();
+        int depth = 0;
+        int whereStart = -1;
+        int whereEnd = -1;
+
+        ArrayList<String> columns = new ArrayList<>();
+        boolean expectColumn = false;
+        boolean columnList = false;
+        boolean upsert = false;
+
+        int i = 0;
+
+        while (i < length) {
+            char c = sql.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+
+            if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i);
+                i = end == -1 ? length : end + 1;
+                continue;
+            }
+
+            if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end == -1 ? length : end + 2;
+                continue;
+            }
+
+            if (c == '\'') {
+                i = skipQuoted(sql, i, '\'');
+                if (state == STATE_TABLE_READ) state = STATE_AFTER_TABLE;
+                continue;
+            }
+
+            if (isParameter(sql, i)) {
+                int start = i;
+                i = skipParameter(sql, i);
+                int number = numbering.number(sql, start, i);
+
+                if (state == STATE_WHERE)
+                    whereParameters.add(new int[] {start, i, number - 1});
+
+                if (state == STATE_TABLE_READ) state = STATE_AFTER_TABLE;
+                continue;
+            }
+
+            String word = null;
+            int start = i;
+
+            if (c == '"' || c == '`' || c == '[') {
+                char close = c == '[' ? ']' : c;
+                i = skipQuoted(sql, i, close);
+                word = unquote(sql, start, i, close);
+            } else if (isIdentifierPart(c)) {
+                while (i < length && isIdentifierPart(sql.charAt(i))) i++;
+            } else {
+                // Punctuation
+                i++;
+
+                if (c == '(') {
+                    // A parenthesized list of columns is set to a row value, or follows the table of an insertion
+                    columnList = depth == 0 && ((state == STATE_SET && expectColumn) ||
+                            (kind == KIND_INSERT && (state == STATE_TABLE_READ || state == STATE_AFTER_TABLE)));
+                    expectColumn = false;
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                    columnList = false;
+                } else if (c == ',' && depth == 0 && state == STATE_SET) {
+                    expectColumn = true;
+                } else if (c == '.' && state == STATE_TABLE_READ) {
+                    // The table is qualified by its schema
+                    state = STATE_TABLE;
+                    continue;
+                } else if (c == ';' && depth == 0 && state == STATE_WHERE) {
+                    whereEnd = start;
+                    state = STATE_DONE;
+                    continue;
+                }
+
+                if (state == STATE_TABLE_READ) state = STATE_AFTER_TABLE;
+                continue;
+            }
+
+            if (depth != 0) {
+                if (columnList && depth == 1)
+                    columns.add(word != null ? word : sql.substring(start, i));
+
+                if (state == STATE_TABLE_READ) state = STATE_AFTER_TABLE;
+                continue;
+            }
+
+            switch (state) {
+                case STATE_START:
+                    if (isKeyword(sql, start, i, word, "INSERT")) {
+                        kind = KIND_INSERT;
+                        state = STATE_INSERT;
+                    } else if (isKeyword(sql, start, i, word, "UPDATE")) {
+                        kind = KIND_UPDATE;
+                        state = STATE_UPDATE;
+                    } else if (isKeyword(sql, start, i, word, "DELETE")) {
+                        kind = KIND_DELETE;
+                        state = STATE_FROM;
+                    } else if (isKeyword(sql, start, i, word, "REPLACE")) {
+                        return write();
+                    } else if (isKeyword(sql, start, i, word, "WITH")) {
+                        state = STATE_WITH;
+                    } else {
+                        return new SqlStatement(KIND_OTHER, null, null, null, NO_ARGS);
+                    }
+                    break;
+                case STATE_WITH:
+                    // The common table expressions are parenthesized, so the first statement keyword is the statement
+                    if (isKeyword(sql, start, i, word, "INSERT") || isKeyword(sql, start, i, word, "REPLACE") ||
+                            isKeyword(sql, start, i, word, "UPDATE") || isKeyword(sql, start, i, word, "DELETE")) {
+                        return write();
+                    } else if (isKeyword(sql, start, i, word, "SELECT") || isKeyword(sql, start, i, word, "VALUES")) {
+                        return new SqlStatement(KIND_OTHER, null, null, null, NO_ARGS);
+                    }
+                    break;
+                case STATE_INSERT:
+                    if (isKeyword(sql, start, i, word, "INTO")) {
+                        state = STATE_TABLE;
+                    } else if (isKeyword(sql, start, i, word, "OR")) {
+                        // A conflict resolution may replace rows, or insert fewer rows than the statement
+                        return write();
+                    } else {
+                        state = STATE_DONE;
+                    }
+                    break;
+                case STATE_UPDATE:
+                    if (isKeyword(sql, start, i, word, "OR")) {
+                        state = STATE_CONFLICT;
+                    } else {
+                        table = word != null ? word : sql.substring(start, i);
+                        state = STATE_TABLE_READ;
+                    }
+                    break;
+                case STATE_CONFLICT:
+                    if (isKeyword(sql, start, i, word, "REPLACE"))
+                        return write();
+
+                    state = STATE_TABLE;
+                    break;
+                case STATE_FROM:
+                    state = isKeyword(sql, start, i, word, "FROM") ? STATE_TABLE : STATE_DONE;
+                    break;
+                case STATE_TABLE:
+                    table = word != null ? word : sql.substring(start, i);
+                    state = STATE_TABLE_READ;
+                    break;
+                case STATE_TABLE_READ:
+                case STATE_AFTER_TABLE:
+                    if (kind == KIND_INSERT) {
+                        // The alias of the table is skipped, so the list of columns is read after it
+                        state = isKeyword(sql, start, i, word, "VALUES") || isKeyword(sql, start, i, word, "SELECT") ||
+                                isKeyword(sql, start, i, word, "DEFAULT") || isKeyword(sql, start, i, word, "WITH")
+                                ? STATE_DONE : STATE_AFTER_TABLE;
+                    } else if (isKeyword(sql, start, i, word, "WHERE")) {
+                        whereStart = i;
+                        state = STATE_WHERE;
+                    } else if (kind == KIND_UPDATE && isKeyword(sql, start, i, word, "SET")) {
+                        expectColumn = true;
+                        state = STATE_SET;
+                    } else {
+                        state = STATE_AFTER_TABLE;
+                    }
+                    break;
+                case STATE_SET:
+                    if (expectColumn) {
+                        columns.add(word != null ? word : sql.substring(start, i));
+                        expectColumn = false;
+                    } else if (isKeyword(sql, start, i, word, "WHERE")) {
+                        whereStart = i;
+                        state = STATE_WHERE;
+                    } else if (isKeyword(sql, start, i, word, "FROM")) {
+                        // The WHERE clause of an UPDATE ... FROM refers to the joined tables
+                        return write();
+                    } else if (isKeyword(sql, start, i, word, "ORDER") ||
+                            isKeyword(sql, start, i, word, "LIMIT") ||
+                            isKeyword(sql, start, i, word, "RETURNING")) {
+                        state = STATE_DONE;
+                    }
+                    break;
+                case STATE_WHERE:
+                    if (isKeyword(sql, start, i, word, "ORDER") ||
+                            isKeyword(sql, start, i, word, "LIMIT") ||
+                            isKeyword(sql, start, i, word, "RETURNING")) {
+                        whereEnd = start;
+                        state = STATE_DONE;
+                    }
+                    break;
+                case STATE_DONE:
+                    // The DO UPDATE clause of an upsert updates the conflicting rows
+                    if (kind == KIND_INSERT && upsert && isKeyword(sql, start, i, word, "UPDATE"))
+                        return write();
+
+                    upsert = kind == KIND_INSERT && isKeyword(sql, start, i, word, "DO");
+                    break;
+            }
+        }
+
+        if (state == STATE_WHERE)
+            whereEnd = length;
+
+        String[] setColumns = columns.isEmpty() ? null : columns.toArray(new String[columns.size()]);
+
+        if (whereStart == -1)
+            return new SqlStatement(kind, table, setColumns, null, NO_ARGS);
+
+        int[] whereArgIndexes = new int[whereParameters.size()];
+
+        for (int k = 0; k < whereArgIndexes.length; k++) {
+            whereArgIndexes[k] = whereParameters.get(k)[2];
+        }
+
+        return new SqlStatement(kind, table, setColumns, anonymize(sql, whereStart, whereEnd, whereParameters).trim(), whereArgIndexes);
+    }
+
+    /**
+     * Provides the metadata of a statement parsed by the parser, whose WHERE clause is the last clause of the statement.
+     * The named and numbered parameters of the WHERE clause are mapped by the numbering of the statement,
+     * and its anonymous parameters are the last parameters of the statement.
+     * @param kind the kind of the statement.
+     * @param table the target table.
+     * @param columns the columns set by UPDATE statements, or null if the columns are unknown.
+     * @param sql the SQL statement.
+     * @param where the WHERE clause printed by the parser, or null if there is no WHERE clause.
+     * @return the metadata of the statement, or null if the parameters of the WHERE clause cannot be mapped.
+     */
+    static SqlStatement parsed(int kind, String table, String[] columns, String sql, String where) {
+        if (where == null)
+            return new SqlStatement(kind, table, columns, null, NO_ARGS);
+
+        Numbering numbering = new Numbering();
+        boolean anonymous = true;
+
+        for (int[] parameter : parameters(sql)) {
+            numbering.number(sql, parameter[0], parameter[1]);
+            anonymous &= parameter[1] - parameter[0] == 1 && sql.charAt(parameter[0]) == '?';
+        }
+
+        ArrayList<int[]> whereParameters = parameters(where);
+        int[] whereArgIndexes = new int[whereParameters.size()];
+
+        for (int k = 0; k < whereArgIndexes.length; k++) {
+            int[] parameter = whereParameters.get(k);
+            int number = parameter[1] - parameter[0] == 1 && where.charAt(parameter[0]) == '?'
+                    ? (anonymous ? numbering.count - whereArgIndexes.length + k + 1 : 0)
+                    : numbering.find(where, parameter[0], parameter[1]);
+
+            if (number <= 0)
+                return null;
+
+            whereArgIndexes[k] = number - 1;
+        }
+
+        return new SqlStatement(kind, table, columns, anonymize(where, 0, where.length(), whereParameters), whereArgIndexes);
+    }
+
+    private static SqlStatement write() {
+        return new SqlStatement(KIND_WRITE, null, null, null, NO_ARGS);
+    }
+
+    /**
+     * Finds the parameters of a SQL fragment, skipping string literals, quoted identifiers and comments.
+     * @param sql the SQL fragment.
+     * @return the index of the first character and the index after the last character of each parameter.
+     */
+    private static ArrayList<int[]> parameters(String sql) {
+        ArrayList<int[]> parameters = new ArrayList<>();
+        int length = sql.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = sql.charAt(i);
+
+            if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i);
+                i = end == -1 ? length : end + 1;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end == -1 ? length : end + 2;
+            } else if (c == '\'' || c == '"' || c == '`') {
+                i = skipQuoted(sql, i, c);
+            } else if (c == '[') {
+                i = skipQuoted(sql, i, ']');
+            } else if (isParameter(sql, i)) {
+                int start = i;
+                i = skipParameter(sql, i);
+                parameters.add(new int[] {start, i});
+            } else if (isIdentifierPart(c)) {
+                while (i < length && isIdentifierPart(sql.charAt(i))) i++;
+            } else {
+                i++;
+            }
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Replaces the parameters of a WHERE clause with anonymous parameters, which are bound in the order of the clause.
+     * @param sql the SQL statement.
+     * @param start the index of the first character of the WHERE clause.
+     * @param end the index after the last character of the WHERE clause.
+     * @param parameters the parameters of the WHERE clause, in the order of the clause.
+     * @return the WHERE clause.
+     */
+    private static String anonymize(String sql, int start, int end, ArrayList<int[]> parameters) {
+        StringBuilder where = new StringBuilder(end - start);
+        int copied = start;
+
+        for (int[] parameter : parameters) {
+            where.append(sql, copied, parameter[0]).append('?');
+            copied = parameter[1];
+        }
+
+        return where.append(sql, copied, end).toString();
+    }
+
+    private static boolean isParameter(String sql, int i) {
+        char c = sql.charAt(i);
+        return c == '?' || ((c == ':' || c == '@' || c == '$') && i + 1 < sql.length() && isIdentifierPart(sql.charAt(i + 1)));
+    }
+
+    private static int skipParameter(String sql, int i) {
+        int length = sql.length();
+
+        if (sql.charAt(i++) == '?') {
+            while (i < length && Character.isDigit(sql.charAt(i))) i++;
+        } else {
+            while (i < length && isIdentifierPart(sql.charAt(i))) i++;
+        }
+
+        return i;
+    }
+
+    /**
+     * Quotes an identifier, e.g. the name of a savepoint, escaping its double quotes.
+     * @param identifier the identifier.
+     * @return the quoted identifier.
+     */
+    static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Checks if a token is a keyword, ignoring the case.
+     * @param sql the SQL statement.
+     * @param start the index of the first character of the token.
+     * @param end the index after the last character of the token.
+     * @param quoted the name of a quoted identifier, which is never a keyword, or null.
+     * @param keyword the upper case keyword.
+     * @return true if the token is the keyword; false otherwise.
+     */
+    private static boolean isKeyword(String sql, int start, int end, String quoted, String keyword) {
+        return quoted == null && end - start == keyword.length() && sql.regionMatches(true, start, keyword, 0, keyword.length());
+    }
+
+    /**
+     * Skips a quoted literal or identifier, in which the closing quote is escaped by doubling it.
+     * @param sql the SQL statement.
+     * @param start the index of the opening quote.
+     * @param close the closing quote.
+     * @return the index after the closing quote.
+     */
+    private static int skipQuoted(String sql, int start, char close) {
+        int i = start + 1;
+
+        while (true) {
+            int end = sql.indexOf(close, i);
+
+            if (end == -1)
+                return sql.length();
+
+            if (close != ']' && end + 1 < sql.length() && sql.charAt(end + 1) == close) {
+                i = end + 2;
+            } else {
+                return end + 1;
+            }
+        }
+    }
+
+    /**
+     * Numbers the parameters of a statement as SQLite does: "?" takes the number after the greatest number,
+     * "?NNN" takes the number NNN, and a named parameter takes the number of its first occurrence.
+     */
+    private static final class Numbering {
+
+        private final HashMap<String, Integer> mNames = new HashMap<>();
+
+        /**
+         * The greatest number of the parameters, which is the number of arguments of the statement.
+         */
+        int count = 0;
+
+        /**
+         * Numbers the next parameter of the statement.
+         * @param sql the SQL statement.
+         * @param start the index of the first character of the parameter.
+         * @param end the index after the last character of the parameter.
+         * @return the number of the parameter, or 0 if the number is invalid.
+         */
+        int number(String sql, int start, int end) {
+            if (sql.charAt(start) == '?') {
+                if (end - start == 1)
+                    return ++count;
+
+                int number = end - start > 6 ? 0 : Integer.parseInt(sql.substring(start + 1, end));
+                count = Math.max(count, number);
+                return number;
+            }
+
+            String name = sql.substring(start, end);
+            Integer number = mNames.get(name);
+
+            if (number == null) {
+                number = ++count;
+                mNames.put(name, number);
+            }
+
+            return number;
+        }
+
+        /**
+         * Finds the number of a numbered or named parameter of the statement.
+         * @return the number, or 0 if the statement has no such parameter.
+         */
+        int find(String sql, int start, int end) {
+            if (sql.charAt(start) == '?') {
+                int number = end - start > 6 ? 0 : Integer.parseInt(sql.substring(start + 1, end));
+                return number <= count ? number : 0;
+            }
+
+            Integer number = mNames.get(sql.substring(start, end));
+            return number == null ? 0 : number;
+        }
+
+    }
+
+    private static String unquote(String sql, int start, int end, char close) {
+        int last = end > start + 1 && sql.charAt(end - 1) == close ? end - 1 : end;
+        String name = sql.substring(start + 1, last);
+
+        if (close == ']')
+            return name;
+
+        String quote = String.valueOf(close);
+        return name.replace(quote + quote, quote);
+    }
+
+}
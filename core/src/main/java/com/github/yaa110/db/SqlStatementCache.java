@@ -0,0 +1,136 @@
+package com.github.yaa110.db;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.delete.Delete;
+import net.sf.jsqlparser.statement.insert.Insert;
+import net.sf.jsqlparser.statement.update.Update;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the metadata of the most recently used raw SQL statements by their text.
+ * A statement is classified by {@link SqlStatement#classify(String) classify} once,
+ * and {@link CCJSqlParserUtil#parse(String) parse} is only used for statements which cannot be classified.
+ */
+final class SqlStatementCache {
+
+    /**
+     * The maximum number of cached statements.
+     */
+    static final int CAPACITY = 64;
+
+    private final LinkedHashMap<String, SqlStatement> mStatements =
+            new LinkedHashMap<String, SqlStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SqlStatement> eldest) {
+                    return size() > CAPACITY;
+                }
+            };
+
+    /**
+     * Determines if the metadata of the SQL statement is cached, without changing the order of recent use.
+     * @param sql the SQL statement.
+     * @return true if the statement is cached.
+     */
+    boolean contains(String sql) {
+        synchronized (mStatements) {
+            return mStatements.containsKey(sql);
+        }
+    }
+
+    /**
+     * Provides the metadata of the SQL statement.
+     * @param sql the SQL statement.
+     * @return the metadata of the statement.
+     * @throws JSQLParserException if the statement cannot be classified and parsed.
+     */
+    SqlStatement get(String sql) throws JSQLParserException {
+        SqlStatement statement;
+
+        synchronized (mStatements) {
+            statement = mStatements.get(sql);
+        }
+
+        if (statement == null) {
+            statement = SqlStatement.classify(sql);
+
+            if (statement.kind != SqlStatement.KIND_OTHER && statement.kind != SqlStatement.KIND_WRITE && statement.table == null)
+                statement = parse(sql);
+
+            synchronized (mStatements) {
+                mStatements.put(sql, statement);
+            }
+        }
+
+        return statement;
+    }
+
+    /**
+     * Provides the metadata of a SQL statement which cannot be classified, using the parser.
+     * @param sql the SQL statement.
+     * @return the metadata of the statement.
+     * @throws JSQLParserException if the statement cannot be parsed, or the parameters of its WHERE clause cannot be mapped.
+     */
+    private static SqlStatement parse(String sql) throws JSQLParserException {
+        Statement statement = CCJSqlParserUtil.parse(sql);
+
+        int kind;
+        String table;
+        String[] columns = null;
+        Expression where;
+
+        if (statement instanceof Update) {
+            Update updateStatement = (Update) statement;
+            kind = SqlStatement.KIND_UPDATE;
+            table = updateStatement.getTables().get(0).getName();
+            where = updateStatement.getWhere();
+
+            columns = names(updateStatement.getColumns());
+        } else if (statement instanceof Delete) {
+            Delete deleteStatement = (Delete) statement;
+            kind = SqlStatement.KIND_DELETE;
+            table = deleteStatement.getTable().getName();
+            where = deleteStatement.getWhere();
+        } else if (statement instanceof Insert) {
+            Insert insertStatement = (Insert) statement;
+            kind = SqlStatement.KIND_INSERT;
+            table = insertStatement.getTable().getName();
+            where = null;
+            columns = names(insertStatement.getColumns());
+        } else {
+            return new SqlStatement(SqlStatement.KIND_OTHER, null, null, null, SqlStatement.NO_ARGS);
+        }
+
+        SqlStatement parsed = SqlStatement.parsed(kind, table, columns, sql, where == null ? null : where.toString());
+
+        if (parsed == null)
+            throw new JSQLParserException("The parameters of the WHERE clause cannot be mapped to the arguments: " + sql);
+
+        return parsed;
+    }
+
+    /**
+     * Provides the names of parsed columns.
+     * @param columns the parsed columns, or null.
+     * @return the names of the columns, or null if there is no column.
+     */
+    private static String[] names(List<Column> columns) {
+        if (columns == null || columns.isEmpty())
+            return null;
+
+        String[] names = new String[columns.size()];
+
+        for (int i = 0; i < names.length; i++) {
+            names[i] = columns.get(i).getColumnName();
+        }
+
+        return names;
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.github.yaa110.db;
+
+import java.util.Arrays;
+
+/**
+ * The metadata of a table read by PRAGMA table_info: its columns, its primary key and the column which identifies its rows.
+ * A table WITHOUT ROWID is identified by its primary key, which may span several columns,
+ * so its changes are captured by the triggers of {@link UndoTriggers} whatever the capture mode is.
+ */
+final class TableInfo {
+
+    /**
+     * The hidden ROWID of a table whose primary key is not an INTEGER PRIMARY KEY.
+     */
+    static final String ROWID = "rowid";
+
+    final String name;
+
+    /**
+     * The declared columns in the order of the table, or an empty array if the table does not exist.
+     */
+    final String[] columns;
+
+    /**
+     * The columns of the primary key in the order of the key.
+     */
+    final String[] primaryKey;
+
+    /**
+     * The ROWID column: the INTEGER PRIMARY KEY, the column of the ROWID map or {@link #ROWID},
+     * or null if the table is WITHOUT ROWID.
+     */
+    final String rowidColumn;
+
+    /**
+     * The columns of a captured row, which are the declared columns followed by the hidden ROWID if the table has one.
+     */
+    final String[] rowColumns;
+
+    /**
+     * The row columns separated by commas, which are selected instead of * by the captures.
+     */
+    final String projection;
+
+    TableInfo(String name, String[] columns, String[] primaryKey, String rowidColumn) {
+        this.name = name;
+        this.columns = columns;
+        this.primaryKey = primaryKey;
+        this.rowidColumn = rowidColumn;
+
+        if (rowidColumn != null && !Arrays.asList(columns).contains(rowidColumn)) {
+            rowColumns = Arrays.copyOf(columns, columns.length + 1);
+            rowColumns[columns.length] = rowidColumn;
+        } else {
+            rowColumns = columns;
+        }
+
+        StringBuilder projection = new StringBuilder();
+
+        for (String column : rowColumns) {
+            if (projection.length() > 0) projection.append(", ");
+
+            projection.append(column);
+        }
+
+        this.projection = projection.toString();
+    }
+
+    /**
+     * Determines if the rows of the table are identified by their ROWID.
+     * @return true if the table has a ROWID; false if the table is WITHOUT ROWID.
+     */
+    boolean hasRowid() {
+        return rowidColumn != null;
+    }
+
+    /**
+     * Determines if an insertion may set the ROWID of its rows, rather than leave it to SQLite.
+     * An insertion without a list of columns sets every declared column, which includes an INTEGER PRIMARY KEY.
+     * @param insertColumns the columns listed by the insertion, or null if it lists no column.
+     * @return true if the insertion may set the ROWID; false otherwise.
+     */
+    boolean setsRowid(String[] insertColumns) {
+        if (insertColumns == null)
+            return rowColumns == columns;
+
+        for (String column : insertColumns) {
+            if (column.equalsIgnoreCase(rowidColumn) || column.equalsIgnoreCase(ROWID) ||
+                    column.equalsIgnoreCase("oid") || column.equalsIgnoreCase("_rowid_"))
+                return true;
+        }
+
+        return false;
+    }
+
+}
@@ -0,0 +1,261 @@
+package com.github.yaa110.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Caches the {@link TableInfo} of each table, which is read once for each version of the schema.
+ * Each lookup reads PRAGMA schema_version, which is kept in the header of the database,
+ * and the cache is cleared once the version changes, e.g. by a migration which adds a column.
+ * The cache is guarded by its monitor, since the tables are shared by all threads.
+ */
+final class TableInfoCache {
+
+    /**
+     * Maps the table name to its ROWID column name, or null if all tables of the database are captured.
+     */
+    private final Map<String, String> mTableRowid;
+
+    private final HashMap<String, TableInfo> mTables = new HashMap<>();
+
+    /**
+     * The captured tables, or null if they are not read for the current schema version yet.
+     */
+    private String[] mTableNames = null;
+
+    private long mSchemaVersion = Long.MIN_VALUE;
+
+    /**
+     * @param tableRowid maps the table name to its ROWID column name, where a null column is discovered,
+     *                   or null to capture all tables of the database.
+     */
+    TableInfoCache(Map<String, String> tableRowid) {
+        mTableRowid = tableRowid;
+    }
+
+    /**
+     * Reads the schema version and clears the cache if the schema has changed since the last lookup.
+     * @param db the database in which the transaction is begun.
+     * @return the schema version.
+     */
+    synchronized long validate(Backend db) {
+        long version;
+        BackendCursor cursor = db.query("PRAGMA schema_version", null);
+
+        try {
+            version = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+
+        if (version != mSchemaVersion) {
+            mTables.clear();
+            mTableNames = null;
+            mSchemaVersion = version;
+        }
+
+        return version;
+    }
+
+    /**
+     * Provides the metadata of a table.
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @return the metadata, whose columns are empty if the table does not exist.
+     */
+    synchronized TableInfo get(Backend db, String table) {
+        validate(db);
+
+        TableInfo info = mTables.get(table);
+
+        if (info == null) {
+            info = read(db, table);
+            mTables.put(table, info);
+        }
+
+        return info;
+    }
+
+    /**
+     * Provides the tables whose changes are captured, which are the tables of the ROWID map if it is provided.
+     * Otherwise all tables of the database are captured, except the internal tables of SQLite and of the undo log.
+     * @param db the database in which the transaction is begun.
+     * @return the table names.
+     */
+    synchronized String[] tables(Backend db) {
+        validate(db);
+
+        if (mTableNames == null) {
+            if (mTableRowid != null) {
+                mTableNames = mTableRowid.keySet().toArray(new String[mTableRowid.size()]);
+            } else {
+                ArrayList<String> tables = new ArrayList<>();
+                BackendCursor cursor = db.query(
+                        "SELECT name FROM sqlite_master WHERE type = 'table'" +
+                                " AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\' AND name NOT LIKE 'restorable\\_undo\\_%' ESCAPE '\\'",
+                        null
+                );
+
+                try {
+                    while (cursor.moveToNext()) {
+                        tables.add(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                mTableNames = tables.toArray(new String[tables.size()]);
+            }
+        }
+
+        return mTableNames;
+    }
+
+    private TableInfo read(Backend db, String table) {
+        ArrayList<String> columns = new ArrayList<>();
+
+        // Orders the columns of the primary key by their position in the key
+        TreeMap<Integer, String> primaryKey = new TreeMap<>();
+        String integerKey = null;
+
+        BackendCursor cursor = db.query("PRAGMA table_info(" + table + ")", null);
+
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            int typeIndex = cursor.getColumnIndex("type");
+            int pkIndex = cursor.getColumnIndex("pk");
+
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(nameIndex);
+                int pk = cursor.getInt(pkIndex);
+
+                columns.add(name);
+
+                if (pk > 0) {
+                    primaryKey.put(pk, name);
+
+                    String type = cursor.getString(typeIndex);
+
+                    if (type != null && type.trim().equalsIgnoreCase("INTEGER"))
+                        integerKey = name;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        String rowidColumn = mTableRowid == null ? null : mTableRowid.get(table);
+
+        if (!columns.isEmpty() && isWithoutRowid(db, table)) {
+            rowidColumn = null;
+        } else if (rowidColumn == null) {
+            // Only a single INTEGER PRIMARY KEY column is an alias of the ROWID
+            rowidColumn = primaryKey.size() == 1 && integerKey != null && !hasPrimaryKeyIndex(db, table) ? integerKey : TableInfo.ROWID;
+        }
+
+        return new TableInfo(
+                table,
+                columns.toArray(new String[columns.size()]),
+                primaryKey.values().toArray(new String[primaryKey.size()]),
+                rowidColumn
+        );
+    }
+
+    /**
+     * Determines if SQLite indexes the primary key of the table, so its INTEGER PRIMARY KEY is not an alias of the ROWID,
+     * e.g. of a column declared INTEGER PRIMARY KEY DESC.
+     * The index of the primary key is found by its origin, or by the name of the automatic indexes on versions of SQLite
+     * which do not report the origin, in which case an automatic index of a UNIQUE constraint falls back to the ROWID as well.
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @return true if the primary key is indexed; false otherwise.
+     */
+    private static boolean hasPrimaryKeyIndex(Backend db, String table) {
+        BackendCursor cursor = db.query("PRAGMA index_list(" + table + ")", null);
+
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            int originIndex = cursor.getColumnIndex("origin");
+
+            while (cursor.moveToNext()) {
+                boolean primaryKey = originIndex != -1
+                        ? "pk".equals(cursor.getString(originIndex))
+                        : cursor.getString(nameIndex).startsWith("sqlite_autoindex_");
+
+                if (primaryKey)
+                    return true;
+            }
+
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Determines if the table is declared WITHOUT ROWID, which is one of the table options after its column definitions,
+     * e.g. "WITHOUT ROWID, STRICT".
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @return true if the table has no ROWID; false otherwise.
+     */
+    private static boolean isWithoutRowid(Backend db, String table) {
+        BackendCursor cursor = db.query(
+                "SELECT sql FROM sqlite_master WHERE type = 'table' AND name = ? COLLATE NOCASE",
+                new String[] {table}
+        );
+
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0))
+                return false;
+
+            for (String option : tableOptions(cursor.getString(0)).split(",")) {
+                if (option.replaceAll("\\s+", " ").trim().equalsIgnoreCase("WITHOUT ROWID"))
+                    return true;
+            }
+
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Provides the table options of a CREATE TABLE statement, which follow the parenthesis closing its column definitions.
+     * The parentheses in literals, quoted identifiers and comments are skipped, and the comments are removed from the options.
+     * @param sql the CREATE TABLE statement.
+     * @return the table options, or an empty string if there is none.
+     */
+    private static String tableOptions(String sql) {
+        int length = sql.length();
+        int depth = 0;
+        int i = 0;
+
+        while (i < length) {
+            char c = sql.charAt(i);
+
+            if (c == '\'' || c == '"' || c == '`' || c == '[') {
+                int end = sql.indexOf(c == '[' ? ']' : c, i + 1);
+                i = end == -1 ? length : end + 1;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i);
+                i = end == -1 ? length : end + 1;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end == -1 ? length : end + 2;
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')' && --depth == 0) {
+                return sql.substring(i + 1).replaceAll("(?s)--[^\n]*|/\\*.*?(\\*/|$)|;", " ");
+            } else {
+                i++;
+            }
+        }
+
+        return "";
+    }
+
+}
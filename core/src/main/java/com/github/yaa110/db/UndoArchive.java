@@ -0,0 +1,639 @@
+package com.github.yaa110.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Writes and reads the undo log in a versioned binary format.
+ * The archive begins with its magic number and version, the dictionary of table and column names
+ * and the templates of the restoring queries, followed by the captures in the order of their capture.
+ * Each capture is its tag, its time to live, its number of entries and the length of its encoded entries,
+ * so the entries are kept encoded while the archive is read and decoded on their first restore.
+ * Each entry is the varint index of its template, the zigzag varint delta of its ROWID from the previous ROWID of the capture,
+ * and its values encoded like the values of {@link UndoCodec}, whose text values are written from the characters of the {@link ValueBuffer}.
+ * An archive is either written to or read from a channel, through a buffer of {@link #BUFFER_SIZE} bytes.
+ */
+final class UndoArchive {
+
+    /**
+     * The first bytes of an archive.
+     */
+    static final byte[] MAGIC = {'U', 'N', 'D', 'O'};
+
+    /**
+     * The version of the format written by this class.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The number of bytes buffered before they are written to the channel, or read from the channel at once.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The tag reference which ends the captures of an archive.
+     */
+    private static final int TAG_END = 0;
+
+    /**
+     * The tag reference which is followed by the name of a tag not written yet.
+     */
+    private static final int TAG_NEW = 1;
+
+    private final RestoringQueryCache mQueryCache;
+
+    private final WritableByteChannel mOutput;
+    private final ReadableByteChannel mInputChannel;
+    private final ByteBuffer mInput;
+
+    /**
+     * The header of the archive or of a capture, and the entries of the capture being written.
+     */
+    private final Sink mHeader = new Sink();
+    private final Sink mEntries = new Sink();
+
+    private long mWritten = 0;
+    private int mQueryCount = 0;
+    private int mEntryCount = 0;
+    private long mLastRowid = 0;
+
+    /**
+     * The indexes of written tags, or the names of read tags in the order of their first capture.
+     */
+    private final HashMap<String, Integer> mTagIndexes = new HashMap<>();
+    private final ArrayList<String> mTagNames = new ArrayList<>();
+
+    /**
+     * The templates of the query indexes of the archive being read.
+     */
+    private RestoringQuery[] mQueries = null;
+
+    private String mCaptureTag = null;
+    private long mCaptureTtl = 0;
+
+    /**
+     * Constructs an archive to be written to the channel.
+     * @param queryCache the templates of the written entries.
+     * @param output the channel to be written.
+     */
+    UndoArchive(RestoringQueryCache queryCache, WritableByteChannel output) {
+        mQueryCache = queryCache;
+        mOutput = output;
+        mInputChannel = null;
+        mInput = null;
+    }
+
+    /**
+     * Constructs an archive to be read from a buffer, which is refilled from the channel if the channel is provided.
+     * @param queryCache the cache to which the templates of the archive are added.
+     * @param input the buffer positioned at the beginning of the archive.
+     * @param inputChannel the channel from which the buffer is refilled, or null if the buffer holds the whole archive.
+     */
+    UndoArchive(RestoringQueryCache queryCache, ByteBuffer input, ReadableByteChannel inputChannel) {
+        mQueryCache = queryCache;
+        mOutput = null;
+        mInputChannel = inputChannel;
+        mInput = input;
+    }
+
+    /**
+     * Writes the magic number, the version, the dictionary of names and all templates of the query cache.
+     * @throws IOException if writing to the channel fails.
+     */
+    void writeHeader() throws IOException {
+        mHeader.writeBytes(MAGIC, 0, MAGIC.length);
+        mHeader.writeVarint(VERSION);
+
+        int nameCount = mQueryCache.nameCount();
+        mHeader.writeVarint(nameCount);
+
+        for (int i = 0; i < nameCount; i++) {
+            mHeader.writeString(mQueryCache.name(i));
+        }
+
+        mQueryCount = mQueryCache.size();
+        mHeader.writeVarint(mQueryCount);
+
+        for (int i = 0; i < mQueryCount; i++) {
+            RestoringQuery query = mQueryCache.query(i);
+
+            mHeader.writeByte(query.kind);
+            mHeader.writeByte(query.bindsRowid ? 1 : 0);
+            mHeader.writeVarint(query.table + 1);
+            mHeader.writeVarint(query.columns.length);
+
+            for (int column : query.columns) {
+                mHeader.writeVarint(column);
+            }
+
+            mHeader.writeString(query.sql);
+        }
+
+        flush(false);
+    }
+
+    /**
+     * Begins a capture, whose entries are added by {@link #addEntries(UndoSegment, int, int) addEntries}.
+     * @param tag the tag of the capture.
+     * @param ttl the time to live of the capture in milliseconds, or 0 if the capture does not expire.
+     */
+    void beginCapture(String tag, long ttl) {
+        Integer index = mTagIndexes.get(tag);
+
+        if (index == null) {
+            mTagIndexes.put(tag, mTagIndexes.size());
+            mHeader.writeVarint(TAG_NEW);
+            mHeader.writeString(tag);
+        } else {
+            mHeader.writeVarint(index + 2);
+        }
+
+        mHeader.writeVarint(ttl);
+
+        mEntryCount = 0;
+        mLastRowid = 0;
+        mEntries.clear();
+    }
+
+    /**
+     * Adds a range of entries to the capture.
+     * @param segment the segment of the entries, whose entries are in the heap.
+     * @param start the index of the first entry.
+     * @param end the index after the last entry.
+     */
+    void addEntries(UndoSegment segment, int start, int end) {
+        ValueBuffer values = segment.values();
+
+        for (int i = start; i < end; i++) {
+            int query = segment.query(i);
+
+            if (query >= mQueryCount)
+                throw new IllegalStateException("The query " + query + " is not written to the archive.");
+
+            long rowid = segment.rowid(i);
+
+            if (rowid == UndoSegment.NO_ROWID) {
+                mEntries.writeVarint((long) query << 1);
+            } else {
+                mEntries.writeVarint(((long) query << 1) | 1);
+                mEntries.writeVarint(UndoCodec.zigzag(rowid - mLastRowid));
+                mLastRowid = rowid;
+            }
+
+            int valueStart = segment.valueStart(i);
+            int valueEnd = segment.valueEnd(i);
+            mEntries.writeVarint(valueEnd - valueStart);
+
+            for (int j = valueStart; j < valueEnd; j++) {
+                byte type = values.type(j);
+                mEntries.writeByte(type);
+
+                switch (type) {
+                    case ValueBuffer.TYPE_INTEGER:
+                        mEntries.writeVarint(UndoCodec.zigzag(values.getLong(j)));
+                        break;
+                    case ValueBuffer.TYPE_FLOAT:
+                        mEntries.writeFixed64(Double.doubleToRawLongBits(values.getDouble(j)));
+                        break;
+                    case ValueBuffer.TYPE_TEXT:
+                        mEntries.writeUtf8(values.chars(), values.offset(j), values.length(j));
+                        break;
+                    case ValueBuffer.TYPE_BLOB:
+                        mEntries.writeVarint(values.length(j));
+                        mEntries.writeBytes(values.bytes(), values.offset(j), values.length(j));
+                        break;
+                }
+            }
+
+            mEntryCount++;
+        }
+    }
+
+    /**
+     * Ends the capture, so its header and entries are written.
+     * @throws IOException if writing to the channel fails.
+     */
+    void endCapture() throws IOException {
+        mHeader.writeVarint(mEntryCount);
+        mHeader.writeVarint(mEntries.size);
+        mHeader.writeBytes(mEntries.data, 0, mEntries.size);
+        mEntries.clear();
+
+        flush(false);
+    }
+
+    /**
+     * Ends the archive and writes the buffered bytes to the channel.
+     * @return the number of bytes of the archive.
+     * @throws IOException if writing to the channel fails.
+     */
+    long finish() throws IOException {
+        mHeader.writeVarint(TAG_END);
+        flush(true);
+
+        return mWritten;
+    }
+
+    /**
+     * Reads the magic number, the version, the dictionary of names and the templates,
+     * which are added to the query cache.
+     * @throws IOException if reading from the channel fails, or the archive is not of a supported version.
+     */
+    void readHeader() throws IOException {
+        for (byte magic : MAGIC) {
+            if (readByte() != magic)
+                throw new IOException("The data is not an undo log archive.");
+        }
+
+        long version = readVarint();
+
+        if (version != VERSION)
+            throw new IOException("The undo log archive version " + version + " is not supported.");
+
+        String[] names = new String[readCount()];
+
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readString();
+        }
+
+        mQueries = new RestoringQuery[readCount()];
+
+        for (int i = 0; i < mQueries.length; i++) {
+            int kind = readByte();
+            boolean bindsRowid = readByte() != 0;
+            int table = readCount() - 1;
+            String[] columns = new String[readCount()];
+
+            for (int j = 0; j < columns.length; j++) {
+                columns[j] = name(names, readCount());
+            }
+
+            mQueries[i] = mQueryCache.template(
+                    kind,
+                    readString(),
+                    table == -1 ? null : name(names, table),
+                    columns,
+                    bindsRowid
+            );
+        }
+    }
+
+    /**
+     * Reads the next capture, whose entries stay encoded until the segment is unpacked.
+     * The tag and the time to live of the capture are provided by {@link #captureTag()} and {@link #captureTtl()}.
+     * @return the packed segment of the capture, or null if the archive has no more captures.
+     * @throws IOException if reading from the channel fails, or the archive is malformed.
+     */
+    UndoSegment readCapture() throws IOException {
+        int reference = readCount();
+
+        if (reference == TAG_END)
+            return null;
+
+        if (reference == TAG_NEW) {
+            mCaptureTag = readString();
+            mTagNames.add(mCaptureTag);
+        } else if (reference - 2 < mTagNames.size()) {
+            mCaptureTag = mTagNames.get(reference - 2);
+        } else {
+            throw new IOException("The undo log archive refers to an unknown tag.");
+        }
+
+        mCaptureTtl = readVarint();
+
+        int size = readCount();
+        byte[] data = new byte[readCount()];
+        readFully(data);
+
+        return UndoSegment.packed(size, data, mQueries);
+    }
+
+    String captureTag() {
+        return mCaptureTag;
+    }
+
+    long captureTtl() {
+        return mCaptureTtl;
+    }
+
+    /**
+     * Decodes the entries of a packed segment.
+     * @param data the encoded entries.
+     * @param size the number of entries.
+     * @param queries the templates of the query indexes of the archive.
+     * @param segment the segment to which the entries are appended.
+     */
+    static void decodeEntries(byte[] data, int size, RestoringQuery[] queries, UndoSegment segment) {
+        int[] position = new int[1];
+        long rowid = 0;
+        char[] chars = new char[64];
+
+        for (int i = 0; i < size; i++) {
+            long header = UndoCodec.readVarint(data, position);
+            RestoringQuery query = queries[(int) (header >>> 1)];
+
+            if ((header & 1) != 0) {
+                rowid += UndoCodec.unzigzag(UndoCodec.readVarint(data, position));
+                segment.add(query, rowid);
+            } else {
+                segment.add(query, UndoSegment.NO_ROWID);
+            }
+
+            ValueBuffer values = segment.values();
+            int count = (int) UndoCodec.readVarint(data, position);
+
+            for (int j = 0; j < count; j++) {
+                byte type = data[position[0]++];
+
+                switch (type) {
+                    case ValueBuffer.TYPE_INTEGER:
+                        values.addLong(UndoCodec.unzigzag(UndoCodec.readVarint(data, position)));
+                        break;
+                    case ValueBuffer.TYPE_FLOAT:
+                        values.addDouble(Double.longBitsToDouble(readFixed64(data, position)));
+                        break;
+                    case ValueBuffer.TYPE_TEXT: {
+                        int length = (int) UndoCodec.readVarint(data, position);
+
+                        if (chars.length < length)
+                            chars = new char[Math.max(length, chars.length * 2)];
+
+                        values.addChars(chars, 0, decodeUtf8(data, position[0], length, chars));
+                        position[0] += length;
+                        break;
+                    }
+                    case ValueBuffer.TYPE_BLOB: {
+                        int length = (int) UndoCodec.readVarint(data, position);
+                        byte[] blob = new byte[length];
+                        System.arraycopy(data, position[0], blob, 0, length);
+                        values.addBlob(blob);
+                        position[0] += length;
+                        break;
+                    }
+                    default:
+                        values.addNull();
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes UTF-8 bytes into characters, where a sequence of four bytes becomes a surrogate pair.
+     * @param data the encoded bytes.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes.
+     * @param chars the array of at least length characters to be filled.
+     * @return the number of decoded characters.
+     */
+    private static int decodeUtf8(byte[] data, int offset, int length, char[] chars) {
+        int count = 0;
+        int end = offset + length;
+
+        while (offset < end) {
+            int b = data[offset++] & 0xFF;
+
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (data[offset++] & 0x3F));
+            } else if (b < 0xF0) {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((data[offset++] & 0x3F) << 6) | (data[offset++] & 0x3F));
+            } else {
+                int codePoint = ((b & 0x07) << 18) | ((data[offset++] & 0x3F) << 12) |
+                        ((data[offset++] & 0x3F) << 6) | (data[offset++] & 0x3F);
+                chars[count++] = (char) (0xD800 + ((codePoint - 0x10000) >>> 10));
+                chars[count++] = (char) (0xDC00 + (codePoint & 0x3FF));
+            }
+        }
+
+        return count;
+    }
+
+    private static long readFixed64(byte[] data, int[] position) {
+        long value = 0;
+
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[position[0]++] & 0xFF);
+        }
+
+        return value;
+    }
+
+    private static String name(String[] names, int id) throws IOException {
+        if (id < 0 || id >= names.length)
+            throw new IOException("The undo log archive refers to an unknown name.");
+
+        return names[id];
+    }
+
+    /**
+     * Writes the buffered header to the channel once it exceeds the buffer size, or if the archive ends.
+     * @param force determines if the header is written whatever its size is.
+     * @throws IOException if writing to the channel fails.
+     */
+    private void flush(boolean force) throws IOException {
+        if (!force && mHeader.size < BUFFER_SIZE)
+            return;
+
+        ByteBuffer buffer = ByteBuffer.wrap(mHeader.data, 0, mHeader.size);
+
+        while (buffer.hasRemaining()) {
+            mWritten += mOutput.write(buffer);
+        }
+
+        mHeader.clear();
+    }
+
+    /**
+     * Makes sure the buffer holds at least a number of bytes, refilling it from the channel.
+     * @param count the number of bytes, at most the capacity of the buffer.
+     * @throws IOException if reading from the channel fails, or the archive ends before the bytes.
+     */
+    private void require(int count) throws IOException {
+        if (mInput.remaining() >= count)
+            return;
+
+        if (mInputChannel == null)
+            throw new IOException("The undo log archive is truncated.");
+
+        mInput.compact();
+
+        try {
+            while (mInput.position() < count) {
+                if (mInputChannel.read(mInput) == -1)
+                    throw new IOException("The undo log archive is truncated.");
+            }
+        } finally {
+            mInput.flip();
+        }
+    }
+
+    private int readByte() throws IOException {
+        require(1);
+        return mInput.get();
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            if (shift > 63)
+                throw new IOException("The undo log archive contains a malformed varint.");
+
+            b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    /**
+     * Reads a varint which counts items or bytes of the archive.
+     * @return the count.
+     * @throws IOException if reading from the channel fails, or the count is negative or too large.
+     */
+    private int readCount() throws IOException {
+        long count = readVarint();
+
+        if (count < 0 || count > Integer.MAX_VALUE)
+            throw new IOException("The undo log archive contains a malformed count.");
+
+        return (int) count;
+    }
+
+    private String readString() throws IOException {
+        byte[] data = new byte[readCount()];
+        readFully(data);
+        return UndoCodec.string(data, 0, data.length);
+    }
+
+    private void readFully(byte[] data) throws IOException {
+        int offset = 0;
+
+        while (offset < data.length) {
+            require(1);
+
+            int count = Math.min(mInput.remaining(), data.length - offset);
+            mInput.get(data, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * A growable array of written bytes.
+     */
+    private static final class Sink {
+
+        byte[] data = new byte[256];
+        int size = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(size + 1);
+            data[size++] = (byte) value;
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+
+            writeByte((int) value);
+        }
+
+        void writeFixed64(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (value >>> shift));
+            }
+        }
+
+        void writeBytes(byte[] value, int offset, int length) {
+            ensureCapacity(size + length);
+            System.arraycopy(value, offset, data, size, length);
+            size += length;
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = UndoCodec.utf8(value);
+            writeVarint(utf8.length);
+            writeBytes(utf8, 0, utf8.length);
+        }
+
+        /**
+         * Writes the UTF-8 length and bytes of a range of characters, where a surrogate pair becomes a sequence of four bytes.
+         * @param chars the characters.
+         * @param offset the index of the first character.
+         * @param length the number of characters.
+         */
+        void writeUtf8(char[] chars, int offset, int length) {
+            int end = offset + length;
+            int utf8Length = 0;
+
+            for (int i = offset; i < end; i++) {
+                char c = chars[i];
+
+                if (c < 0x80) {
+                    utf8Length += 1;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (isSurrogatePair(chars, i, end)) {
+                    utf8Length += 4;
+                    i++;
+                } else {
+                    utf8Length += 3;
+                }
+            }
+
+            writeVarint(utf8Length);
+            ensureCapacity(size + utf8Length);
+
+            for (int i = offset; i < end; i++) {
+                char c = chars[i];
+
+                if (c < 0x80) {
+                    data[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    data[size++] = (byte) (0xC0 | (c >> 6));
+                    data[size++] = (byte) (0x80 | (c & 0x3F));
+                } else if (isSurrogatePair(chars, i, end)) {
+                    int codePoint = Character.toCodePoint(c, chars[++i]);
+                    data[size++] = (byte) (0xF0 | (codePoint >> 18));
+                    data[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    data[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    data[size++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    // A lone surrogate is kept as three bytes, so the text is decoded to the same characters
+                    data[size++] = (byte) (0xE0 | (c >> 12));
+                    data[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    data[size++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private static boolean isSurrogatePair(char[] chars, int index, int end) {
+            return Character.isHighSurrogate(chars[index]) && index + 1 < end && Character.isLowSurrogate(chars[index + 1]);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > data.length) {
+                byte[] grown = new byte[Math.max(capacity, data.length * 2)];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+        }
+
+    }
+
+}
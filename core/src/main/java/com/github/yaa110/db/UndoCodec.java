@@ -0,0 +1,177 @@
+package com.github.yaa110.db;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Encodes the values of undo entries into compact byte arrays.
+ * Each value is written as its type followed by a zigzag varint for integers, 8 bytes for reals,
+ * or a varint length followed by the UTF-8 characters of text values and the bytes of blobs.
+ */
+final class UndoCodec {
+
+    private static final String CHARSET = "UTF-8";
+
+    private byte[] mBuffer = new byte[256];
+    private int mSize = 0;
+
+    /**
+     * Encodes a range of values.
+     * @param values the buffer of values.
+     * @param start the index of the first value.
+     * @param end the index after the last value.
+     * @return the encoded values.
+     */
+    byte[] encodeValues(ValueBuffer values, int start, int end) {
+        mSize = 0;
+
+        for (int i = start; i < end; i++) {
+            byte type = values.type(i);
+            writeByte(type);
+
+            switch (type) {
+                case ValueBuffer.TYPE_INTEGER:
+                    writeVarint(zigzag(values.getLong(i)));
+                    break;
+                case ValueBuffer.TYPE_FLOAT:
+                    writeFixed64(Double.doubleToRawLongBits(values.getDouble(i)));
+                    break;
+                case ValueBuffer.TYPE_TEXT:
+                    writeBytes(utf8(values.getString(i)));
+                    break;
+                case ValueBuffer.TYPE_BLOB:
+                    writeBytes(values.getBlob(i));
+                    break;
+            }
+        }
+
+        byte[] encoded = new byte[mSize];
+        System.arraycopy(mBuffer, 0, encoded, 0, mSize);
+        return encoded;
+    }
+
+    /**
+     * Decodes the values encoded by {@link #encodeValues(ValueBuffer, int, int) encodeValues}.
+     * @param data the encoded values, or null if there is no value.
+     * @param values the buffer to append the decoded values to.
+     */
+    static void decodeValues(byte[] data, ValueBuffer values) {
+        if (data == null)
+            return;
+
+        int[] position = new int[1];
+
+        while (position[0] < data.length) {
+            byte type = data[position[0]++];
+
+            switch (type) {
+                case ValueBuffer.TYPE_INTEGER:
+                    values.addLong(unzigzag(readVarint(data, position)));
+                    break;
+                case ValueBuffer.TYPE_FLOAT:
+                    values.addDouble(Double.longBitsToDouble(readFixed64(data, position)));
+                    break;
+                case ValueBuffer.TYPE_TEXT: {
+                    int length = (int) readVarint(data, position);
+                    values.addString(string(data, position[0], length));
+                    position[0] += length;
+                    break;
+                }
+                case ValueBuffer.TYPE_BLOB: {
+                    int length = (int) readVarint(data, position);
+                    byte[] blob = new byte[length];
+                    System.arraycopy(data, position[0], blob, 0, length);
+                    values.addBlob(blob);
+                    position[0] += length;
+                    break;
+                }
+                default:
+                    values.addNull();
+                    break;
+            }
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long readVarint(byte[] data, int[] position) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    static byte[] utf8(String value) {
+        try {
+            return value.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String string(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static long readFixed64(byte[] data, int[] position) {
+        long value = 0;
+
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[position[0]++] & 0xFF);
+        }
+
+        return value;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        writeByte((int) value);
+    }
+
+    private void writeFixed64(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            writeByte((int) (value >>> shift));
+        }
+    }
+
+    private void writeBytes(byte[] value) {
+        writeVarint(value.length);
+        ensureCapacity(mSize + value.length);
+        System.arraycopy(value, 0, mBuffer, mSize, value.length);
+        mSize += value.length;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(mSize + 1);
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mSize);
+            mBuffer = buffer;
+        }
+    }
+
+}
@@ -0,0 +1,395 @@
+package com.github.yaa110.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the restoring queries of tags in side tables of the wrapped database.
+ * Entries are appended in the order of their capture and read back in chunks while restoring,
+ * so the journal survives restarts and does not need to fit in the heap.
+ * The entries of each capture of a tag are told apart by the sequence of the capture in the {@link UndoLog}.
+ */
+final class UndoJournal {
+
+    static final String TABLE_ENTRIES = "restorable_undo_journal";
+    static final String TABLE_QUERIES = "restorable_undo_queries";
+
+    /**
+     * The number of entries read from the journal at once.
+     */
+    static final int CHUNK_SIZE = 256;
+
+    private static final String COLUMNS_SEPARATOR = "\n";
+
+    private final Backend mDatabase;
+    private final RestoringQueryCache mQueryCache;
+    private final UndoCodec mCodec = new UndoCodec();
+
+    /**
+     * Maps the id of templates in the query cache to their id in the journal.
+     */
+    private final ConcurrentHashMap<Integer, Long> mJournalIds = new ConcurrentHashMap<>();
+
+    /**
+     * Maps the id of templates in the journal to the templates of the query cache.
+     */
+    private final ConcurrentHashMap<Long, RestoringQuery> mQueries = new ConcurrentHashMap<>();
+
+    private BackendStatement mInsertEntry = null;
+
+    UndoJournal(Backend db, RestoringQueryCache queryCache) {
+        mDatabase = db;
+        mQueryCache = queryCache;
+    }
+
+    /**
+     * Checks if the database contains a journal.
+     * @param db the database to be checked.
+     * @return true if the database contains a journal; false otherwise.
+     */
+    static boolean exists(Backend db) {
+        BackendCursor cursor = db.query(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] {TABLE_ENTRIES}
+        );
+
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates the journal tables if they do not exist and loads the stored templates.
+     */
+    void open() {
+        mDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_QUERIES + " (" +
+                "_id INTEGER PRIMARY KEY, " +
+                "kind INTEGER NOT NULL, " +
+                "query TEXT NOT NULL, " +
+                "table_name TEXT, " +
+                "columns TEXT, " +
+                "binds_rowid INTEGER NOT NULL" +
+                ")", null);
+        mDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_ENTRIES + " (" +
+                "_id INTEGER PRIMARY KEY, " +
+                "tag TEXT NOT NULL, " +
+                "query_id INTEGER NOT NULL, " +
+                "row_id INTEGER, " +
+                "entry_values BLOB, " +
+                "capture INTEGER NOT NULL DEFAULT 0" +
+                ")", null);
+        mDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_ENTRIES + "_tag ON " + TABLE_ENTRIES + " (tag)", null);
+
+        // A journal of a previous version holds a single capture of each tag
+        if (!hasCaptureColumn())
+            mDatabase.execSQL("ALTER TABLE " + TABLE_ENTRIES + " ADD COLUMN capture INTEGER NOT NULL DEFAULT 0", null);
+
+        BackendCursor cursor = mDatabase.query(
+                "SELECT _id, kind, query, table_name, columns, binds_rowid FROM " + TABLE_QUERIES,
+                null
+        );
+
+        try {
+            while (cursor.moveToNext()) {
+                String columns = cursor.getString(4);
+
+                RestoringQuery query = mQueryCache.template(
+                        cursor.getInt(1),
+                        cursor.getString(2),
+                        cursor.getString(3),
+                        columns == null || columns.length() == 0 ? new String[0] : columns.split(COLUMNS_SEPARATOR),
+                        cursor.getInt(5) != 0
+                );
+
+                mQueries.put(cursor.getLong(0), query);
+                mJournalIds.put(query.id, cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drops the journal tables.
+     */
+    void drop() {
+        release();
+
+        mDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_ENTRIES, null);
+        mDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_QUERIES, null);
+
+        mJournalIds.clear();
+        mQueries.clear();
+    }
+
+    /**
+     * Closes the compiled statements of the journal.
+     * This method must be called if the database is closed or reopened.
+     */
+    void release() {
+        if (mInsertEntry != null) {
+            mInsertEntry.close();
+            mInsertEntry = null;
+        }
+    }
+
+    /**
+     * Queries the stored captures in the order of their capture.
+     * @return the cursor of the tag, the sequence and the number of entries of each capture.
+     */
+    BackendCursor captures() {
+        return mDatabase.query(
+                "SELECT tag, capture, COUNT(*) FROM " + TABLE_ENTRIES + " GROUP BY tag, capture ORDER BY MIN(_id)",
+                null
+        );
+    }
+
+    /**
+     * Changes the sequence of a stored capture.
+     * @param tag the tag mapped to restoring queries.
+     * @param capture the stored sequence of the capture.
+     * @param sequence the new sequence of the capture.
+     */
+    void renumber(String tag, long capture, long sequence) {
+        mDatabase.execSQL(
+                "UPDATE " + TABLE_ENTRIES + " SET capture = ? WHERE tag = ? AND capture = ?",
+                new Object[] {sequence, tag, capture}
+        );
+    }
+
+    /**
+     * Appends the entries of the segment to the journal in a single transaction.
+     * @param tag the tag mapped to restoring queries.
+     * @param capture the sequence of the capture.
+     * @param segment the restoring queries.
+     */
+    void append(String tag, long capture, UndoSegment segment) {
+        append(tag, capture, segment, 0);
+    }
+
+    /**
+     * Appends the entries of the segment from an entry to the journal in a single transaction.
+     * @param tag the tag mapped to restoring queries.
+     * @param capture the sequence of the capture.
+     * @param segment the restoring queries.
+     * @param first the index of the first entry to be appended.
+     */
+    void append(String tag, long capture, UndoSegment segment, int first) {
+        if (mInsertEntry == null) {
+            mInsertEntry = mDatabase.compileStatement(
+                    "INSERT INTO " + TABLE_ENTRIES + " (tag, query_id, row_id, entry_values, capture) VALUES (?, ?, ?, ?, ?)"
+            );
+        }
+
+        ValueBuffer values = segment.values();
+
+        mDatabase.beginTransaction();
+        try {
+            for (int i = first; i < segment.size(); i++) {
+                mInsertEntry.bindString(1, tag);
+                mInsertEntry.bindLong(2, journalId(mQueryCache.query(segment.query(i))));
+
+                if (segment.rowid(i) == UndoSegment.NO_ROWID) {
+                    mInsertEntry.bindNull(3);
+                } else {
+                    mInsertEntry.bindLong(3, segment.rowid(i));
+                }
+
+                int start = segment.valueStart(i);
+                int end = segment.valueEnd(i);
+
+                if (start == end) {
+                    mInsertEntry.bindNull(4);
+                } else {
+                    mInsertEntry.bindBlob(4, mCodec.encodeValues(values, start, end));
+                }
+
+                mInsertEntry.bindLong(5, capture);
+
+                mInsertEntry.executeInsert();
+            }
+
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Removes the entries of all captures of the tag.
+     * @param tag the tag mapped to restoring queries.
+     */
+    void remove(String tag) {
+        mDatabase.execSQL("DELETE FROM " + TABLE_ENTRIES + " WHERE tag = ?", new Object[] {tag});
+    }
+
+    /**
+     * Removes the entries of a capture of the tag.
+     * @param tag the tag mapped to restoring queries.
+     * @param capture the sequence of the capture.
+     */
+    void remove(String tag, long capture) {
+        mDatabase.execSQL("DELETE FROM " + TABLE_ENTRIES + " WHERE tag = ? AND capture = ?", new Object[] {tag, capture});
+    }
+
+    /**
+     * Removes the first entries of a capture of the tag in the order of their capture.
+     * @param tag the tag mapped to restoring queries.
+     * @param capture the sequence of the capture.
+     * @param count the number of entries to be removed.
+     */
+    void removeFirst(String tag, long capture, int count) {
+        mDatabase.execSQL(
+                "DELETE FROM " + TABLE_ENTRIES + " WHERE _id IN" +
+                        " (SELECT _id FROM " + TABLE_ENTRIES + " WHERE tag = ? AND capture = ? ORDER BY _id LIMIT ?)",
+                new Object[] {tag, capture, count}
+        );
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        mDatabase.execSQL("DELETE FROM " + TABLE_ENTRIES, null);
+    }
+
+    /**
+     * Queries the entries of a capture of the tag in the order of their capture.
+     * @param tag the tag mapped to restoring queries.
+     * @param capture the sequence of the capture.
+     * @return the cursor to be read by {@link #read(BackendCursor, UndoSegment) read}.
+     */
+    BackendCursor query(String tag, long capture) {
+        return mDatabase.query(
+                "SELECT query_id, row_id, entry_values FROM " + TABLE_ENTRIES + " WHERE tag = ? AND capture = ? ORDER BY _id",
+                new String[] {tag, Long.toString(capture)}
+        );
+    }
+
+    /**
+     * Queries the first entries of a capture of the tag in the order of their capture.
+     * @param tag the tag mapped to restoring queries.
+     * @param capture the sequence of the capture.
+     * @param limit the maximum number of entries.
+     * @return the cursor to be read by {@link #read(BackendCursor, UndoSegment) read}.
+     */
+    BackendCursor query(String tag, long capture, int limit) {
+        return mDatabase.query(
+                "SELECT query_id, row_id, entry_values FROM " + TABLE_ENTRIES + " WHERE tag = ? AND capture = ? ORDER BY _id LIMIT " + limit,
+                new String[] {tag, Long.toString(capture)}
+        );
+    }
+
+    /**
+     * Reads the next chunk of entries from the cursor.
+     * @param cursor the cursor provided by {@link #query(String, long) query}.
+     * @param chunk the segment to be filled with at most {@link #CHUNK_SIZE} entries.
+     * @return true if any entry is read; false otherwise.
+     */
+    boolean read(BackendCursor cursor, UndoSegment chunk) {
+        chunk.clear();
+
+        while (chunk.size() < CHUNK_SIZE && cursor.moveToNext()) {
+            chunk.add(query(cursor.getLong(0)), cursor.isNull(1) ? UndoSegment.NO_ROWID : cursor.getLong(1));
+            UndoCodec.decodeValues(cursor.getBlob(2), chunk.values());
+        }
+
+        return chunk.size() > 0;
+    }
+
+    /**
+     * Loads all entries of a capture of the tag into the heap.
+     * @param tag the tag mapped to restoring queries.
+     * @param capture the sequence of the capture.
+     * @return the segment of restoring queries.
+     */
+    UndoSegment load(String tag, long capture) {
+        UndoSegment segment = new UndoSegment();
+
+        BackendCursor cursor = query(tag, capture);
+
+        try {
+            while (cursor.moveToNext()) {
+                segment.add(query(cursor.getLong(0)), cursor.isNull(1) ? UndoSegment.NO_ROWID : cursor.getLong(1));
+                UndoCodec.decodeValues(cursor.getBlob(2), segment.values());
+            }
+        } finally {
+            cursor.close();
+        }
+
+        segment.compact();
+
+        return segment;
+    }
+
+    /**
+     * Checks if the table of entries has the column of captures.
+     * @return true if the column exists; false otherwise.
+     */
+    private boolean hasCaptureColumn() {
+        BackendCursor cursor = mDatabase.query("PRAGMA table_info(" + TABLE_ENTRIES + ")", null);
+
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getString(1).equals("capture"))
+                    return true;
+            }
+
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long journalId(RestoringQuery query) {
+        Long id = mJournalIds.get(query.id);
+
+        if (id == null) {
+            StringBuilder columns = new StringBuilder();
+
+            for (int i = 0; i < query.columns.length; i++) {
+                if (i > 0) columns.append(COLUMNS_SEPARATOR);
+
+                columns.append(mQueryCache.name(query.columns[i]));
+            }
+
+            BackendStatement insert = mDatabase.compileStatement(
+                    "INSERT INTO " + TABLE_QUERIES + " (kind, query, table_name, columns, binds_rowid) VALUES (?, ?, ?, ?, ?)"
+            );
+
+            try {
+                insert.bindLong(1, query.kind);
+                insert.bindString(2, query.sql);
+
+                if (query.table == -1) {
+                    insert.bindNull(3);
+                } else {
+                    insert.bindString(3, mQueryCache.name(query.table));
+                }
+
+                insert.bindString(4, columns.toString());
+                insert.bindLong(5, query.bindsRowid ? 1 : 0);
+
+                id = insert.executeInsert();
+            } finally {
+                insert.close();
+            }
+
+            mJournalIds.put(query.id, id);
+            mQueries.put(id, query);
+        }
+
+        return id;
+    }
+
+    private RestoringQuery query(long journalId) {
+        RestoringQuery query = mQueries.get(journalId);
+
+        if (query == null)
+            throw new IllegalStateException("The journal contains no query of id " + journalId + ".");
+
+        return query;
+    }
+
+}
@@ -0,0 +1,1180 @@
+package com.github.yaa110.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Maps each tag to the {@link UndoSegment} of its restoring queries.
+ * Each capture takes the next number of a global sequence and is kept apart from the earlier captures of its tag,
+ * so the log is restored in the reverse order of its captures from any checkpoint.
+ * The legacy hash tables of SQL queries and parameters are only materialized on demand.
+ * If the {@link UndoJournal} is open, all segments are written to the journal
+ * and the oldest segments are spilled once the heap budget is exceeded.
+ * Tags are evicted by the eviction policy once a limit is exceeded, and expired tags are purged on each capture.
+ * The redo segments of restored tags are kept in the heap until the tag is redone or captured again.
+ * The captures imported from an {@link UndoArchive} keep their entries packed until they are restored.
+ * The shadow rows of the captures which are removed without being restored are deleted by {@link UndoShadows}.
+ *
+ * Tags are looked up without locking, while changes of the log are guarded by the monitor of the log.
+ * Methods which may write the journal or the shadow tables must be called in a transaction of the database,
+ * so the lock of the database is always acquired before the monitor of the log.
+ */
+final class UndoLog {
+
+    private final RestoringQueryCache mQueryCache;
+    private final UndoShadows mShadows;
+
+    /**
+     * The latest capture of each tag, which links the earlier captures of the tag.
+     */
+    private final ConcurrentHashMap<String, UndoTag> mTags = new ConcurrentHashMap<>();
+
+    /**
+     * All captures in the order of their sequence.
+     */
+    private final ConcurrentSkipListMap<Long, UndoTag> mCaptureOrder = new ConcurrentSkipListMap<>();
+
+    /**
+     * The tags in the order of their names, so the tags of a prefix are found by a range of names.
+     */
+    private final ConcurrentSkipListMap<String, UndoTag> mNameOrder = new ConcurrentSkipListMap<>();
+
+    /**
+     * The tags in the order of their eviction.
+     */
+    private final TreeSet<UndoTag> mEvictionOrder = new TreeSet<>(UndoTag.EVICTION_ORDER);
+
+    /**
+     * The tags which have a time to live, in the order of their expiration.
+     */
+    private final TreeSet<UndoTag> mExpirationOrder = new TreeSet<>(UndoTag.EXPIRATION_ORDER);
+
+    /**
+     * The queries of tags provided by setTagQueryTable which have no parameters yet.
+     */
+    private final ConcurrentHashMap<String, ArrayList<String>> mPendingQueries = new ConcurrentHashMap<>();
+
+    /**
+     * The parameters of tags provided by setTagQueryParameters which have no queries yet.
+     */
+    private final ConcurrentHashMap<String, ArrayList<String[]>> mPendingParameters = new ConcurrentHashMap<>();
+
+    /**
+     * The queries which redo the restored tags, in the order of their restore.
+     */
+    private final LinkedHashMap<String, UndoSegment> mRedoSegments = new LinkedHashMap<>();
+
+    private volatile UndoJournal mJournal = null;
+    private long mHeapBudget = 0;
+
+    /**
+     * The captures of segments which are not spilled, in the order of their capture.
+     */
+    private final LinkedHashSet<UndoTag> mResidentCaptures = new LinkedHashSet<>();
+    private volatile long mResidentBytes = 0;
+    private volatile int mSpilledCaptures = 0;
+
+    /**
+     * The number of entries of all segments.
+     */
+    private long mEntries = 0;
+
+    private long mSequence = 0;
+    private long mAccesses = 0;
+
+    /**
+     * The sequence of the capture whose chunks are streamed to the journal.
+     */
+    private long mStreamedSequence = 0;
+
+    private volatile int mEvictionPolicy = RestorableDatabase.EVICTION_OLDEST_FIRST;
+    private int mMaxTags = RestorableDatabase.NO_LIMIT;
+    private long mMaxEntries = RestorableDatabase.NO_LIMIT;
+    private long mMaxBytes = RestorableDatabase.NO_LIMIT;
+    private long mDefaultTtl = 0;
+
+    private volatile RestorableDatabase.OnTagEvictedListener mEvictedListener = null;
+
+    UndoLog(RestoringQueryCache queryCache, UndoShadows shadows) {
+        mQueryCache = queryCache;
+        mShadows = shadows;
+    }
+
+    /**
+     * Appends a capture of the tag to the log, which is restored before the earlier captures of the tag.
+     * The time to live of the previous capture is kept.
+     * The segment must not be changed after it is put to the log.
+     * @param name the tag mapped to restoring queries.
+     * @param segment the restoring queries.
+     */
+    synchronized void put(String name, UndoSegment segment) {
+        segment.compact();
+        purgeExpired();
+
+        UndoTag previous = mTags.get(name);
+        long sequence = segment.isSpilled() ? mStreamedSequence : mSequence++;
+
+        // Writes the journal first, so the log is not changed if writing fails.
+        // The entries of a spilled segment are already streamed to the journal.
+        if (mJournal != null && !segment.isSpilled())
+            mJournal.append(name, sequence, segment);
+
+        mPendingQueries.remove(name);
+        mPendingParameters.remove(name);
+        mRedoSegments.remove(name);
+
+        link(new UndoTag(name, segment, sequence, now(), previous != null ? previous.ttl : mDefaultTtl));
+
+        trimToBudget();
+        enforceLimits();
+    }
+
+    /**
+     * Appends a chunk of restoring queries of the tag to the journal, before the tag is put as a spilled segment.
+     * The first chunk of a capture takes the sequence of the capture.
+     * @param name the tag to be mapped to the restoring queries.
+     * @param chunk the restoring queries of the chunk.
+     * @param first determines if the chunk is the first chunk of the capture.
+     */
+    synchronized void stream(String name, UndoSegment chunk, boolean first) {
+        if (first)
+            mStreamedSequence = mSequence++;
+
+        mJournal.append(name, mStreamedSequence, chunk);
+    }
+
+    /**
+     * Takes the next number of the sequence, so the captures which follow are told apart from the earlier captures.
+     * @return the number of the checkpoint.
+     */
+    synchronized long checkpoint() {
+        return mSequence++;
+    }
+
+    /**
+     * Provides the latest capture of the tag if it is not expired and not restored in slices.
+     * @param name the tag mapped to restoring queries.
+     * @return the latest capture, or null if the log contains no mapping for the tag.
+     */
+    UndoTag get(String name) {
+        UndoTag tag = mTags.get(name);
+        return tag == null || tag.restoring || isExpired(tag, now()) ? null : tag;
+    }
+
+    /**
+     * Provides the captures of the tags which are not restored in slices, in the reverse order of their capture,
+     * so the captures of tags which change the same rows are restored whatever the order of the tags is.
+     * @param names the tags mapped to restoring queries.
+     * @return the captures in the order of their restore.
+     */
+    ArrayList<UndoTag> captures(Iterable<String> names) {
+        ArrayList<UndoTag> captures = new ArrayList<>();
+        HashSet<String> visited = new HashSet<>();
+
+        for (String name : names) {
+            if (!visited.add(name))
+                continue;
+
+            for (UndoTag tag = get(name); tag != null; tag = tag.previous) {
+                if (!tag.restoring)
+                    captures.add(tag);
+            }
+        }
+
+        Collections.sort(captures, UndoTag.RESTORE_ORDER);
+
+        return captures;
+    }
+
+    /**
+     * Provides the captures which follow the checkpoint and are not restored in slices, in the reverse order of their capture.
+     * Only the tail of the sequence is visited, so the cost depends on the number of captures since the checkpoint.
+     * @param checkpoint the number provided by {@link #checkpoint() checkpoint}, or Long.MIN_VALUE for all captures.
+     * @return the captures in the order of their restore.
+     */
+    ArrayList<UndoTag> capturesAfter(long checkpoint) {
+        ArrayList<UndoTag> captures = new ArrayList<>();
+
+        for (UndoTag tag : mCaptureOrder.tailMap(checkpoint, false).descendingMap().values()) {
+            if (!tag.restoring)
+                captures.add(tag);
+        }
+
+        return captures;
+    }
+
+    /**
+     * Reserves the captures to be restored in slices, so they are not restorable by other restores.
+     * @param captures the captures provided by {@link #captures(Iterable) captures} or {@link #capturesAfter(long) capturesAfter}.
+     */
+    synchronized void acquire(ArrayList<UndoTag> captures) {
+        Iterator<UndoTag> iterator = captures.iterator();
+
+        while (iterator.hasNext()) {
+            UndoTag tag = iterator.next();
+
+            if (tag.restoring || !isLinked(tag)) {
+                iterator.remove();
+            } else {
+                tag.restoring = true;
+            }
+        }
+    }
+
+    /**
+     * Removes the leading entries of a reserved capture once they are restored, and the capture once all entries are restored.
+     * @param tag the capture reserved by {@link #acquire(ArrayList) acquire}.
+     * @param count the number of restored entries.
+     */
+    synchronized void advance(UndoTag tag, int count) {
+        if (mJournal != null)
+            mJournal.removeFirst(tag.name, tag.sequence, count);
+
+        if (count == tag.remaining()) {
+            unlink(tag);
+            return;
+        }
+
+        mEntries -= count;
+
+        if (tag.segment.isSpilled()) {
+            tag.segment = UndoSegment.spilled(tag.segment.size() - count);
+        } else {
+            tag.restored += count;
+        }
+    }
+
+    /**
+     * Makes a reserved capture restorable again with the entries which are not restored yet.
+     * @param tag the capture reserved by {@link #acquire(ArrayList) acquire}.
+     */
+    synchronized void release(UndoTag tag) {
+        if (tag.restored > 0 && isLinked(tag)) {
+            UndoSegment segment = new UndoSegment();
+
+            for (int i = tag.restored; i < tag.segment.size(); i++) {
+                segment.add(tag.segment, i);
+            }
+
+            segment.compact();
+
+            mResidentBytes += segment.estimateBytes() - tag.segment.estimateBytes();
+            tag.segment = segment;
+        }
+
+        tag.restored = 0;
+        tag.restoring = false;
+    }
+
+    /**
+     * Checks if the capture is still the latest capture of its tag in the log, so it is neither evicted nor followed by a later capture.
+     * @param tag the capture reserved by {@link #acquire(ArrayList) acquire}.
+     * @return true if the capture is the latest capture; false otherwise.
+     */
+    boolean isMapped(UndoTag tag) {
+        return mTags.get(tag.name) == tag;
+    }
+
+    /**
+     * Checks if the capture is still in the log, so it is neither evicted nor restored.
+     * @param tag a capture of the log.
+     * @return true if the capture is in the log; false otherwise.
+     */
+    private boolean isLinked(UndoTag tag) {
+        return mCaptureOrder.get(tag.sequence) == tag;
+    }
+
+    /**
+     * Removes all captures of the tag from the log and the journal.
+     * @param name the tag mapped to restoring queries.
+     */
+    synchronized void remove(String name) {
+        UndoTag tag = mTags.get(name);
+
+        if (tag != null && mShadows.isUsed()) {
+            for (UndoTag capture = tag; capture != null; capture = capture.previous) {
+                mShadows.release(resident(capture), capture.restored);
+            }
+        }
+
+        if (discard(name) && mJournal != null)
+            mJournal.remove(name);
+    }
+
+    /**
+     * Removes all captures of the tag from the log, while their entries are already removed from the journal.
+     * @param name the tag mapped to restoring queries.
+     * @return true if the log contained a segment for the tag; false otherwise.
+     */
+    synchronized boolean discard(String name) {
+        UndoTag tag = mTags.get(name);
+        mPendingQueries.remove(name);
+        mPendingParameters.remove(name);
+
+        if (tag == null)
+            return false;
+
+        unlinkAll(tag);
+        return true;
+    }
+
+    /**
+     * Removes the capture from the log if it is not removed yet, while its entries are already removed from the journal.
+     * @param tag the capture provided by {@link #captures(Iterable) captures} or {@link #capturesAfter(long) capturesAfter}.
+     */
+    synchronized void discard(UndoTag tag) {
+        if (isLinked(tag))
+            unlink(tag);
+    }
+
+    /**
+     * Provides the open journal.
+     * @return the journal, or null if the journal is not open.
+     */
+    UndoJournal journal() {
+        return mJournal;
+    }
+
+    /**
+     * Opens the journal, writes all segments to it and loads the captures stored by previous instances.
+     * The tags of this instance replace the stored captures of the same tags.
+     * The time to live of the loaded tags starts when they are loaded.
+     * @param journal the journal to be opened.
+     * @param heapBudget the maximum estimated size of segments kept in the heap, in bytes.
+     */
+    synchronized void openJournal(UndoJournal journal, long heapBudget) {
+        mHeapBudget = heapBudget;
+
+        if (mJournal == null) {
+            journal.open();
+
+            ArrayList<UndoTag> storedCaptures = new ArrayList<>();
+            long now = now();
+
+            BackendCursor cursor = journal.captures();
+
+            try {
+                while (cursor.moveToNext()) {
+                    String name = cursor.getString(0);
+
+                    if (!mTags.containsKey(name)) {
+                        UndoSegment segment = UndoSegment.spilled(cursor.getInt(2));
+                        storedCaptures.add(new UndoTag(name, segment, cursor.getLong(1), now, mDefaultTtl));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (String name : mTags.keySet()) {
+                journal.remove(name);
+            }
+
+            for (UndoTag tag : mCaptureOrder.values()) {
+                journal.append(tag.name, tag.sequence, unpack(tag), tag.restored);
+            }
+
+            mJournal = journal;
+
+            // The stored captures keep their sequence, unless the sequence may be taken by a capture of this instance
+            boolean renumber = !mCaptureOrder.isEmpty();
+
+            for (UndoTag tag : storedCaptures) {
+                mSequence = Math.max(mSequence, tag.sequence + 1);
+            }
+
+            for (UndoTag tag : storedCaptures) {
+                if (renumber) {
+                    journal.renumber(tag.name, tag.sequence, mSequence);
+                    tag = new UndoTag(tag.name, tag.segment, mSequence++, tag.capturedAt, tag.ttl);
+                }
+
+                mPendingQueries.remove(tag.name);
+                mPendingParameters.remove(tag.name);
+
+                link(tag);
+            }
+        }
+
+        trimToBudget();
+        enforceLimits();
+    }
+
+    /**
+     * Loads all spilled segments into the heap and drops the journal.
+     */
+    synchronized void closeJournal() {
+        if (mJournal == null)
+            return;
+
+        for (UndoTag tag : mCaptureOrder.values()) {
+            if (tag.segment.isSpilled()) {
+                tag.segment = mJournal.load(tag.name, tag.sequence);
+
+                mResidentCaptures.add(tag);
+                mResidentBytes += tag.segment.estimateBytes();
+                mSpilledCaptures--;
+            }
+        }
+
+        mJournal.drop();
+        mJournal = null;
+
+        enforceLimits();
+    }
+
+    /**
+     * Provides the entries of a capture, loading them from the journal if its segment is spilled.
+     * @param tag the capture of a tag.
+     * @return the segment with its entries in the heap.
+     */
+    private UndoSegment resident(UndoTag tag) {
+        UndoSegment segment = tag.segment;
+        return segment.isSpilled() ? mJournal.load(tag.name, tag.sequence) : segment.unpack();
+    }
+
+    /**
+     * Decodes the packed segment of an imported capture in place, so it is decoded once.
+     * @param tag a capture of the log.
+     * @return the segment of the capture, which is spilled or has its entries in the heap.
+     */
+    synchronized UndoSegment unpack(UndoTag tag) {
+        UndoSegment segment = tag.segment;
+
+        if (!segment.isPacked())
+            return segment;
+
+        UndoSegment unpacked = segment.unpack();
+
+        if (mResidentCaptures.contains(tag))
+            mResidentBytes += unpacked.estimateBytes() - segment.estimateBytes();
+
+        tag.segment = unpacked;
+
+        return unpacked;
+    }
+
+    /**
+     * Spills the oldest segments which are not spilled yet until the heap budget is met.
+     */
+    private void trimToBudget() {
+        if (mJournal != null)
+            spill(mHeapBudget);
+    }
+
+    /**
+     * Spills the oldest segments which are not spilled yet until their estimated size is met.
+     * The spilled segments are replaced, so the threads which still read them are not affected.
+     * @param residentBytes the maximum estimated size of segments which are not spilled, in bytes.
+     */
+    private void spill(long residentBytes) {
+        Iterator<UndoTag> iterator = mResidentCaptures.iterator();
+
+        while (mResidentBytes > residentBytes && iterator.hasNext()) {
+            UndoTag tag = iterator.next();
+            iterator.remove();
+
+            mResidentBytes -= tag.segment.estimateBytes();
+            mSpilledCaptures++;
+            tag.segment = UndoSegment.spilled(tag.remaining());
+            tag.restored = 0;
+        }
+    }
+
+    /**
+     * Adds the capture to the log as the latest capture of its tag.
+     * @param tag the capture to be added.
+     */
+    private void link(UndoTag tag) {
+        UndoTag previous = mTags.get(tag.name);
+
+        // The latest capture stands for the tag in the indexes
+        if (previous != null) {
+            mEvictionOrder.remove(previous);
+            mExpirationOrder.remove(previous);
+
+            tag.previous = previous;
+            previous.next = tag;
+        }
+
+        mTags.put(tag.name, tag);
+        mNameOrder.put(tag.name, tag);
+        mCaptureOrder.put(tag.sequence, tag);
+        mEntries += tag.segment.size();
+
+        index(tag);
+
+        if (tag.segment.isSpilled()) {
+            mSpilledCaptures++;
+        } else {
+            mResidentCaptures.add(tag);
+            mResidentBytes += tag.segment.estimateBytes();
+        }
+    }
+
+    /**
+     * Adds the latest capture of a tag to the eviction and expiration indexes.
+     * @param tag the latest capture of the tag.
+     */
+    private void index(UndoTag tag) {
+        tag.accessed = mAccesses++;
+        tag.priority = priority(tag);
+        mEvictionOrder.add(tag);
+
+        if (tag.ttl > 0)
+            mExpirationOrder.add(tag);
+    }
+
+    /**
+     * Removes the capture from the log, so the previous capture of its tag becomes the latest one.
+     * @param tag the capture to be removed.
+     */
+    private void unlink(UndoTag tag) {
+        UndoTag previous = tag.previous;
+        UndoTag next = tag.next;
+
+        if (previous != null)
+            previous.next = next;
+
+        if (next != null) {
+            next.previous = previous;
+        } else {
+            mEvictionOrder.remove(tag);
+            mExpirationOrder.remove(tag);
+
+            if (previous != null) {
+                mTags.put(tag.name, previous);
+                mNameOrder.put(tag.name, previous);
+                index(previous);
+            } else {
+                mTags.remove(tag.name);
+                mNameOrder.remove(tag.name);
+            }
+        }
+
+        forget(tag);
+    }
+
+    /**
+     * Removes all captures of a tag from the log.
+     * @param tag the latest capture of the tag.
+     */
+    private void unlinkAll(UndoTag tag) {
+        mTags.remove(tag.name);
+        mNameOrder.remove(tag.name);
+        mEvictionOrder.remove(tag);
+        mExpirationOrder.remove(tag);
+
+        for (UndoTag capture = tag; capture != null; capture = capture.previous) {
+            forget(capture);
+        }
+    }
+
+    /**
+     * Removes the capture from the sequence and the accounting of the log.
+     * @param tag the capture to be removed.
+     */
+    private void forget(UndoTag tag) {
+        mCaptureOrder.remove(tag.sequence);
+        mEntries -= tag.remaining();
+
+        if (mResidentCaptures.remove(tag)) {
+            mResidentBytes -= tag.segment.estimateBytes();
+        } else {
+            mSpilledCaptures--;
+        }
+    }
+
+    /**
+     * Removes the tag from the log and the journal, and notifies the listener.
+     * @param tag the tag to be evicted.
+     * @param reason the reason of the eviction.
+     */
+    private void evict(UndoTag tag, int reason) {
+        remove(tag.name);
+
+        RestorableDatabase.OnTagEvictedListener listener = mEvictedListener;
+
+        if (listener != null)
+            listener.onTagEvicted(tag.name, reason);
+    }
+
+    private long priority(UndoTag tag) {
+        switch (mEvictionPolicy) {
+            case RestorableDatabase.EVICTION_LEAST_RECENTLY_USED:
+                return tag.accessed;
+            case RestorableDatabase.EVICTION_SOONEST_EXPIRING:
+                return tag.expiresAt();
+            default:
+                return tag.sequence;
+        }
+    }
+
+    /**
+     * Provides the current time of the log, which is not affected by changes of the wall clock.
+     * @return the time in milliseconds.
+     */
+    static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private static boolean isExpired(UndoTag tag, long now) {
+        return tag.expiresAt() <= now;
+    }
+
+    /**
+     * Marks the tag as accessed for the least recently used policy.
+     * @param name the tag mapped to restoring queries.
+     */
+    void touch(String name) {
+        if (mEvictionPolicy != RestorableDatabase.EVICTION_LEAST_RECENTLY_USED)
+            return;
+
+        synchronized (this) {
+            UndoTag tag = mTags.get(name);
+
+            if (tag == null)
+                return;
+
+            mEvictionOrder.remove(tag);
+            tag.accessed = mAccesses++;
+            tag.priority = priority(tag);
+            mEvictionOrder.add(tag);
+        }
+    }
+
+    /**
+     * Evicts the tags whose time to live is elapsed.
+     */
+    synchronized void purgeExpired() {
+        long now = now();
+
+        while (!mExpirationOrder.isEmpty() && isExpired(mExpirationOrder.first(), now)) {
+            evict(mExpirationOrder.first(), RestorableDatabase.EVICTED_BY_TTL);
+        }
+    }
+
+    /**
+     * Evicts tags by the eviction policy until no limit is exceeded.
+     */
+    private void enforceLimits() {
+        while (!mEvictionOrder.isEmpty() && exceedsLimits()) {
+            evict(mEvictionOrder.first(), RestorableDatabase.EVICTED_BY_LIMIT);
+        }
+    }
+
+    private boolean exceedsLimits() {
+        return (mMaxTags != RestorableDatabase.NO_LIMIT && mTags.size() > mMaxTags) ||
+                (mMaxEntries != RestorableDatabase.NO_LIMIT && mEntries > mMaxEntries) ||
+                (mMaxBytes != RestorableDatabase.NO_LIMIT && estimateBytes() > mMaxBytes);
+    }
+
+    /**
+     * Changes the limits of the log and evicts tags until no limit is exceeded.
+     * @param maxTags the maximum number of tags, or {@link RestorableDatabase#NO_LIMIT}.
+     * @param maxEntries the maximum number of entries of all tags, or {@link RestorableDatabase#NO_LIMIT}.
+     * @param maxBytes the maximum estimated size of all tags, or {@link RestorableDatabase#NO_LIMIT}.
+     */
+    synchronized void setLimits(int maxTags, long maxEntries, long maxBytes) {
+        mMaxTags = maxTags;
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+
+        enforceLimits();
+    }
+
+    /**
+     * Changes the eviction policy and rebuilds the eviction index.
+     * @param policy the eviction policy.
+     */
+    synchronized void setEvictionPolicy(int policy) {
+        mEvictionPolicy = policy;
+        mEvictionOrder.clear();
+
+        for (UndoTag tag : mTags.values()) {
+            tag.priority = priority(tag);
+            mEvictionOrder.add(tag);
+        }
+    }
+
+    /**
+     * Changes the time to live of the tags captured later.
+     * @param ttl the time to live in milliseconds, or 0 if the tags do not expire.
+     */
+    synchronized void setDefaultTtl(long ttl) {
+        mDefaultTtl = ttl;
+    }
+
+    /**
+     * Changes the time to live of the tag, measured from its latest capture.
+     * @param name the tag mapped to restoring queries.
+     * @param ttl the time to live in milliseconds, or 0 if the tag does not expire.
+     * @return true if the log contains the tag; false otherwise.
+     */
+    synchronized boolean setTtl(String name, long ttl) {
+        UndoTag tag = mTags.get(name);
+
+        if (tag == null)
+            return false;
+
+        mEvictionOrder.remove(tag);
+        mExpirationOrder.remove(tag);
+
+        for (UndoTag capture = tag; capture != null; capture = capture.previous) {
+            capture.ttl = ttl;
+        }
+
+        tag.priority = priority(tag);
+        mEvictionOrder.add(tag);
+
+        if (ttl > 0)
+            mExpirationOrder.add(tag);
+
+        purgeExpired();
+
+        return true;
+    }
+
+    void setEvictedListener(RestorableDatabase.OnTagEvictedListener listener) {
+        mEvictedListener = listener;
+    }
+
+    /**
+     * Sheds the segments kept in the heap until their estimated size is met.
+     * If the journal is open, the oldest segments are spilled; otherwise, tags are evicted by the eviction policy.
+     * @param residentBytes the maximum estimated size of segments which are not spilled, in bytes.
+     */
+    synchronized void shed(long residentBytes) {
+        purgeExpired();
+        mRedoSegments.clear();
+
+        if (mJournal != null) {
+            spill(residentBytes);
+            return;
+        }
+
+        while (!mEvictionOrder.isEmpty() && mResidentBytes > residentBytes) {
+            evict(mEvictionOrder.first(), RestorableDatabase.EVICTED_BY_MEMORY_PRESSURE);
+        }
+    }
+
+    /**
+     * Provides the estimated size of the segments which are not spilled.
+     * @return the estimated size in bytes.
+     */
+    long residentBytes() {
+        return mResidentBytes;
+    }
+
+    boolean contains(String name) {
+        return get(name) != null || mPendingQueries.containsKey(name);
+    }
+
+    /**
+     * Maps the restored tag to the queries which redo its restore.
+     * @param name the restored tag.
+     * @param segment the queries which redo the restore, captured while the tag is restored.
+     */
+    synchronized void putRedo(String name, UndoSegment segment) {
+        segment.compact();
+        mRedoSegments.put(name, segment);
+    }
+
+    /**
+     * Provides the queries which redo the restore of the tag.
+     * The segment stays mapped until the tag is captured again, e.g. by its redo.
+     * @param name the restored tag.
+     * @return the queries, or null if the tag is not redoable.
+     */
+    synchronized UndoSegment getRedo(String name) {
+        return mRedoSegments.get(name);
+    }
+
+    /**
+     * Provides the redoable tags in the order of their restore.
+     * @return a new Set of the redoable tags.
+     */
+    synchronized Set<String> redoTags() {
+        return new LinkedHashSet<>(mRedoSegments.keySet());
+    }
+
+    /**
+     * Removes the queries which redo the restored tags.
+     */
+    synchronized void clearRedo() {
+        mRedoSegments.clear();
+    }
+
+    /**
+     * Provides the restorable tags in the order of their latest capture.
+     * @return a new Set of the restorable tags.
+     */
+    Set<String> tags() {
+        LinkedHashSet<String> tags = new LinkedHashSet<>();
+        long now = now();
+
+        for (UndoTag tag : mCaptureOrder.values()) {
+            if (tag.next == null && !isExpired(tag, now))
+                tags.add(tag.name);
+        }
+
+        return tags;
+    }
+
+    /**
+     * Provides the restorable tags which start with the prefix in the order of their latest capture.
+     * Only the range of names which start with the prefix is visited, so the cost depends on the number of matches.
+     * @param prefix the prefix of the tags.
+     * @return a new Set of the restorable tags.
+     */
+    Set<String> tagsWithPrefix(String prefix) {
+        TreeMap<Long, String> matches = new TreeMap<>();
+        long now = now();
+
+        for (UndoTag tag : mNameOrder.tailMap(prefix).values()) {
+            if (!tag.name.startsWith(prefix))
+                break;
+
+            if (!isExpired(tag, now))
+                matches.put(tag.sequence, tag.name);
+        }
+
+        return new LinkedHashSet<>(matches.values());
+    }
+
+    /**
+     * Removes the tags which start with the prefix from the log and the journal.
+     * @param prefix the prefix of the tags.
+     * @return the number of removed tags.
+     */
+    synchronized int removeWithPrefix(String prefix) {
+        ArrayList<String> names = new ArrayList<>();
+
+        for (String name : mNameOrder.tailMap(prefix).keySet()) {
+            if (!name.startsWith(prefix))
+                break;
+
+            names.add(name);
+        }
+
+        for (String name : names) {
+            remove(name);
+        }
+
+        return names.size();
+    }
+
+    /**
+     * Estimates the heap size of the restoring queries of the tag.
+     * The entries of spilled segments are not counted, since they are stored in the journal.
+     * @param name the tag mapped to restoring queries.
+     * @return the estimated size in bytes, or 0 if the tag is not restorable.
+     */
+    long estimateBytes(String name) {
+        long bytes = 0;
+
+        for (UndoTag tag = get(name); tag != null; tag = tag.previous) {
+            bytes += tag.segment.estimateBytes();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Estimates the heap size of the restoring queries of all tags.
+     * @return the estimated size in bytes.
+     */
+    long estimateBytes() {
+        return mResidentBytes + UndoSegment.SPILLED_BYTES * mSpilledCaptures;
+    }
+
+    /**
+     * Materializes the SQL queries of the tag, from its latest capture to its earliest.
+     * @param tag the tag mapped to restoring queries.
+     * @return the SQL queries, or null if the log contains no mapping for the tag.
+     */
+    ArrayList<String> queries(String tag) {
+        UndoTag entry = get(tag);
+
+        if (entry == null)
+            return mPendingQueries.get(tag);
+
+        ArrayList<String> queries = new ArrayList<>();
+
+        for (; entry != null; entry = entry.previous) {
+            UndoSegment segment = resident(entry);
+
+            for (int i = 0; i < segment.size(); i++) {
+                queries.add(mQueryCache.query(segment.query(i)).sql);
+            }
+        }
+
+        return queries;
+    }
+
+    /**
+     * Materializes the parameters of the tag, from its latest capture to its earliest.
+     * @param tag the tag mapped to restoring queries.
+     * @return the parameters of each SQL query, or null if the log contains no mapping for the tag.
+     */
+    ArrayList<String[]> parameters(String tag) {
+        UndoTag entry = get(tag);
+
+        if (entry == null)
+            return mPendingParameters.get(tag);
+
+        ArrayList<String[]> parameters = new ArrayList<>();
+
+        for (; entry != null; entry = entry.previous) {
+            addParameters(parameters, resident(entry));
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Adds the parameters of each SQL query of the segment.
+     * @param parameters the parameters of the SQL queries.
+     * @param segment the restoring queries.
+     */
+    private void addParameters(ArrayList<String[]> parameters, UndoSegment segment) {
+        ValueBuffer values = segment.values();
+
+        for (int i = 0; i < segment.size(); i++) {
+            RestoringQuery query = mQueryCache.query(segment.query(i));
+
+            int start = segment.valueStart(i);
+            int count = segment.valueEnd(i) - start;
+
+            String[] entryParameters = new String[query.bindsRowid ? count + 1 : count];
+
+            for (int j = 0; j < count; j++) {
+                entryParameters[j] = values.getString(start + j);
+            }
+
+            if (query.bindsRowid)
+                entryParameters[count] = String.valueOf(segment.rowid(i));
+
+            parameters.add(entryParameters);
+        }
+    }
+
+    /**
+     * Materializes the legacy hash table of SQL queries.
+     * @return a new hash table which maps each tag to its SQL queries.
+     */
+    Hashtable<String, ArrayList<String>> queryTable() {
+        Hashtable<String, ArrayList<String>> table = new Hashtable<>();
+
+        for (String tag : tags()) {
+            ArrayList<String> queries = queries(tag);
+
+            if (queries != null)
+                table.put(tag, queries);
+        }
+
+        table.putAll(mPendingQueries);
+
+        return table;
+    }
+
+    /**
+     * Materializes the legacy hash table of parameters.
+     * @return a new hash table which maps each tag to the parameters of its SQL queries.
+     */
+    Hashtable<String, ArrayList<String[]>> parameterTable() {
+        Hashtable<String, ArrayList<String[]>> table = new Hashtable<>();
+
+        for (String tag : tags()) {
+            ArrayList<String[]> parameters = parameters(tag);
+
+            if (parameters != null)
+                table.put(tag, parameters);
+        }
+
+        table.putAll(mPendingParameters);
+
+        return table;
+    }
+
+    /**
+     * Replaces the content of the log with the legacy hash tables.
+     * A tag is restorable only if both hash tables contain it, as the queries are stored as raw queries.
+     * @param queryTable maps each tag to its SQL queries.
+     * @param parameterTable maps each tag to the parameters of its SQL queries.
+     */
+    synchronized void replace(Map<String, ArrayList<String>> queryTable, Map<String, ArrayList<String[]>> parameterTable) {
+        clear();
+
+        for (Map.Entry<String, ArrayList<String>> entry : queryTable.entrySet()) {
+            ArrayList<String[]> parameters = parameterTable.get(entry.getKey());
+
+            if (parameters == null) {
+                mPendingQueries.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+
+            UndoSegment segment = new UndoSegment();
+            ArrayList<String> queries = entry.getValue();
+
+            for (int i = 0; i < queries.size(); i++) {
+                segment.add(mQueryCache.raw(queries.get(i)), UndoSegment.NO_ROWID);
+
+                String[] entryParameters = i < parameters.size() ? parameters.get(i) : null;
+
+                if (entryParameters != null) {
+                    for (String parameter : entryParameters) {
+                        segment.values().addString(parameter);
+                    }
+                }
+            }
+
+            put(entry.getKey(), segment);
+        }
+
+        for (Map.Entry<String, ArrayList<String[]>> entry : parameterTable.entrySet()) {
+            if (!queryTable.containsKey(entry.getKey()))
+                mPendingParameters.put(entry.getKey(), entry.getValue());
+        }
+
+        retainShadows();
+    }
+
+    /**
+     * Writes the captures of the log to the archive in the order of their capture.
+     * The captures which are expired or restored in slices are not written.
+     * @param archive the archive to be written.
+     * @return the number of bytes of the archive.
+     * @throws IOException if writing the archive fails.
+     */
+    synchronized long writeArchive(UndoArchive archive) throws IOException {
+        archive.writeHeader();
+
+        long now = now();
+
+        for (UndoTag tag : mCaptureOrder.values()) {
+            if (tag.restoring || isExpired(tag, now))
+                continue;
+
+            archive.beginCapture(tag.name, tag.ttl);
+
+            UndoSegment segment = tag.segment;
+
+            if (segment.isSpilled()) {
+                // Streams the entries from the journal, so the spilled segments are not loaded at once
+                UndoSegment chunk = new UndoSegment();
+                BackendCursor cursor = mJournal.query(tag.name, tag.sequence);
+
+                try {
+                    while (mJournal.read(cursor, chunk)) {
+                        archive.addEntries(chunk, 0, chunk.size());
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } else {
+                segment = segment.unpack();
+                archive.addEntries(segment, tag.restored, segment.size());
+            }
+
+            archive.endCapture();
+        }
+
+        return archive.finish();
+    }
+
+    /**
+     * Replaces the content of the log with the captures of the archive, in the order of their capture.
+     * The archive is read before the log is changed, so the log is not changed if the archive is malformed.
+     * The entries of the captures are decoded on their first restore, unless the journal is open and stores them.
+     * The time to live of the imported captures starts when they are imported.
+     * @param archive the archive to be read.
+     * @return the number of imported tags.
+     * @throws IOException if reading the archive fails.
+     */
+    synchronized int readArchive(UndoArchive archive) throws IOException {
+        archive.readHeader();
+
+        ArrayList<UndoTag> captures = new ArrayList<>();
+        long now = now();
+        UndoSegment segment;
+
+        while ((segment = archive.readCapture()) != null) {
+            captures.add(new UndoTag(archive.captureTag(), segment, 0, now, archive.captureTtl()));
+        }
+
+        clear();
+
+        for (UndoTag capture : captures) {
+            UndoTag tag = new UndoTag(capture.name, capture.segment, mSequence++, now, capture.ttl);
+
+            if (mJournal != null) {
+                tag.segment = tag.segment.unpack();
+                mJournal.append(tag.name, tag.sequence, tag.segment);
+            }
+
+            link(tag);
+            trimToBudget();
+        }
+
+        enforceLimits();
+        retainShadows();
+
+        return mTags.size();
+    }
+
+    /**
+     * Deletes the shadow rows of the captures which are not in the log,
+     * e.g. of the captures lost by a restart without the journal or replaced by {@link #clear() clear}.
+     * The shadow rows which are still referenced, e.g. by the captures of an imported archive of the same database, are kept.
+     */
+    synchronized void retainShadows() {
+        if (!mShadows.isUsed())
+            return;
+
+        HashMap<String, HashSet<Long>> captures = new HashMap<>();
+
+        for (UndoTag capture : mCaptureOrder.values()) {
+            mShadows.collect(resident(capture), capture.restored, captures);
+        }
+
+        mShadows.retain(captures);
+    }
+
+    /**
+     * Removes all tags from the log and the journal, and the pending hash tables and redo segments.
+     * The shadow rows of the removed captures are deleted by {@link #retainShadows() retainShadows}
+     * once the captures which replace them are in the log.
+     */
+    private void clear() {
+        mTags.clear();
+        mNameOrder.clear();
+        mCaptureOrder.clear();
+        mEvictionOrder.clear();
+        mExpirationOrder.clear();
+        mPendingQueries.clear();
+        mPendingParameters.clear();
+        mRedoSegments.clear();
+        mResidentCaptures.clear();
+        mResidentBytes = 0;
+        mSpilledCaptures = 0;
+        mEntries = 0;
+
+        if (mJournal != null)
+            mJournal.clear();
+    }
+
+}
@@ -0,0 +1,294 @@
+package com.github.yaa110.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates the costs of captures and restores in counters and histograms,
+ * once it is registered by {@link RestorableDatabase#setOnMetricsListener(RestorableDatabase.OnMetricsListener)}.
+ * The values are updated without locks, so the instance is shared by any number of threads and databases.
+ */
+public class UndoMetrics implements RestorableDatabase.OnMetricsListener {
+
+    /**
+     * The number of OPERATION constants.
+     */
+    private static final int OPERATIONS = RestorableDatabase.OPERATION_EXEC_SQL + 1;
+
+    private final AtomicLongArray mCaptures = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray mCapturedRows = new AtomicLongArray(OPERATIONS);
+
+    private final Histogram mCaptureTime = new Histogram();
+    private final Histogram mChangeTime = new Histogram();
+    private final Histogram mRowsPerTag = new Histogram();
+    private final Histogram mParseTime = new Histogram();
+    private final Histogram mRestoreTime = new Histogram();
+
+    private final AtomicLong mParseMisses = new AtomicLong();
+    private final AtomicLong mRestoredQueries = new AtomicLong();
+
+    private volatile long mLogBytes = 0;
+
+    @Override
+    public void onCapture(int operation, String tag, int capturedRows,
+                          long captureNanos, long totalNanos, long logBytes) {
+        mCaptures.incrementAndGet(operation);
+        mCapturedRows.addAndGet(operation, capturedRows);
+
+        mCaptureTime.record(captureNanos);
+        mChangeTime.record(totalNanos);
+        mRowsPerTag.record(capturedRows);
+
+        mLogBytes = logBytes;
+    }
+
+    @Override
+    public void onParse(String sql, long parseNanos, boolean cached) {
+        mParseTime.record(parseNanos);
+
+        if (!cached)
+            mParseMisses.incrementAndGet();
+    }
+
+    @Override
+    public void onRestore(int restoredTags, int restoredQueries, long restoreNanos, long logBytes) {
+        mRestoreTime.record(restoreNanos);
+        mRestoredQueries.addAndGet(restoredQueries);
+
+        mLogBytes = logBytes;
+    }
+
+    /**
+     * Provides the number of captured changes.
+     * @param operation one of the OPERATION constants.
+     * @return the number of changes.
+     */
+    public long getCaptureCount(int operation) {
+        return mCaptures.get(operation);
+    }
+
+    /**
+     * Provides the number of captured restoring queries.
+     * @param operation one of the OPERATION constants.
+     * @return the number of restoring queries.
+     */
+    public long getCapturedRows(int operation) {
+        return mCapturedRows.get(operation);
+    }
+
+    /**
+     * Provides the time spent reading the affected rows of each change, e.g. by the SELECT of the pre-image.
+     * @return the histogram of nanoseconds.
+     */
+    public Histogram getCaptureTime() {
+        return mCaptureTime;
+    }
+
+    /**
+     * Provides the time spent by each change, including its capture.
+     * @return the histogram of nanoseconds.
+     */
+    public Histogram getChangeTime() {
+        return mChangeTime;
+    }
+
+    /**
+     * Provides the number of restoring queries captured by each change.
+     * @return the histogram of restoring queries.
+     */
+    public Histogram getRowsPerTag() {
+        return mRowsPerTag;
+    }
+
+    /**
+     * Provides the time spent classifying the SQL queries of executeRaw and rawQuery, including the cached ones.
+     * @return the histogram of nanoseconds.
+     */
+    public Histogram getParseTime() {
+        return mParseTime;
+    }
+
+    /**
+     * Provides the number of SQL queries which are not read from the cache of statements.
+     * @return the number of classified SQL queries.
+     */
+    public long getParseMisses() {
+        return mParseMisses.get();
+    }
+
+    /**
+     * Provides the time spent by each restore.
+     * @return the histogram of nanoseconds.
+     */
+    public Histogram getRestoreTime() {
+        return mRestoreTime;
+    }
+
+    /**
+     * Provides the number of executed restoring queries.
+     * @return the number of restoring queries.
+     */
+    public long getRestoredQueries() {
+        return mRestoredQueries.get();
+    }
+
+    /**
+     * Provides the estimated size of the undo log after the last capture or restore.
+     * @return the estimated size in bytes.
+     */
+    public long getLogBytes() {
+        return mLogBytes;
+    }
+
+    /**
+     * Clears the counters and histograms, except the size of the undo log.
+     */
+    public void reset() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            mCaptures.set(i, 0);
+            mCapturedRows.set(i, 0);
+        }
+
+        mCaptureTime.reset();
+        mChangeTime.reset();
+        mRowsPerTag.reset();
+        mParseTime.reset();
+        mRestoreTime.reset();
+
+        mParseMisses.set(0);
+        mRestoredQueries.set(0);
+    }
+
+    /**
+     * Counts the recorded values in buckets of powers of two, so a value is recorded in constant time and space.
+     * A percentile is the upper bound of its bucket, so it is at most twice the exact value.
+     */
+    public static final class Histogram {
+
+        /**
+         * The bucket of 0, and a bucket for each bit length of a positive long.
+         */
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram() {
+        }
+
+        /**
+         * Records a value, where a negative value is recorded as 0.
+         * @param value the recorded value.
+         */
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+
+            mBuckets.incrementAndGet(bucket(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+
+            long max = mMax.get();
+
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        /**
+         * Provides the number of recorded values.
+         * @return the number of values.
+         */
+        public long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * Provides the sum of recorded values.
+         * @return the sum of values.
+         */
+        public long getSum() {
+            return mSum.get();
+        }
+
+        /**
+         * Provides the maximum recorded value.
+         * @return the maximum value, or 0 if no value is recorded.
+         */
+        public long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * Provides the mean of recorded values.
+         * @return the mean value, or 0 if no value is recorded.
+         */
+        public double getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : (double) mSum.get() / count;
+        }
+
+        /**
+         * Provides an upper bound of the percentile of recorded values.
+         * @param percentile the percentile between 0 and 100, e.g. 99.
+         * @return the upper bound of the bucket of the percentile, or 0 if no value is recorded.
+         * @throws IllegalArgumentException if the percentile is out of range.
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException("The percentile must be between 0 and 100.");
+
+            long count = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                count += mBuckets.get(i);
+            }
+
+            // The rank of the percentile among the recorded values, starting at 1
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+
+            for (int i = 0; i < BUCKETS; i++) {
+                rank -= mBuckets.get(i);
+
+                if (rank <= 0)
+                    return Math.min(upperBound(i), mMax.get());
+            }
+
+            return 0;
+        }
+
+        /**
+         * Clears the recorded values.
+         */
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        /**
+         * Provides the bucket of a value, which is its bit length.
+         * @param value a value which is not negative.
+         * @return the index of the bucket.
+         */
+        private static int bucket(long value) {
+            return 64 - Long.numberOfLeadingZeros(value);
+        }
+
+        /**
+         * Provides the maximum value of a bucket.
+         * @param bucket the index of the bucket.
+         * @return the upper bound of the bucket.
+         */
+        private static long upperBound(int bucket) {
+            return bucket == 0 ? 0 : (1L << bucket) - 1;
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+package com.github.yaa110.db;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Coalesces the restoring queries of several captures which are executed in a single transaction.
+ * The entries are added in the order of their execution and indexed by their table and ROWID,
+ * so only the entries which determine the final state of each row are kept:
+ * an entry which replaces or deletes a row drops the earlier entries of the row,
+ * and an entry which updates a row drops the earlier updates of the same or fewer columns of the row.
+ * A row which the captures insert and then delete is not restored at all, whatever their tags are,
+ * so the deletion of the row drops the restore of its image instead of deleting it again.
+ * A raw query, a range of deleted rows or a restore from a shadow table may change any row, so the entries which precede it are not dropped by the entries which follow it.
+ * The kept entries between such queries are grouped by their table, each table in the order of its first entry,
+ * while the entries of a table keep their order, so the changes of a row are executed in the order of the restore.
+ */
+final class UndoPlan {
+
+    private final RestoringQueryCache mQueryCache;
+
+    /**
+     * The segments of the added entries, which are not changed once they are added.
+     */
+    private final ArrayList<UndoSegment> mSegments = new ArrayList<>();
+
+    /**
+     * The segment and the index in the segment of each added entry.
+     */
+    private int[] mSegmentIndexes = new int[8];
+    private int[] mEntries = new int[8];
+    private int mSize = 0;
+
+    private final BitSet mDropped = new BitSet();
+
+    /**
+     * The entries which may change any row, which separate the groups of entries.
+     */
+    private final BitSet mBarriers = new BitSet();
+
+    /**
+     * The entries which restore the image of a row which no earlier entry changes.
+     */
+    private final BitSet mUntouched = new BitSet();
+
+    /**
+     * Determines if an entry which may change any row is added.
+     */
+    private boolean mBarrier = false;
+
+    /**
+     * Maps the table id and ROWID of each row to the indexes of its kept entries.
+     */
+    private final HashMap<Integer, HashMap<Long, ArrayList<Integer>>> mRows = new HashMap<>();
+
+    UndoPlan(RestoringQueryCache queryCache) {
+        mQueryCache = queryCache;
+    }
+
+    /**
+     * Adds the entries of a segment after the added entries.
+     * @param segment the segment of restoring queries, which must not be changed afterwards.
+     */
+    void add(UndoSegment segment) {
+        mSegments.add(segment);
+
+        for (int i = 0; i < segment.size(); i++) {
+            add(segment, mSegments.size() - 1, i);
+        }
+    }
+
+    /**
+     * Provides the number of added entries, including the dropped ones.
+     * @return the number of entries.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Provides the kept entries grouped by their table between the entries which may change any row.
+     * @return a new segment of the kept entries.
+     */
+    UndoSegment segment() {
+        UndoSegment segment = new UndoSegment();
+        LinkedHashMap<Integer, ArrayList<Integer>> groups = new LinkedHashMap<>();
+
+        for (int i = mDropped.nextClearBit(0); i <= mSize; i = mDropped.nextClearBit(i + 1)) {
+            if (i < mSize && !mBarriers.get(i)) {
+                group(groups, query(i).table).add(i);
+                continue;
+            }
+
+            for (ArrayList<Integer> group : groups.values()) {
+                for (int entry : group) {
+                    segment.add(mSegments.get(mSegmentIndexes[entry]), mEntries[entry]);
+                }
+            }
+
+            groups.clear();
+
+            if (i < mSize)
+                segment.add(mSegments.get(mSegmentIndexes[i]), mEntries[i]);
+        }
+
+        segment.compact();
+
+        return segment;
+    }
+
+    private void add(UndoSegment segment, int segmentIndex, int entry) {
+        if (mSize == mEntries.length) {
+            mSegmentIndexes = grow(mSegmentIndexes);
+            mEntries = grow(mEntries);
+        }
+
+        int index = mSize++;
+        mSegmentIndexes[index] = segmentIndex;
+        mEntries[index] = entry;
+
+        RestoringQuery query = mQueryCache.query(segment.query(entry));
+        long rowid = segment.rowid(entry);
+
+        if (query.kind == RestoringQuery.KIND_RAW || query.kind == RestoringQuery.KIND_DELETE_RANGE
+                || query.kind == RestoringQuery.KIND_SHADOW_RESTORE || query.kind == RestoringQuery.KIND_SHADOW_UPDATE) {
+            mRows.clear();
+            mBarriers.set(index);
+            mBarrier = true;
+            return;
+        }
+
+        // The ROWID of a shadow deletion is a capture rather than a row of its table
+        if (query.kind == RestoringQuery.KIND_SHADOW_DELETE)
+            return;
+
+        // A row without an integer ROWID, e.g. of a table WITHOUT ROWID, is not indexed and its entries are kept
+        if (rowid == UndoSegment.NO_ROWID)
+            return;
+
+        ArrayList<Integer> entries = entries(query.table, rowid);
+
+        // The row is inserted and then deleted by the captures, so it is restored by neither entry.
+        // The image of a replaced row is restored by an update, so a replacing entry restores a deleted row.
+        if (query.kind == RestoringQuery.KIND_DELETE && entries.size() == 1 && mUntouched.get(entries.get(0))) {
+            mDropped.set(entries.get(0));
+            mDropped.set(index);
+            entries.clear();
+            return;
+        }
+
+        if (query.kind == RestoringQuery.KIND_REPLACE && entries.isEmpty() && !mBarrier)
+            mUntouched.set(index);
+
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            int earlier = entries.get(i);
+
+            if (query.kind != RestoringQuery.KIND_UPDATE || isUpdateOf(earlier, query)) {
+                mDropped.set(earlier);
+                entries.remove(i);
+            }
+        }
+
+        entries.add(index);
+    }
+
+    /**
+     * Checks if an added entry updates a subset of the columns updated by a later query.
+     * @param entry the index of the added entry.
+     * @param query the template of the later update.
+     * @return true if the later query overwrites all columns of the entry; false otherwise.
+     */
+    private boolean isUpdateOf(int entry, RestoringQuery query) {
+        RestoringQuery earlier = query(entry);
+
+        if (earlier.kind != RestoringQuery.KIND_UPDATE)
+            return false;
+
+        if (earlier.id == query.id)
+            return true;
+
+        for (int column : earlier.columns) {
+            boolean updated = false;
+
+            for (int later : query.columns) {
+                if (later == column) {
+                    updated = true;
+                    break;
+                }
+            }
+
+            if (!updated)
+                return false;
+        }
+
+        return true;
+    }
+
+    private RestoringQuery query(int entry) {
+        return mQueryCache.query(mSegments.get(mSegmentIndexes[entry]).query(mEntries[entry]));
+    }
+
+    private static ArrayList<Integer> group(LinkedHashMap<Integer, ArrayList<Integer>> groups, int table) {
+        ArrayList<Integer> group = groups.get(table);
+
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(table, group);
+        }
+
+        return group;
+    }
+
+    private ArrayList<Integer> entries(int table, long rowid) {
+        HashMap<Long, ArrayList<Integer>> rows = mRows.get(table);
+
+        if (rows == null) {
+            rows = new HashMap<>();
+            mRows.put(table, rows);
+        }
+
+        ArrayList<Integer> entries = rows.get(rowid);
+
+        if (entries == null) {
+            entries = new ArrayList<>(1);
+            rows.put(rowid, entries);
+        }
+
+        return entries;
+    }
+
+    private int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, mSize);
+        return grown;
+    }
+
+}
@@ -0,0 +1,213 @@
+package com.github.yaa110.db;
+
+/**
+ * The restoring queries of a tag stored in columns.
+ * Each entry is the id of its shared {@link RestoringQuery}, the ROWID of the affected row
+ * and a range of values in the packed {@link ValueBuffer} of the segment.
+ * A spilled segment only keeps its number of entries, while its entries are read from the {@link UndoJournal}.
+ * A packed segment keeps its entries encoded by an {@link UndoArchive} until they are unpacked on their first restore.
+ * A segment is not changed once it is put to the {@link UndoLog}, so it can be read by any thread.
+ */
+final class UndoSegment {
+
+    /**
+     * The ROWID of entries which are not bound to a row.
+     */
+    static final long NO_ROWID = Long.MIN_VALUE;
+
+    /**
+     * The estimated heap size of a spilled segment.
+     */
+    static final long SPILLED_BYTES = 64;
+
+    private int mSize = 0;
+    private int[] mQueries = new int[8];
+    private long[] mRowids = new long[8];
+    private int[] mValueStarts = new int[8];
+
+    private ValueBuffer mValues = new ValueBuffer();
+
+    private boolean mSpilled = false;
+
+    /**
+     * The encoded entries of a packed segment and the templates of their query indexes, or null.
+     */
+    private byte[] mPacked = null;
+    private RestoringQuery[] mPackedQueries = null;
+
+    /**
+     * Constructs a spilled segment whose entries are stored in the journal.
+     * @param size the number of entries.
+     * @return the spilled segment.
+     */
+    static UndoSegment spilled(int size) {
+        UndoSegment segment = new UndoSegment();
+        segment.mQueries = new int[0];
+        segment.mRowids = new long[0];
+        segment.mValueStarts = new int[0];
+        segment.mSpilled = true;
+        segment.mSize = size;
+        return segment;
+    }
+
+    /**
+     * Constructs a packed segment whose entries are decoded once they are unpacked.
+     * @param size the number of entries.
+     * @param data the entries encoded by {@link UndoArchive}.
+     * @param queries the templates of the query indexes of the archive.
+     * @return the packed segment.
+     */
+    static UndoSegment packed(int size, byte[] data, RestoringQuery[] queries) {
+        UndoSegment segment = new UndoSegment();
+        segment.mQueries = new int[0];
+        segment.mRowids = new long[0];
+        segment.mValueStarts = new int[0];
+        segment.mPacked = data;
+        segment.mPackedQueries = queries;
+        segment.mSize = size;
+        return segment;
+    }
+
+    /**
+     * Appends an entry to the segment.
+     * The values of the entry must be added to {@link #values()} before the next entry is appended.
+     * @param query the restoring query of the entry.
+     * @param rowid the ROWID of the affected row, or {@link #NO_ROWID}.
+     */
+    void add(RestoringQuery query, long rowid) {
+        if (mSize == mQueries.length) {
+            resize(Math.max(8, mSize * 2));
+        }
+
+        mQueries[mSize] = query.id;
+        mRowids[mSize] = rowid;
+        mValueStarts[mSize] = mValues.size();
+        mSize++;
+    }
+
+    /**
+     * Appends an entry of another segment with its values.
+     * @param source the segment containing the entry.
+     * @param entry the index of the entry in the source segment.
+     */
+    void add(UndoSegment source, int entry) {
+        if (mSize == mQueries.length) {
+            resize(Math.max(8, mSize * 2));
+        }
+
+        mQueries[mSize] = source.query(entry);
+        mRowids[mSize] = source.rowid(entry);
+        mValueStarts[mSize] = mValues.size();
+        mSize++;
+
+        for (int i = source.valueStart(entry); i < source.valueEnd(entry); i++) {
+            mValues.add(source.values(), i);
+        }
+    }
+
+    /**
+     * Provides the number of entries.
+     * @return the number of entries.
+     */
+    int size() {
+        return mSize;
+    }
+
+    int query(int entry) {
+        return mQueries[entry];
+    }
+
+    long rowid(int entry) {
+        return mRowids[entry];
+    }
+
+    int valueStart(int entry) {
+        return mValueStarts[entry];
+    }
+
+    int valueEnd(int entry) {
+        return entry + 1 < mSize ? mValueStarts[entry + 1] : mValues.size();
+    }
+
+    ValueBuffer values() {
+        return mValues;
+    }
+
+    /**
+     * Removes all entries, keeping the capacity of the segment to be filled again.
+     */
+    void clear() {
+        mSize = 0;
+        mValues.clear();
+    }
+
+    /**
+     * Determines if the entries of the segment are only stored in the journal.
+     * @return true if the segment is spilled; false otherwise.
+     */
+    boolean isSpilled() {
+        return mSpilled;
+    }
+
+    /**
+     * Determines if the entries of the segment are still encoded.
+     * @return true if the segment is packed; false otherwise.
+     */
+    boolean isPacked() {
+        return mPacked != null;
+    }
+
+    /**
+     * Decodes the entries of a packed segment.
+     * @return a new segment of the decoded entries, or this segment if it is not packed.
+     */
+    UndoSegment unpack() {
+        if (mPacked == null)
+            return this;
+
+        UndoSegment segment = new UndoSegment();
+        UndoArchive.decodeEntries(mPacked, mSize, mPackedQueries, segment);
+        segment.compact();
+        return segment;
+    }
+
+    /**
+     * Releases the unused capacity of the segment once no entry is going to be appended.
+     */
+    void compact() {
+        if (mQueries.length > mSize) {
+            resize(mSize);
+        }
+
+        mValues.compact();
+    }
+
+    /**
+     * Estimates the heap size of the segment.
+     * @return the estimated size in bytes.
+     */
+    long estimateBytes() {
+        if (mSpilled)
+            return SPILLED_BYTES;
+
+        if (mPacked != null)
+            return 64 + mPacked.length;
+
+        return 64 + 16L * mQueries.length + mValues.estimateBytes();
+    }
+
+    private void resize(int length) {
+        int[] queries = new int[length];
+        long[] rowids = new long[length];
+        int[] valueStarts = new int[length];
+
+        System.arraycopy(mQueries, 0, queries, 0, mSize);
+        System.arraycopy(mRowids, 0, rowids, 0, mSize);
+        System.arraycopy(mValueStarts, 0, valueStarts, 0, mSize);
+
+        mQueries = queries;
+        mRowids = rowids;
+        mValueStarts = valueStarts;
+    }
+
+}
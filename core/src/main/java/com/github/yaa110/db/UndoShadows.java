@@ -0,0 +1,367 @@
+package com.github.yaa110.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Copies the rows to be changed into shadow tables of the wrapped database, so their former images never leave SQLite.
+ * Each table has a shadow table of its row columns and the capture column, which is created once a row of the table is captured.
+ * The rows are copied by a single INSERT ... SELECT before the change, and the capture is restored by two entries
+ * whose ROWID is the capture: a set-based query which restores the rows from the shadow rows, followed by the deletion of the shadow rows.
+ * The deleted rows are restored by INSERT OR REPLACE ... SELECT, and the updated columns by UPDATE ... WHERE rowid IN (SELECT ...),
+ * so the triggers which capture the redo of a restore see the same changes as for the restoring queries of a cursor.
+ * The shadow tables are stored in the database, so the captures stored in the {@link UndoJournal} stay restorable after restarts.
+ * The shadow rows of a capture which is removed without being restored are deleted by {@link #release(UndoSegment, int) release},
+ * and the shadow rows of the captures which are no longer in the log, e.g. after a restart without the journal,
+ * are deleted by {@link #retain(HashMap) retain}.
+ * The captures are numbered by a counter stored in the database, so the number of a removed capture is never reused.
+ */
+final class UndoShadows {
+
+    static final String TABLE_PREFIX = "restorable_undo_image_";
+
+    /**
+     * The table of the last capture number, which is not a shadow table.
+     */
+    static final String TABLE_COUNTER = "restorable_undo_images";
+
+    private static final String COLUMN_CAPTURE = "capture";
+
+    private final Backend mDatabase;
+    private final RestoringQueryCache mQueryCache;
+    private final TableInfoCache mTables;
+
+    /**
+     * Maps the table name to the metadata of the table for which its shadow table is checked,
+     * so the shadow table is checked again once the schema changes.
+     */
+    private final HashMap<String, TableInfo> mShadowed = new HashMap<>();
+
+    /**
+     * Determines if the database contains a shadow table, or null if it is not checked yet.
+     */
+    private Boolean mUsed = null;
+
+    /**
+     * Determines if the counter table is checked.
+     */
+    private boolean mCounted = false;
+
+    UndoShadows(Backend db, RestoringQueryCache queryCache, TableInfoCache tables) {
+        mDatabase = db;
+        mQueryCache = queryCache;
+        mTables = tables;
+    }
+
+    /**
+     * Provides the name of the shadow table of a table.
+     * @param table the table name.
+     * @return the shadow table name.
+     */
+    static String shadowTable(String table) {
+        return TABLE_PREFIX + table;
+    }
+
+    /**
+     * Copies the affected rows into the shadow table by a single query.
+     * @param db the database in which the transaction is begun.
+     * @param info the metadata of the table, which has a ROWID.
+     * @param updatedColumns the columns to be restored by an update, or null if the rows are deleted.
+     * @param whereClause the optional WHERE clause of the affected rows.
+     * @param whereArgs arguments to be replaced with ? in the WHERE clause.
+     * @return the restoring queries of the capture, or an empty segment if no row is affected.
+     */
+    synchronized UndoSegment capture(Backend db, TableInfo info, String[] updatedColumns, String whereClause, String[] whereArgs) {
+        String shadow = shadowTable(info.name);
+        ensureShadow(db, info);
+
+        // An update only copies the updated columns and the ROWID of its rows
+        String projection = info.projection;
+
+        if (updatedColumns != null) {
+            StringBuilder columns = new StringBuilder();
+
+            for (String column : updatedColumns) {
+                columns.append(column).append(", ");
+            }
+
+            if (Arrays.asList(updatedColumns).contains(info.rowidColumn)) {
+                columns.setLength(columns.length() - 2);
+            } else {
+                columns.append(info.rowidColumn);
+            }
+
+            projection = columns.toString();
+        }
+
+        long capture = nextCapture(db);
+
+        Object[] bindArgs = new Object[1 + (whereArgs == null ? 0 : whereArgs.length)];
+        bindArgs[0] = capture;
+
+        if (whereArgs != null)
+            System.arraycopy(whereArgs, 0, bindArgs, 1, whereArgs.length);
+
+        db.execSQL(
+                "INSERT INTO " + shadow + " (" + COLUMN_CAPTURE + ", " + projection + ")" +
+                        " SELECT ?, " + projection + " FROM " + info.name +
+                        (whereClause == null || whereClause.isEmpty() ? "" : " WHERE (" + whereClause + ")"),
+                bindArgs
+        );
+
+        UndoSegment segment = new UndoSegment();
+
+        if (changes(db) > 0) {
+            segment.add(
+                    updatedColumns == null
+                            ? mQueryCache.shadowRestore(info.name, info.rowColumns, shadow)
+                            : mQueryCache.shadowUpdate(info.name, updatedColumns, info.rowidColumn, shadow),
+                    capture
+            );
+            segment.add(mQueryCache.shadowDelete(shadow), capture);
+        }
+
+        return segment;
+    }
+
+    /**
+     * Deletes the shadow rows of the entries of a segment which are not restored yet.
+     * This method must be called once a capture is removed without being restored.
+     * @param segment the segment with its entries in the heap.
+     * @param start the index of the first entry which is not restored.
+     */
+    synchronized void release(UndoSegment segment, int start) {
+        if (!isUsed())
+            return;
+
+        for (int i = start; i < segment.size(); i++) {
+            RestoringQuery deletion = deletion(mQueryCache.query(segment.query(i)));
+
+            if (deletion != null)
+                delete(deletion, capture(segment, i));
+        }
+    }
+
+    /**
+     * Adds the captures whose shadow rows are deleted by the entries of a segment which are not restored yet.
+     * @param segment the segment with its entries in the heap.
+     * @param start the index of the first entry which is not restored.
+     * @param captures maps each shadow table name to its captures.
+     */
+    synchronized void collect(UndoSegment segment, int start, HashMap<String, HashSet<Long>> captures) {
+        for (int i = start; i < segment.size(); i++) {
+            RestoringQuery deletion = deletion(mQueryCache.query(segment.query(i)));
+
+            if (deletion == null)
+                continue;
+
+            String shadow = mQueryCache.name(deletion.table);
+            HashSet<Long> shadowCaptures = captures.get(shadow);
+
+            if (shadowCaptures == null) {
+                shadowCaptures = new HashSet<>();
+                captures.put(shadow, shadowCaptures);
+            }
+
+            shadowCaptures.add(capture(segment, i));
+        }
+    }
+
+    /**
+     * Deletes the shadow rows of all captures but the given ones.
+     * @param captures maps each shadow table name to the captures whose shadow rows are kept,
+     * as added by {@link #collect(UndoSegment, int, HashMap) collect} for all captures of the log.
+     */
+    synchronized void retain(HashMap<String, HashSet<Long>> captures) {
+        if (!isUsed())
+            return;
+
+        for (String shadow : shadowTables()) {
+            HashSet<Long> shadowCaptures = captures.get(shadow);
+
+            if (shadowCaptures == null) {
+                mDatabase.execSQL("DELETE FROM " + shadow, null);
+                continue;
+            }
+
+            ArrayList<Long> orphans = new ArrayList<>();
+            BackendCursor cursor = mDatabase.query("SELECT DISTINCT " + COLUMN_CAPTURE + " FROM " + shadow, null);
+
+            try {
+                while (cursor.moveToNext()) {
+                    if (!shadowCaptures.contains(cursor.getLong(0)))
+                        orphans.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (long capture : orphans) {
+                delete(mQueryCache.shadowDelete(shadow), capture);
+            }
+        }
+    }
+
+    /**
+     * Provides the template which deletes the same shadow rows as the template of an entry.
+     * The legacy hash tables store the deletion of shadow rows as a raw query of the same SQL query.
+     * @param query the template of an entry.
+     * @return the template of the shadow deletion, or null if the query does not delete shadow rows.
+     */
+    private RestoringQuery deletion(RestoringQuery query) {
+        if (query.kind == RestoringQuery.KIND_SHADOW_DELETE)
+            return query;
+
+        String prefix = "DELETE FROM " + TABLE_PREFIX;
+        String suffix = " WHERE " + COLUMN_CAPTURE + " = ?";
+
+        if (query.kind != RestoringQuery.KIND_RAW || !query.sql.startsWith(prefix) || !query.sql.endsWith(suffix))
+            return null;
+
+        RestoringQuery deletion = mQueryCache.shadowDelete(query.sql.substring("DELETE FROM ".length(), query.sql.length() - suffix.length()));
+        return deletion.sql.equals(query.sql) ? deletion : null;
+    }
+
+    /**
+     * Provides the capture of an entry which deletes shadow rows, which is its ROWID or the parameter of its raw query.
+     */
+    private static long capture(UndoSegment segment, int entry) {
+        if (segment.valueEnd(entry) == segment.valueStart(entry))
+            return segment.rowid(entry);
+
+        ValueBuffer values = segment.values();
+        int index = segment.valueEnd(entry) - 1;
+
+        return values.type(index) == ValueBuffer.TYPE_INTEGER ? values.getLong(index) : Long.parseLong(values.getString(index));
+    }
+
+    private void delete(RestoringQuery deletion, long capture) {
+        BackendStatement statement = mQueryCache.statement(mDatabase, deletion);
+        statement.clearBindings();
+        statement.bindLong(1, capture);
+        statement.execute();
+    }
+
+    /**
+     * Determines if the database contains a shadow table, so the removed captures may have shadow rows.
+     * @return true if a shadow table exists; false otherwise.
+     */
+    synchronized boolean isUsed() {
+        if (mUsed == null)
+            mUsed = !shadowTables().isEmpty();
+
+        return mUsed;
+    }
+
+    /**
+     * Creates the shadow table of a table if it does not exist, and adds the columns which are added to the table.
+     * The shadow columns have no type, so the values are copied with their own type,
+     * except the ROWID column, which is an INTEGER so the lookups of the restoring updates use the index.
+     * @param db the database in which the transaction is begun.
+     * @param info the metadata of the table.
+     */
+    private void ensureShadow(Backend db, TableInfo info) {
+        if (mShadowed.get(info.name) == info)
+            return;
+
+        String shadow = shadowTable(info.name);
+        StringBuilder sql = new StringBuilder();
+        sql.append("CREATE TABLE IF NOT EXISTS ").append(shadow).append(" (");
+        sql.append(COLUMN_CAPTURE).append(" INTEGER NOT NULL");
+
+        for (String column : info.rowColumns) {
+            sql.append(", ").append(definition(info, column));
+        }
+
+        sql.append(")");
+
+        db.execSQL(sql.toString(), null);
+        // The restoring updates look up each row by its capture and ROWID
+        db.execSQL(
+                "CREATE INDEX IF NOT EXISTS " + shadow + "_capture ON " + shadow +
+                        " (" + COLUMN_CAPTURE + ", " + info.rowidColumn + ")",
+                null
+        );
+
+        // The shadow table of a previous schema lacks the columns added since
+        List<String> shadowColumns = Arrays.asList(mTables.get(db, shadow).columns);
+
+        for (String column : info.rowColumns) {
+            if (!shadowColumns.contains(column))
+                db.execSQL("ALTER TABLE " + shadow + " ADD COLUMN " + definition(info, column), null);
+        }
+
+        // The metadata is read again, since the statements above change the schema version
+        mShadowed.put(info.name, mTables.get(db, info.name));
+        mUsed = true;
+    }
+
+    private static String definition(TableInfo info, String column) {
+        return column.equals(info.rowidColumn) ? column + " INTEGER" : column;
+    }
+
+    /**
+     * Forgets the checked shadow tables.
+     * This method must be called if the database is reopened.
+     */
+    synchronized void reset() {
+        mShadowed.clear();
+        mUsed = null;
+        mCounted = false;
+    }
+
+    /**
+     * Provides the next capture, which is counted in the database, so it is unique among the shadow tables and across restarts.
+     * @param db the database in which the transaction is begun.
+     * @return the capture.
+     */
+    private long nextCapture(Backend db) {
+        if (!mCounted) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_COUNTER + " (" + COLUMN_CAPTURE + " INTEGER NOT NULL)", null);
+            db.execSQL("INSERT INTO " + TABLE_COUNTER + " SELECT 0 WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_COUNTER + ")", null);
+            mCounted = true;
+        }
+
+        db.execSQL("UPDATE " + TABLE_COUNTER + " SET " + COLUMN_CAPTURE + " = " + COLUMN_CAPTURE + " + 1", null);
+        BackendCursor cursor = db.query("SELECT " + COLUMN_CAPTURE + " FROM " + TABLE_COUNTER, null);
+
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long changes(Backend db) {
+        BackendCursor cursor = db.query("SELECT changes()", null);
+
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ArrayList<String> shadowTables() {
+        ArrayList<String> tables = new ArrayList<>();
+        BackendCursor cursor = mDatabase.query(
+                "SELECT name FROM sqlite_master WHERE type = 'table' AND name LIKE ? ESCAPE '\\'",
+                new String[] {TABLE_PREFIX.replace("_", "\\_") + "%"}
+        );
+
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return tables;
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.github.yaa110.db;
+
+import java.util.Comparator;
+
+/**
+ * The undo state of a capture of a tag in the {@link UndoLog}: its segment and the metadata used to evict it.
+ * The latest capture of a tag stands for the tag in the indexes, and links the earlier captures of the tag.
+ * The order of a tag in the eviction index depends on the eviction policy,
+ * so the index must remove the tag before its priority is changed.
+ * The segment, the time to live and the links are read without locking the {@link UndoLog}.
+ */
+final class UndoTag {
+
+    /**
+     * Orders the tags by their priority, then by the order of their capture.
+     */
+    static final Comparator<UndoTag> EVICTION_ORDER = new Comparator<UndoTag>() {
+        @Override
+        public int compare(UndoTag lhs, UndoTag rhs) {
+            int result = compareLongs(lhs.priority, rhs.priority);
+            return result != 0 ? result : compareLongs(lhs.sequence, rhs.sequence);
+        }
+    };
+
+    /**
+     * Orders the tags by their expiration time, then by the order of their capture.
+     */
+    static final Comparator<UndoTag> EXPIRATION_ORDER = new Comparator<UndoTag>() {
+        @Override
+        public int compare(UndoTag lhs, UndoTag rhs) {
+            int result = compareLongs(lhs.expiresAt(), rhs.expiresAt());
+            return result != 0 ? result : compareLongs(lhs.sequence, rhs.sequence);
+        }
+    };
+
+    /**
+     * Orders the captures in the reverse order of their capture, which is the order of their restore.
+     */
+    static final Comparator<UndoTag> RESTORE_ORDER = new Comparator<UndoTag>() {
+        @Override
+        public int compare(UndoTag lhs, UndoTag rhs) {
+            return compareLongs(rhs.sequence, lhs.sequence);
+        }
+    };
+
+    final String name;
+
+    /**
+     * The segment of the tag, which is replaced once it is spilled or loaded.
+     */
+    volatile UndoSegment segment;
+
+    /**
+     * The order of the capture among all captures of the log.
+     */
+    final long sequence;
+
+    /**
+     * The earlier capture of the tag, which is restored after this capture, or null.
+     */
+    volatile UndoTag previous = null;
+
+    /**
+     * The later capture of the tag, or null if this capture is the latest capture of the tag.
+     */
+    volatile UndoTag next = null;
+
+    /**
+     * The time of the capture in milliseconds of {@link UndoLog#now()}.
+     */
+    final long capturedAt;
+
+    /**
+     * The order of the last access among all accesses of the log.
+     */
+    long accessed;
+
+    /**
+     * The time to live in milliseconds, or 0 if the tag does not expire.
+     */
+    volatile long ttl;
+
+    /**
+     * The order of the tag in the eviction index.
+     */
+    long priority;
+
+    /**
+     * Determines if the tag is restored in slices, so no other restore executes its restoring queries.
+     */
+    volatile boolean restoring = false;
+
+    /**
+     * The number of leading entries of a segment in the heap which are already restored in slices.
+     */
+    int restored = 0;
+
+    UndoTag(String name, UndoSegment segment, long sequence, long capturedAt, long ttl) {
+        this.name = name;
+        this.segment = segment;
+        this.sequence = sequence;
+        this.capturedAt = capturedAt;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Provides the time at which the tag expires.
+     * @return the time in milliseconds of {@link UndoLog#now()}, or Long.MAX_VALUE if the tag does not expire.
+     */
+    long expiresAt() {
+        return ttl > 0 && ttl < Long.MAX_VALUE - capturedAt ? capturedAt + ttl : Long.MAX_VALUE;
+    }
+
+    /**
+     * Provides the number of entries which are not restored yet.
+     * @return the number of entries.
+     */
+    int remaining() {
+        return segment.size() - restored;
+    }
+
+    private static int compareLongs(long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+}
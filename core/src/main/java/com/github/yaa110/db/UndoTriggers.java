@@ -0,0 +1,292 @@
+package com.github.yaa110.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Captures the changed rows inside SQLite by temporary triggers on the captured tables of the {@link TableInfoCache}.
+ * While a tag is captured, the triggers write the image of each changed row to the shadow table of its table,
+ * so no cursor reads the affected rows before the change and the statements which cannot be parsed are captured as well.
+ * The rows of a table WITHOUT ROWID are identified by their primary key in the row image,
+ * so an update of such a row is captured as the deletion of its old image followed by the insertion of its new key.
+ * The triggers, the shadow tables and the capture state are temporary, so they only exist on the connection which installs them.
+ * The triggers are installed again once the schema version changes, so they capture the columns of the current schema.
+ * All methods are called in a transaction of the database.
+ */
+final class UndoTriggers {
+
+    static final String TABLE_STATE = "restorable_undo_capture";
+    static final String TABLE_SHADOW_PREFIX = "restorable_undo_shadow_";
+
+    private static final String TRIGGER_PREFIX = "restorable_undo_";
+
+    /**
+     * The image of the row before it is updated, keyed by the ROWID after the update.
+     */
+    static final int OP_UPDATE = 0;
+
+    /**
+     * The image of the row before it is deleted.
+     */
+    static final int OP_DELETE = 1;
+
+    /**
+     * The ROWID of the inserted row.
+     */
+    static final int OP_INSERT = 2;
+
+    /**
+     * The index of the first column of the row image in the shadow tables,
+     * after the order of the capture, the operation and the ROWID.
+     */
+    static final int FIRST_COLUMN = 3;
+
+    /**
+     * The number of tables which have their own bit in the touched tables of the capture state.
+     * The other tables share the last bit.
+     */
+    private static final int TOUCHED_BITS = 62;
+
+    private final TableInfoCache mTables;
+
+    /**
+     * The database on which the triggers are installed.
+     */
+    private Backend mDatabase = null;
+
+    /**
+     * The schema version for which the triggers are installed.
+     */
+    private long mSchemaVersion = Long.MIN_VALUE;
+
+    /**
+     * Maps the tables which have triggers to their metadata, in the order of installation.
+     */
+    private final LinkedHashMap<String, TableInfo> mInstalled = new LinkedHashMap<>();
+
+    UndoTriggers(TableInfoCache tables) {
+        mTables = tables;
+    }
+
+    /**
+     * Installs the capture state and the triggers of the tables which have no triggers yet.
+     * The tables which do not exist in the database are skipped until they are created.
+     * @param db the database in which the transaction is begun.
+     */
+    synchronized void install(Backend db) {
+        long version = mTables.validate(db);
+
+        if (db != mDatabase || version != mSchemaVersion) {
+            // The temporary objects of another connection are not visible, and the columns of a changed schema are not captured
+            mInstalled.clear();
+            mDatabase = db;
+            mSchemaVersion = version;
+        }
+
+        if (mInstalled.isEmpty()) {
+            db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + TABLE_STATE +
+                    " (tag TEXT, seq INTEGER NOT NULL, touched INTEGER NOT NULL)", null);
+            db.execSQL("INSERT INTO " + TABLE_STATE + " SELECT NULL, 0, 0" +
+                    " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_STATE + ")", null);
+        }
+
+        for (String table : mTables.tables(db)) {
+            if (mInstalled.containsKey(table))
+                continue;
+
+            TableInfo info = mTables.get(db, table);
+
+            if (info.columns.length == 0)
+                continue;
+
+            installTable(db, info, mInstalled.size());
+            mInstalled.put(table, info);
+        }
+    }
+
+    /**
+     * Drops the triggers, the shadow tables and the capture state.
+     * @param db the database in which the transaction is begun.
+     */
+    synchronized void uninstall(Backend db) {
+        if (db == mDatabase) {
+            for (String table : mInstalled.keySet()) {
+                db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_PREFIX + "update_" + table, null);
+                db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_PREFIX + "delete_" + table, null);
+                db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_PREFIX + "insert_" + table, null);
+                db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_PREFIX + "replace_" + table, null);
+                db.execSQL("DROP TABLE IF EXISTS temp." + TABLE_SHADOW_PREFIX + table, null);
+            }
+
+            db.execSQL("DROP TABLE IF EXISTS temp." + TABLE_STATE, null);
+        }
+
+        mInstalled.clear();
+        mDatabase = null;
+    }
+
+    /**
+     * Forgets the installed triggers, since the temporary objects are dropped with the connection.
+     * This method must be called if the database is closed or reopened.
+     */
+    synchronized void reset() {
+        mInstalled.clear();
+        mDatabase = null;
+    }
+
+    /**
+     * Starts capturing the changed rows, installing the triggers if needed.
+     * @param db the database in which the transaction is begun.
+     * @param tag the tag to be mapped to the captured rows.
+     */
+    synchronized void begin(Backend db, String tag) {
+        install(db);
+        db.execSQL("UPDATE " + TABLE_STATE + " SET tag = ?", new Object[] {tag});
+    }
+
+    /**
+     * Stops capturing the changed rows.
+     * The captured rows stay in the shadow tables until they are cleared.
+     * @param db the database in which the transaction is begun.
+     * @return the tables whose shadow table may contain captured rows.
+     */
+    synchronized ArrayList<String> end(Backend db) {
+        ArrayList<String> tables = new ArrayList<>();
+        long touched = 0;
+
+        BackendCursor cursor = db.query("SELECT touched FROM " + TABLE_STATE, null);
+
+        try {
+            if (cursor.moveToFirst())
+                touched = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+
+        db.execSQL("UPDATE " + TABLE_STATE + " SET tag = NULL, seq = 0, touched = 0", null);
+
+        if (touched == 0)
+            return tables;
+
+        int index = 0;
+
+        for (String table : mInstalled.keySet()) {
+            if ((touched & bit(index)) != 0)
+                tables.add(table);
+
+            index++;
+        }
+
+        return tables;
+    }
+
+    /**
+     * Reads the captured rows of a table in the reverse order of their capture.
+     * @param db the database in which the transaction is begun.
+     * @param table the table name.
+     * @return the cursor of the shadow table, whose row images start at {@link #FIRST_COLUMN}.
+     */
+    BackendCursor read(Backend db, String table) {
+        return db.query("SELECT * FROM " + TABLE_SHADOW_PREFIX + table + " ORDER BY undo_seq DESC", null);
+    }
+
+    /**
+     * Removes the captured rows of the tables.
+     * @param db the database in which the transaction is begun.
+     * @param tables the tables whose shadow table contains captured rows.
+     */
+    void clear(Backend db, ArrayList<String> tables) {
+        for (String table : tables) {
+            db.execSQL("DELETE FROM " + TABLE_SHADOW_PREFIX + table, null);
+        }
+    }
+
+    /**
+     * Provides the metadata of a table captured by its triggers, whose row columns are the columns of the row images.
+     * @param table the table name.
+     * @return the metadata, or null if the table has no triggers.
+     */
+    synchronized TableInfo table(String table) {
+        return mInstalled.get(table);
+    }
+
+    private static void installTable(Backend db, TableInfo info, int index) {
+        String table = info.name;
+        String shadow = TABLE_SHADOW_PREFIX + table;
+
+        StringBuilder sql_columns = new StringBuilder();
+        StringBuilder sql_old = new StringBuilder();
+        StringBuilder sql_new = new StringBuilder();
+
+        for (String column : info.rowColumns) {
+            sql_columns.append(", ").append(column);
+            sql_old.append(", OLD.").append(column);
+            sql_new.append(", NEW.").append(column);
+        }
+
+        db.execSQL("DROP TABLE IF EXISTS temp." + shadow, null);
+        db.execSQL("CREATE TEMP TABLE " + shadow +
+                " (undo_seq INTEGER PRIMARY KEY, undo_op INTEGER NOT NULL, undo_rowid" + sql_columns + ")", null);
+
+        // Columns without type keep the type of the captured values
+        String active = " WHEN (SELECT tag FROM " + TABLE_STATE + ") IS NOT NULL";
+        String count = " BEGIN UPDATE " + TABLE_STATE + " SET seq = seq + 1, touched = touched | " + bit(index) + ";";
+        String capture = active + count;
+        String sequence = "(SELECT seq FROM " + TABLE_STATE + ")";
+
+        String rowidColumn = info.rowidColumn;
+        String update;
+        String insert;
+        String existing;
+
+        if (info.hasRowid()) {
+            update = " INSERT INTO " + shadow + " VALUES (" + sequence + ", " + OP_UPDATE + ", NEW." + rowidColumn + sql_old + ");";
+            insert = " INSERT INTO " + shadow + " (undo_seq, undo_op, undo_rowid) VALUES (" + sequence + ", " + OP_INSERT + ", NEW." + rowidColumn + ");";
+            existing = " FROM " + table + " WHERE " + rowidColumn + " = NEW." + rowidColumn;
+        } else {
+            // The old image restores the row, and the new key deletes the row which replaces it
+            update = " INSERT INTO " + shadow + " VALUES (" + sequence + ", " + OP_DELETE + ", NULL" + sql_old + ");" +
+                    " UPDATE " + TABLE_STATE + " SET seq = seq + 1;" +
+                    " INSERT INTO " + shadow + " VALUES (" + sequence + ", " + OP_INSERT + ", NULL" + sql_new + ");";
+            insert = " INSERT INTO " + shadow + " VALUES (" + sequence + ", " + OP_INSERT + ", NULL" + sql_new + ");";
+
+            StringBuilder key = new StringBuilder();
+
+            for (String column : info.primaryKey) {
+                key.append(key.length() == 0 ? " WHERE " : " AND ").append(column).append(" = NEW.").append(column);
+            }
+
+            existing = " FROM " + table + key;
+        }
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_PREFIX + "update_" + table, null);
+        db.execSQL("CREATE TEMP TRIGGER " + TRIGGER_PREFIX + "update_" + table +
+                " AFTER UPDATE ON " + table + capture + update + " END", null);
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_PREFIX + "delete_" + table, null);
+        db.execSQL("CREATE TEMP TRIGGER " + TRIGGER_PREFIX + "delete_" + table +
+                " AFTER DELETE ON " + table + capture +
+                " INSERT INTO " + shadow + " VALUES (" + sequence + ", " + OP_DELETE + ", " +
+                (info.hasRowid() ? "OLD." + rowidColumn : "NULL") + sql_old + ");" +
+                " END", null);
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_PREFIX + "insert_" + table, null);
+        db.execSQL("CREATE TEMP TRIGGER " + TRIGGER_PREFIX + "insert_" + table +
+                " AFTER INSERT ON " + table + capture + insert + " END", null);
+
+        // The row replaced on a conflict of its ROWID or primary key is captured as deleted, since the REPLACE conflict
+        // resolution only fires the delete trigger if recursive triggers are enabled
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_PREFIX + "replace_" + table, null);
+        db.execSQL("CREATE TEMP TRIGGER " + TRIGGER_PREFIX + "replace_" + table +
+                " BEFORE INSERT ON " + table +
+                active + " AND EXISTS (SELECT 1" + existing + ")" + count +
+                " INSERT INTO " + shadow + " SELECT " + sequence + ", " + OP_DELETE + ", " +
+                (info.hasRowid() ? rowidColumn : "NULL") + sql_columns + existing + ";" +
+                " END", null);
+    }
+
+    private static long bit(int index) {
+        return 1L << Math.min(index, TOUCHED_BITS);
+    }
+
+}
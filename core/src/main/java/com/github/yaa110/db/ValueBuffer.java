@@ -0,0 +1,320 @@
+package com.github.yaa110.db;
+
+/**
+ * A packed buffer of the captured column values.
+ * Each value is stored as its SQLite type and a slot, so integers and reals stay primitive,
+ * and the characters of all text values and the bytes of all blobs share a single array each.
+ * No object is allocated per captured value.
+ * The offset and length of a text value or a blob are packed in the high and low halves of its slot,
+ * so the characters and the bytes of a buffer are limited to the length of an array.
+ */
+final class ValueBuffer {
+
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_INTEGER = 1;
+    static final byte TYPE_FLOAT = 2;
+    static final byte TYPE_TEXT = 3;
+    static final byte TYPE_BLOB = 4;
+
+    /**
+     * The greatest length of an array, since some VMs reserve header words in arrays.
+     */
+    static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private byte[] mTypes = new byte[16];
+
+    /**
+     * The value of integers, the raw bits of reals,
+     * or the offset and length of text values and blobs in the characters and bytes arrays.
+     */
+    private long[] mSlots = new long[16];
+
+    private char[] mChars = new char[64];
+    private byte[] mBytes = new byte[0];
+
+    private int mSize = 0;
+    private int mCharsSize = 0;
+    private int mBytesSize = 0;
+
+    /**
+     * Provides the number of values.
+     * @return the number of values.
+     */
+    int size() {
+        return mSize;
+    }
+
+    void addNull() {
+        ensureCapacity(1);
+        mTypes[mSize] = TYPE_NULL;
+        mSlots[mSize] = 0;
+        mSize++;
+    }
+
+    void addLong(long value) {
+        ensureCapacity(1);
+        mTypes[mSize] = TYPE_INTEGER;
+        mSlots[mSize] = value;
+        mSize++;
+    }
+
+    void addDouble(double value) {
+        ensureCapacity(1);
+        mTypes[mSize] = TYPE_FLOAT;
+        mSlots[mSize] = Double.doubleToRawLongBits(value);
+        mSize++;
+    }
+
+    void addBlob(byte[] value) {
+        if (value == null) {
+            addNull();
+            return;
+        }
+
+        ensureCapacity(1);
+        ensureBytesCapacity(value.length);
+
+        System.arraycopy(value, 0, mBytes, mBytesSize, value.length);
+
+        mTypes[mSize] = TYPE_BLOB;
+        mSlots[mSize] = ((long) mBytesSize << 32) | value.length;
+        mBytesSize += value.length;
+        mSize++;
+    }
+
+    void addString(String value) {
+        if (value == null) {
+            addNull();
+            return;
+        }
+
+        int length = value.length();
+
+        ensureCapacity(1);
+        ensureCharsCapacity(length);
+
+        value.getChars(0, length, mChars, mCharsSize);
+
+        mTypes[mSize] = TYPE_TEXT;
+        mSlots[mSize] = ((long) mCharsSize << 32) | length;
+        mCharsSize += length;
+        mSize++;
+    }
+
+    /**
+     * Appends a text value from a range of characters, so no String is allocated for the value.
+     * @param value the characters of the text value.
+     * @param offset the index of the first character.
+     * @param length the number of characters.
+     */
+    void addChars(char[] value, int offset, int length) {
+        ensureCapacity(1);
+        ensureCharsCapacity(length);
+
+        System.arraycopy(value, offset, mChars, mCharsSize, length);
+
+        mTypes[mSize] = TYPE_TEXT;
+        mSlots[mSize] = ((long) mCharsSize << 32) | length;
+        mCharsSize += length;
+        mSize++;
+    }
+
+    /**
+     * Appends a value of another buffer with its type.
+     * @param source the buffer containing the value.
+     * @param index the index of the value in the source buffer.
+     */
+    void add(ValueBuffer source, int index) {
+        switch (source.type(index)) {
+            case TYPE_INTEGER:
+                addLong(source.getLong(index));
+                break;
+            case TYPE_FLOAT:
+                addDouble(source.getDouble(index));
+                break;
+            case TYPE_TEXT:
+                addString(source.getString(index));
+                break;
+            case TYPE_BLOB:
+                addBlob(source.getBlob(index));
+                break;
+            default:
+                addNull();
+                break;
+        }
+    }
+
+    byte type(int index) {
+        return mTypes[index];
+    }
+
+    long getLong(int index) {
+        return mSlots[index];
+    }
+
+    double getDouble(int index) {
+        return Double.longBitsToDouble(mSlots[index]);
+    }
+
+    byte[] getBlob(int index) {
+        long slot = mSlots[index];
+        byte[] value = new byte[(int) slot];
+        System.arraycopy(mBytes, (int) (slot >>> 32), value, 0, value.length);
+        return value;
+    }
+
+    /**
+     * Provides a value as a String.
+     * Blobs have no text representation, so they are provided as null.
+     * @param index the index of the value.
+     * @return the value, or null if the value is NULL or a blob.
+     */
+    String getString(int index) {
+        switch (mTypes[index]) {
+            case TYPE_INTEGER:
+                return String.valueOf(mSlots[index]);
+            case TYPE_FLOAT:
+                return String.valueOf(getDouble(index));
+            case TYPE_TEXT:
+                long slot = mSlots[index];
+                return new String(mChars, (int) (slot >>> 32), (int) slot);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Provides the characters of all text values, which are read from the offset of a text value.
+     * @return the shared array of characters.
+     */
+    char[] chars() {
+        return mChars;
+    }
+
+    /**
+     * Provides the bytes of all blobs, which are read from the offset of a blob.
+     * @return the shared array of bytes.
+     */
+    byte[] bytes() {
+        return mBytes;
+    }
+
+    /**
+     * Provides the offset of a text value or a blob in the shared array of its type.
+     * @param index the index of the value.
+     * @return the offset of the first character or byte.
+     */
+    int offset(int index) {
+        return (int) (mSlots[index] >>> 32);
+    }
+
+    /**
+     * Provides the length of a text value or a blob.
+     * @param index the index of the value.
+     * @return the number of characters or bytes.
+     */
+    int length(int index) {
+        return (int) mSlots[index];
+    }
+
+    /**
+     * Removes all values, keeping the capacity of the buffer.
+     */
+    void clear() {
+        mSize = 0;
+        mCharsSize = 0;
+        mBytesSize = 0;
+    }
+
+    /**
+     * Releases the unused capacity of the buffer.
+     */
+    void compact() {
+        if (mTypes.length > mSize) {
+            mTypes = copyOf(mTypes, mSize);
+            mSlots = copyOf(mSlots, mSize);
+        }
+
+        if (mChars.length > mCharsSize) {
+            mChars = copyOf(mChars, mCharsSize);
+        }
+
+        if (mBytes.length > mBytesSize) {
+            mBytes = copyOf(mBytes, mBytesSize);
+        }
+    }
+
+    /**
+     * Estimates the heap size of the buffer.
+     * @return the estimated size in bytes.
+     */
+    long estimateBytes() {
+        return 64 + mTypes.length + 8L * mSlots.length + 2L * mChars.length + mBytes.length;
+    }
+
+    private void ensureCapacity(int added) {
+        int length = capacity(mSize, added, mTypes.length, "values");
+
+        if (length > mTypes.length) {
+            mTypes = copyOf(mTypes, length);
+            mSlots = copyOf(mSlots, length);
+        }
+    }
+
+    private void ensureCharsCapacity(int added) {
+        int length = capacity(mCharsSize, added, mChars.length, "characters");
+
+        if (length > mChars.length) {
+            mChars = copyOf(mChars, length);
+        }
+    }
+
+    private void ensureBytesCapacity(int added) {
+        int length = capacity(mBytesSize, added, mBytes.length, "bytes");
+
+        if (length > mBytes.length) {
+            mBytes = copyOf(mBytes, length);
+        }
+    }
+
+    /**
+     * Provides the length of an array to which elements are added, which is doubled while it is below the limit of arrays.
+     * The sum of the used and added elements is checked before it is computed, so it never overflows.
+     * @param size the number of used elements.
+     * @param added the number of elements to be added.
+     * @param length the current length of the array.
+     * @param elements the name of the elements.
+     * @return the new length of the array, or the current length if the elements fit in it.
+     * @throws IllegalStateException if the elements exceed the limit of arrays.
+     */
+    private static int capacity(int size, int added, int length, String elements) {
+        if (added > MAX_ARRAY_LENGTH - size)
+            throw new IllegalStateException("The buffer cannot hold more than " + MAX_ARRAY_LENGTH + " " + elements + ".");
+
+        int capacity = size + added;
+
+        if (capacity <= length)
+            return length;
+
+        return (int) Math.min(Math.max(capacity, 2L * length), MAX_ARRAY_LENGTH);
+    }
+
+    private static byte[] copyOf(byte[] array, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static char[] copyOf(char[] array, int length) {
+        char[] copy = new char[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+}
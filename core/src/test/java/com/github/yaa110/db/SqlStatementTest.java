@@ -0,0 +1,90 @@
+package com.github.yaa110.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SqlStatementTest {
+
+    @Test
+    public void classifiesPlainStatements() {
+        assertStatement(SqlStatement.KIND_INSERT, "items", "INSERT INTO items (name) VALUES (?)");
+        assertStatement(SqlStatement.KIND_UPDATE, "items", "UPDATE items SET name = ? WHERE id = ?");
+        assertStatement(SqlStatement.KIND_UPDATE, "items", "UPDATE OR IGNORE main.items SET name = 'x'");
+        assertStatement(SqlStatement.KIND_DELETE, "my items", "DELETE FROM \"my items\" WHERE id > 3");
+        assertStatement(SqlStatement.KIND_INSERT, "items", "INSERT INTO items (id) VALUES (1) ON CONFLICT (id) DO NOTHING");
+        assertStatement(SqlStatement.KIND_OTHER, null, "SELECT * FROM items WHERE name = 'DELETE'");
+        assertStatement(SqlStatement.KIND_OTHER, null, "WITH ids AS (SELECT id FROM items) SELECT * FROM ids");
+    }
+
+    @Test
+    public void classifiesStatementsWhoseChangesAreNotSelectedByWhere() {
+        assertStatement(SqlStatement.KIND_WRITE, null, "REPLACE INTO items (id, name) VALUES (3, 'x')");
+        assertStatement(SqlStatement.KIND_WRITE, null, "INSERT OR REPLACE INTO items (id, name) VALUES (?, ?)");
+        assertStatement(SqlStatement.KIND_WRITE, null, "insert or ignore into items (id) values (1)");
+        assertStatement(SqlStatement.KIND_WRITE, null,
+                "INSERT INTO items (id, name) VALUES (1, 'x') ON CONFLICT (id) DO UPDATE SET name = excluded.name");
+        assertStatement(SqlStatement.KIND_WRITE, null, "UPDATE OR REPLACE items SET id = id + 1");
+        assertStatement(SqlStatement.KIND_WRITE, null, "UPDATE items SET name = o.name FROM other AS o WHERE o.id = items.id");
+        assertStatement(SqlStatement.KIND_WRITE, null,
+                "WITH old AS (SELECT id FROM items WHERE id > 15) DELETE FROM items WHERE id IN old");
+    }
+
+    @Test
+    public void readsColumnsOfInsertions() {
+        assertArrayEquals(new String[] {"id", "name"},
+                SqlStatement.classify("INSERT INTO items (id, \"name\") VALUES (?, (SELECT 'x'))").columns);
+        assertArrayEquals(new String[] {"rowid"}, SqlStatement.classify("INSERT INTO items AS i (rowid) SELECT 1").columns);
+        assertNull(SqlStatement.classify("INSERT INTO items VALUES (1, 'x')").columns);
+        assertNull(SqlStatement.classify("INSERT INTO items SELECT * FROM (SELECT 1, 'x')").columns);
+    }
+
+    @Test
+    public void ignoresKeywordsAndParametersInLiteralsAndComments() {
+        SqlStatement statement = SqlStatement.classify(
+                "/* REPLACE */ DELETE FROM items -- WITH ?\n WHERE name = 'WHERE ?' AND id = ?");
+
+        assertEquals(SqlStatement.KIND_DELETE, statement.kind);
+        assertEquals("name = 'WHERE ?' AND id = ?", statement.where);
+        assertArrayEquals(new String[] {"7"}, statement.whereArgs(new String[] {"7"}));
+    }
+
+    @Test
+    public void mapsWhereArgumentsByParameterNumber() {
+        SqlStatement numbered = SqlStatement.classify("UPDATE items SET name = ?1 WHERE id > ?2");
+
+        assertEquals("id > ?", numbered.where);
+        assertArrayEquals(new String[] {"17"}, numbered.whereArgs(new String[] {"name", "17"}));
+
+        SqlStatement mixed = SqlStatement.classify("UPDATE items SET price = ?3, name = ? WHERE id BETWEEN ?1 AND ?2");
+
+        assertEquals("id BETWEEN ? AND ?", mixed.where);
+        assertArrayEquals(new String[] {"10", "12"}, mixed.whereArgs(new String[] {"10", "12", "0", "mixed"}));
+
+        SqlStatement named = SqlStatement.classify("DELETE FROM items WHERE name = :name OR id > :min OR name = :name");
+
+        assertEquals("name = ? OR id > ? OR name = ?", named.where);
+        assertArrayEquals(new String[] {"item5", "18", "item5"}, named.whereArgs(new String[] {"item5", "18"}));
+    }
+
+    @Test
+    public void providesNoWhereArgumentsWithoutWhereParameters() {
+        assertNull(SqlStatement.classify("DELETE FROM items WHERE id > 3").whereArgs(new String[0]));
+        assertNull(SqlStatement.classify("UPDATE items SET name = ?").whereArgs(new String[] {"x"}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingWhereArgument() {
+        SqlStatement.classify("DELETE FROM items WHERE id = ?2").whereArgs(new String[] {"1"});
+    }
+
+    private static void assertStatement(int kind, String table, String sql) {
+        SqlStatement statement = SqlStatement.classify(sql);
+
+        assertEquals(sql, kind, statement.kind);
+        assertEquals(sql, table, statement.table);
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.github.yaa110.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ValueBufferTest {
+
+    @Test
+    public void packsOffsetsOfTextValuesAndBlobs() {
+        ValueBuffer buffer = new ValueBuffer();
+
+        for (int i = 0; i < 100; i++) {
+            buffer.addString("text" + i);
+            buffer.addBlob(new byte[] {(byte) i, 1, 2});
+            buffer.addLong(i);
+        }
+
+        assertEquals(300, buffer.size());
+        assertEquals("text57", buffer.getString(171));
+        assertArrayEquals(new byte[] {57, 1, 2}, buffer.getBlob(172));
+        assertEquals(3 * 57, buffer.offset(172));
+        assertEquals(57L, buffer.getLong(173));
+    }
+
+    @Test
+    public void rejectsTextBeyondArrayLength() {
+        ValueBuffer buffer = new ValueBuffer();
+        buffer.addString("ab");
+
+        // The capacity is checked before the characters are copied, so the source may be shorter than its length
+        try {
+            buffer.addChars(new char[1], 0, ValueBuffer.MAX_ARRAY_LENGTH - 1);
+            fail("The offset of the text value overflows.");
+        } catch (IllegalStateException e) {
+            // The buffer keeps its values
+        }
+
+        assertEquals(1, buffer.size());
+        assertEquals("ab", buffer.getString(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsTextLongerThanArrayLength() {
+        new ValueBuffer().addChars(new char[1], 0, Integer.MAX_VALUE);
+    }
+
+}
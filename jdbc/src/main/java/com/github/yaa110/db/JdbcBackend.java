@@ -0,0 +1,675 @@
+package com.github.yaa110.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores the database of the {@link RestorableDatabase} in a JDBC connection to SQLite, e.g. of sqlite-jdbc.
+ * The connection must be in auto-commit mode, since the transactions are begun and ended by SQL statements.
+ * A transaction is held by a single thread, so other threads wait for it to end before they use the connection.
+ * The results of the queries run in a transaction are read before the transaction ends,
+ * so the connection is released by the end of the transaction rather than by the cursors.
+ * The failures of the JDBC driver are thrown as {@link JdbcBackendException}.
+ */
+public class JdbcBackend implements Backend {
+
+    private final Connection mConnection;
+
+    /**
+     * Held by the thread of the current transaction.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * The number of nested transactions, guarded by the lock.
+     */
+    private int mDepth = 0;
+
+    /**
+     * Determines if the innermost transaction is marked as successful.
+     */
+    private boolean mSuccessful = false;
+
+    /**
+     * Determines if a nested transaction ended without being marked as successful.
+     */
+    private boolean mChildFailed = false;
+
+    /**
+     * The cursors of the current transaction whose results are not released, guarded by the lock.
+     */
+    private final ArrayList<JdbcCursor> mCursors = new ArrayList<>();
+
+    /**
+     * Constructs a new backend on the connection.
+     * @param connection the JDBC connection to the SQLite database.
+     * @throws IllegalArgumentException if the connection is null.
+     */
+    public JdbcBackend(Connection connection) {
+        if (connection == null)
+            throw new IllegalArgumentException("The connection must not be null.");
+
+        mConnection = connection;
+    }
+
+    /**
+     * Provides the wrapped connection.
+     * @return the JDBC connection.
+     */
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    @Override
+    public void beginTransaction() {
+        mLock.lock();
+
+        try {
+            if (mDepth == 0) {
+                execute("BEGIN IMMEDIATE");
+                mChildFailed = false;
+            }
+        } catch (RuntimeException e) {
+            mLock.unlock();
+            throw e;
+        }
+
+        mDepth++;
+        mSuccessful = false;
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        if (!mLock.isHeldByCurrentThread() || mDepth == 0)
+            throw new IllegalStateException("No transaction is begun by the current thread.");
+
+        mSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        if (!mLock.isHeldByCurrentThread() || mDepth == 0)
+            throw new IllegalStateException("No transaction is begun by the current thread.");
+
+        try {
+            if (!mSuccessful)
+                mChildFailed = true;
+
+            mSuccessful = false;
+
+            if (--mDepth == 0) {
+                try {
+                    readCursors();
+                } catch (RuntimeException e) {
+                    mChildFailed = true;
+                    throw e;
+                } finally {
+                    execute(mChildFailed ? "ROLLBACK" : "COMMIT");
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void savepoint(String name) {
+        executeLocked("SAVEPOINT " + SqlStatement.quote(name));
+    }
+
+    @Override
+    public void rollbackToSavepoint(String name) {
+        executeLocked("ROLLBACK TO " + SqlStatement.quote(name));
+    }
+
+    @Override
+    public void releaseSavepoint(String name) {
+        executeLocked("RELEASE " + SqlStatement.quote(name));
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) {
+        mLock.lock();
+
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+
+            try {
+                if (bindArgs != null) {
+                    for (int i = 0; i < bindArgs.length; i++) {
+                        statement.setObject(i + 1, bindArgs[i]);
+                    }
+                }
+
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new JdbcBackendException(sql, e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Runs a SQL query, whose rows are read from the driver as the cursor moves.
+     * The connection is held by the current thread until the last row is read or the cursor is closed,
+     * so the cursor must be closed by the thread which runs the query.
+     * The remaining rows of a query run in a transaction are read into the heap when the transaction ends,
+     * so the connection is released with the transaction.
+     */
+    @Override
+    public BackendCursor query(String sql, String[] selectionArgs) {
+        mLock.lock();
+
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+
+            try {
+                if (selectionArgs != null) {
+                    for (int i = 0; i < selectionArgs.length; i++) {
+                        statement.setString(i + 1, selectionArgs[i]);
+                    }
+                }
+
+                JdbcCursor cursor = new JdbcCursor(sql, statement, statement.execute() ? statement.getResultSet() : null);
+                statement = null;
+
+                if (mDepth > 0 && cursor.mStatement != null)
+                    mCursors.add(cursor);
+
+                return cursor;
+            } finally {
+                if (statement != null)
+                    statement.close();
+            }
+        } catch (SQLException e) {
+            mLock.unlock();
+            throw new JdbcBackendException(sql, e);
+        }
+    }
+
+    /**
+     * Compiles a SQL statement, whose number of parameters is read once.
+     */
+    @Override
+    public BackendStatement compileStatement(String sql) {
+        mLock.lock();
+
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+
+            try {
+                return new JdbcStatement(sql, statement, statement.getParameterMetaData().getParameterCount());
+            } catch (SQLException e) {
+                statement.close();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new JdbcBackendException(sql, e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        mLock.lock();
+
+        try {
+            mConnection.close();
+        } catch (SQLException e) {
+            throw new JdbcBackendException(null, e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Executes a SQL statement without parameters.
+     * @param sql the SQL statement.
+     */
+    private void execute(String sql) {
+        try {
+            Statement statement = mConnection.createStatement();
+
+            try {
+                statement.execute(sql);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new JdbcBackendException(sql, e);
+        }
+    }
+
+    /**
+     * Executes a SQL statement without parameters while the connection is held by the current thread.
+     * @param sql the SQL statement.
+     */
+    private void executeLocked(String sql) {
+        mLock.lock();
+
+        try {
+            execute(sql);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the remaining rows of the cursors of the current transaction, which releases their results.
+     */
+    private void readCursors() {
+        while (!mCursors.isEmpty()) {
+            mCursors.get(mCursors.size() - 1).getCount();
+        }
+    }
+
+    /**
+     * Reads the rows of a result from the driver, while the connection is held by the thread of the query.
+     * Only the current row is held in the heap, unless the number of rows is requested, which reads the remaining rows.
+     */
+    private final class JdbcCursor implements BackendCursor {
+
+        private final String mSql;
+        private final String[] mColumns;
+
+        /**
+         * The statement of the query, or null once the result is released.
+         */
+        private PreparedStatement mStatement;
+
+        /**
+         * The result of the query, or null once it is released.
+         */
+        private ResultSet mResult;
+
+        /**
+         * The rows read by {@link #getCount()} from the current row, or null while the rows are streamed.
+         */
+        private ArrayList<Object[]> mRows;
+
+        /**
+         * The position of the first row of the read rows.
+         */
+        private int mFirst = 0;
+
+        private Object[] mRow;
+        private int mPosition = -1;
+
+        JdbcCursor(String sql, PreparedStatement statement, ResultSet result) throws SQLException {
+            mSql = sql;
+            mStatement = statement;
+            mResult = result;
+
+            if (result == null) {
+                mColumns = new String[0];
+                mRows = new ArrayList<>();
+                release();
+                return;
+            }
+
+            ResultSetMetaData metaData = result.getMetaData();
+            mColumns = new String[metaData.getColumnCount()];
+
+            for (int i = 0; i < mColumns.length; i++) {
+                mColumns[i] = metaData.getColumnLabel(i + 1);
+            }
+        }
+
+        /**
+         * Provides the number of rows, which reads the remaining rows into the heap.
+         */
+        @Override
+        public int getCount() {
+            if (mRows == null) {
+                mRows = new ArrayList<>();
+                mFirst = Math.max(mPosition, 0);
+
+                if (mRow != null)
+                    mRows.add(mRow);
+
+                if (mRow != null || mPosition < 0) {
+                    Object[] row;
+
+                    while ((row = readRow()) != null) {
+                        mRows.add(row);
+                    }
+                }
+            }
+
+            return mFirst + mRows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mColumns.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns.clone();
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            for (int i = 0; i < mColumns.length; i++) {
+                if (mColumns[i].equalsIgnoreCase(columnName))
+                    return i;
+            }
+
+            return -1;
+        }
+
+        /**
+         * Moves the cursor to the first row, which is not possible once the cursor moves past it.
+         * @throws IllegalStateException if the cursor is past the first row.
+         */
+        @Override
+        public boolean moveToFirst() {
+            if (mPosition > 0 && (mRows == null || mFirst > 0))
+                throw new IllegalStateException("The cursor is past the first row of the query: " + mSql);
+
+            if (mPosition == 0 && mRows == null)
+                return mRow != null;
+
+            mPosition = -1;
+            return moveToNext();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (mRows != null) {
+                if (mPosition < mFirst + mRows.size())
+                    mPosition++;
+
+                int index = mPosition - mFirst;
+                mRow = index < mRows.size() ? mRows.get(index) : null;
+            } else if (mRow != null || mPosition < 0) {
+                mRow = readRow();
+                mPosition++;
+            }
+
+            return mRow != null;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = value(column);
+
+            if (value == null)
+                return TYPE_NULL;
+
+            if (value instanceof Double || value instanceof Float)
+                return TYPE_FLOAT;
+
+            if (value instanceof Number)
+                return TYPE_INTEGER;
+
+            if (value instanceof byte[])
+                return TYPE_BLOB;
+
+            return TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return value(column) == null;
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = value(column);
+
+            if (value == null)
+                return 0;
+
+            return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = value(column);
+
+            if (value == null)
+                return 0;
+
+            return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = value(column);
+
+            if (value instanceof byte[])
+                throw new IllegalStateException("The column " + mColumns[column] + " is a blob.");
+
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = value(column);
+
+            if (value == null || value instanceof byte[])
+                return (byte[]) value;
+
+            return value.toString().getBytes();
+        }
+
+        @Override
+        public void close() {
+            mRow = null;
+
+            if (mRows != null)
+                mRows.clear();
+
+            release();
+        }
+
+        private Object value(int column) {
+            if (mRow == null)
+                throw new IllegalStateException("The cursor is not positioned at a row.");
+
+            return mRow[column];
+        }
+
+        /**
+         * Reads the next row of the result, which is released after the last row.
+         * @return the values of the row, or null if the result has no more rows.
+         */
+        private Object[] readRow() {
+            if (mResult == null)
+                return null;
+
+            try {
+                if (!mResult.next()) {
+                    release();
+                    return null;
+                }
+
+                Object[] row = new Object[mColumns.length];
+
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = mResult.getObject(i + 1);
+                }
+
+                return row;
+            } catch (SQLException e) {
+                release();
+                throw new JdbcBackendException(mSql, e);
+            }
+        }
+
+        /**
+         * Closes the statement of the result, and releases the connection held since the query.
+         */
+        private void release() {
+            if (mStatement == null)
+                return;
+
+            try {
+                mStatement.close();
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            } finally {
+                mStatement = null;
+                mResult = null;
+                mCursors.remove(this);
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Executes a prepared statement of the connection.
+     */
+    private final class JdbcStatement implements BackendStatement {
+
+        private final String mSql;
+        private final PreparedStatement mStatement;
+
+        /**
+         * The number of parameters of the statement, which is read when the statement is compiled.
+         */
+        private final int mParameterCount;
+
+        JdbcStatement(String sql, PreparedStatement statement, int parameterCount) {
+            mSql = sql;
+            mStatement = statement;
+            mParameterCount = parameterCount;
+        }
+
+        @Override
+        public void bindNull(int index) {
+            try {
+                mStatement.setNull(index, Types.NULL);
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            }
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            try {
+                mStatement.setLong(index, value);
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            }
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            try {
+                mStatement.setDouble(index, value);
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            }
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            try {
+                mStatement.setString(index, value);
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            }
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            try {
+                mStatement.setBytes(index, value);
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            }
+        }
+
+        @Override
+        public void clearBindings() {
+            try {
+                for (int i = 1; i <= mParameterCount; i++) {
+                    mStatement.setNull(i, Types.NULL);
+                }
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            }
+        }
+
+        @Override
+        public void execute() {
+            mLock.lock();
+
+            try {
+                mStatement.execute();
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * The ROWID of the inserted row is read by last_insert_rowid() if the statement changes a row.
+         */
+        @Override
+        public long executeInsert() {
+            mLock.lock();
+
+            try {
+                if (mStatement.executeUpdate() == 0)
+                    return -1;
+
+                Statement statement = mConnection.createStatement();
+
+                try {
+                    ResultSet result = statement.executeQuery("SELECT last_insert_rowid()");
+                    return result.next() ? result.getLong(1) : -1;
+                } finally {
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            mLock.lock();
+
+            try {
+                return mStatement.executeUpdate();
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                mStatement.close();
+            } catch (SQLException e) {
+                throw new JdbcBackendException(mSql, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.github.yaa110.db;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown by the {@link JdbcBackend} if a SQL statement fails, wrapping the SQLException of the JDBC driver.
+ */
+public class JdbcBackendException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    JdbcBackendException(String sql, SQLException cause) {
+        super(cause.getMessage() + (sql == null ? "" : " (" + sql + ")"), cause);
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.github.yaa110.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JdbcBackendTest {
+
+    private JdbcBackend mBackend;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = TestDatabase.memory();
+        mBackend.execSQL("CREATE TABLE t (id INTEGER PRIMARY KEY, v TEXT)", null);
+
+        for (int i = 1; i <= 5; i++) {
+            mBackend.execSQL("INSERT INTO t VALUES (?, ?)", new Object[] {i, "v" + i});
+        }
+
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mBackend.close();
+    }
+
+    @Test
+    public void countsRemainingRowsOfStreamedCursor() {
+        BackendCursor cursor = mBackend.query("SELECT v FROM t ORDER BY id", null);
+
+        try {
+            assertTrue(cursor.moveToNext());
+            assertTrue(cursor.moveToNext());
+            assertEquals(5, cursor.getCount());
+            assertEquals("v2", cursor.getString(0));
+
+            for (int i = 3; i <= 5; i++) {
+                assertTrue(cursor.moveToNext());
+                assertEquals("v" + i, cursor.getString(0));
+            }
+
+            assertFalse(cursor.moveToNext());
+            assertEquals(5, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void holdsConnectionUntilCursorIsClosed() throws Exception {
+        BackendCursor cursor = mBackend.query("SELECT v FROM t", null);
+        assertTrue(cursor.moveToFirst());
+
+        Future<String> other = mExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return TestDatabase.value(mBackend, "SELECT COUNT(*) FROM t");
+            }
+        });
+
+        try {
+            other.get(200, TimeUnit.MILLISECONDS);
+            fail("The connection is used by another thread while the cursor is open.");
+        } catch (TimeoutException e) {
+            // The other thread waits for the cursor
+        }
+
+        cursor.close();
+
+        assertEquals("5", other.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void releasesConnectionWhenTransactionEnds() throws Exception {
+        mBackend.beginTransaction();
+        BackendCursor cursor = mBackend.query("SELECT v FROM t ORDER BY id", null);
+        assertTrue(cursor.moveToFirst());
+        mBackend.setTransactionSuccessful();
+        mBackend.endTransaction();
+
+        Future<String> other = mExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return TestDatabase.value(mBackend, "SELECT COUNT(*) FROM t");
+            }
+        });
+
+        try {
+            assertEquals("5", other.get(5, TimeUnit.SECONDS));
+
+            for (int i = 2; i <= 5; i++) {
+                assertTrue(cursor.moveToNext());
+                assertEquals("v" + i, cursor.getString(0));
+            }
+
+            assertFalse(cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.github.yaa110.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static com.github.yaa110.db.TestDatabase.values;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RestoreOrderTest {
+
+    private JdbcBackend mBackend;
+    private RestorableDatabase mDatabase;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = TestDatabase.memory();
+        mBackend.execSQL("CREATE TABLE t (id INTEGER PRIMARY KEY, v TEXT)", null);
+        mBackend.execSQL("INSERT INTO t VALUES (1, 'a')", null);
+
+        mDatabase = new RestorableDatabase(mBackend, Collections.singletonMap("t", "id"));
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void restoresCapturesOfTagNewestFirst() {
+        update("b", "s");
+        update("c", "s");
+
+        mDatabase.restore("s");
+
+        assertEquals("a", current());
+        assertFalse(mDatabase.containsTag("s"));
+    }
+
+    @Test
+    public void restoresAllTagsNewestFirst() {
+        update("b", "s:1");
+        update("c", "s:2");
+        update("d", "s:1");
+
+        mDatabase.restoreAll();
+
+        assertEquals("a", current());
+        assertTrue(mDatabase.tagSet().isEmpty());
+    }
+
+    @Test
+    public void restoresTagsNewestFirstWhateverTheirOrder() {
+        update("b", "u");
+        mDatabase.delete("t", "id = 1", null, "d");
+
+        mDatabase.restore(new LinkedHashSet<>(Arrays.asList("u", "d")));
+
+        assertEquals("a", current());
+    }
+
+    @Test
+    public void restoresInterleavedTagsNewestFirst() {
+        update("b", "x");
+        update("c", "y");
+        update("d", "x");
+        update("e", "y");
+
+        mDatabase.restore(new String[] {"x", "y"});
+
+        assertEquals("a", current());
+    }
+
+    @Test
+    public void restoresTagsOfPrefixNewestFirst() {
+        update("z", "other");
+        update("b", "s:1");
+        update("c", "s:2");
+
+        mDatabase.restoreByPrefix("s:");
+
+        assertEquals("z", current());
+        assertEquals(Collections.singleton("other"), mDatabase.tagSet());
+    }
+
+    @Test
+    public void restoresCapturesAfterCheckpoint() {
+        update("b", "s:1");
+        long checkpoint = mDatabase.checkpoint();
+        update("c", "s:2");
+        update("d", "s:1");
+
+        mDatabase.restoreTo(checkpoint);
+
+        assertEquals("b", current());
+        assertTrue(mDatabase.containsTag("s:1"));
+        assertFalse(mDatabase.containsTag("s:2"));
+    }
+
+    private void update(String value, String tag) {
+        mDatabase.updateWithOnConflict("t", values("v", value), "id = 1", null, RestorableDatabase.CONFLICT_NONE, tag);
+    }
+
+    private String current() {
+        return TestDatabase.value(mBackend, "SELECT v FROM t WHERE id = 1");
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.github.yaa110.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.yaa110.db.TestDatabase.values;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class SavepointTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private JdbcBackend mBackend;
+    private RestorableDatabase mDatabase;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = mFolder.newFile("savepoint.db");
+        mBackend = TestDatabase.open(mFile);
+        mBackend.execSQL("CREATE TABLE t (id INTEGER PRIMARY KEY, v TEXT)", null);
+        mBackend.execSQL("INSERT INTO t VALUES (1, 'a')", null);
+
+        mDatabase = new RestorableDatabase(mBackend);
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mDatabase.close();
+    }
+
+    @Test
+    public void keepsChangesOfSavepointBody() {
+        int rows = mDatabase.runInSavepoint("edit", new RestorableDatabase.SavepointBody<Integer>() {
+            @Override
+            public Integer run(String tag) {
+                return update("b", tag);
+            }
+        });
+
+        assertEquals(1, rows);
+        assertFalse(mDatabase.isSavepoint("edit"));
+        assertEquals("b", TestDatabase.value(mBackend, "SELECT v FROM t"));
+    }
+
+    @Test
+    public void rollsBackSavepointBodyWhichThrows() throws Exception {
+        try {
+            mDatabase.runInSavepoint("edit", new RestorableDatabase.SavepointBody<Void>() {
+                @Override
+                public Void run(String tag) {
+                    update("b", tag);
+                    mDatabase.beginSavepoint("nested");
+                    update("c", "nested");
+                    throw new IllegalStateException("canceled");
+                }
+            });
+            fail("The exception of the body is thrown.");
+        } catch (IllegalStateException e) {
+            assertEquals("canceled", e.getMessage());
+        }
+
+        assertFalse(mDatabase.isSavepoint("edit") || mDatabase.isSavepoint("nested"));
+
+        // The transaction of the savepoint tags is ended, so other threads write again
+        Future<Integer> other = mExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return update("d", "other");
+            }
+        });
+
+        assertEquals(1, (int) other.get(5, TimeUnit.SECONDS));
+        assertEquals("d", TestDatabase.value(mBackend, "SELECT v FROM t"));
+    }
+
+    @Test
+    public void rollsBackOpenSavepointsOnClose() throws Exception {
+        mDatabase.beginSavepoint("edit");
+        update("b", "edit");
+        mDatabase.close();
+
+        mBackend = TestDatabase.open(mFile);
+        mDatabase = new RestorableDatabase(mBackend);
+
+        assertEquals("a", TestDatabase.value(mBackend, "SELECT v FROM t"));
+    }
+
+    @Test
+    public void rejectsCloseWhileSavepointsOfAnotherThreadAreOpen() throws Exception {
+        mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mDatabase.beginSavepoint("edit");
+                return null;
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        try {
+            mDatabase.close();
+            fail("The database is closed while another thread holds its savepoint tags.");
+        } catch (IllegalStateException e) {
+            // The savepoint tags are still open
+        }
+
+        mExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDatabase.restore("edit");
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    private int update(String v, String tag) {
+        return mDatabase.updateWithOnConflict("t", values("v", v), "id = 1", null, RestorableDatabase.CONFLICT_NONE, tag);
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.github.yaa110.db;
+
+import java.io.File;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Opens the SQLite databases of the tests and reads their tables.
+ */
+final class TestDatabase {
+
+    private TestDatabase() {
+    }
+
+    /**
+     * Opens a connection to the database file.
+     * @param file the database file, which is created if it does not exist.
+     * @return the backend of the connection.
+     * @throws SQLException if the connection fails.
+     */
+    static JdbcBackend open(File file) throws SQLException {
+        return new JdbcBackend(DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath()));
+    }
+
+    /**
+     * Opens a connection to a new in-memory database.
+     * @return the backend of the connection.
+     * @throws SQLException if the connection fails.
+     */
+    static JdbcBackend memory() throws SQLException {
+        return new JdbcBackend(DriverManager.getConnection("jdbc:sqlite::memory:"));
+    }
+
+    /**
+     * Reads all rows of the table in the order of their first column, e.g. to compare the table before and after a restore.
+     * The blobs are written as the arrays of their bytes.
+     * @param db the database.
+     * @param table the table name.
+     * @return the rows separated by semicolons, whose values are separated by commas.
+     */
+    static String dump(Backend db, String table) {
+        StringBuilder rows = new StringBuilder();
+        BackendCursor cursor = db.query("SELECT * FROM " + table + " ORDER BY 1", null);
+
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (i > 0) rows.append(',');
+
+                    switch (cursor.getType(i)) {
+                        case BackendCursor.TYPE_NULL:
+                            rows.append("null");
+                            break;
+                        case BackendCursor.TYPE_BLOB:
+                            rows.append(Arrays.toString(cursor.getBlob(i)));
+                            break;
+                        default:
+                            rows.append(cursor.getString(i));
+                            break;
+                    }
+                }
+
+                rows.append(';');
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return rows.toString();
+    }
+
+    /**
+     * Reads the first column of the first row of a query.
+     * @param db the database.
+     * @param sql the SQL query.
+     * @return the value, or null if the query has no row.
+     */
+    static String value(Backend db, String sql) {
+        BackendCursor cursor = db.query(sql, null);
+
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds the values of a row.
+     * @param columnsAndValues the column names followed by their values.
+     * @return the values in the given order.
+     */
+    static Map<String, Object> values(Object... columnsAndValues) {
+        Map<String, Object> values = new LinkedHashMap<>();
+
+        for (int i = 0; i < columnsAndValues.length; i += 2) {
+            values.put((String) columnsAndValues[i], columnsAndValues[i + 1]);
+        }
+
+        return values;
+    }
+
+}
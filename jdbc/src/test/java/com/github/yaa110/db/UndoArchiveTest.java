@@ -0,0 +1,110 @@
+package com.github.yaa110.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import static com.github.yaa110.db.TestDatabase.values;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UndoArchiveTest {
+
+    private JdbcBackend mBackend;
+    private RestorableDatabase mDatabase;
+    private String mItems;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = TestDatabase.memory();
+        mBackend.execSQL("CREATE TABLE items (id INTEGER PRIMARY KEY, name TEXT, price REAL, data BLOB)", null);
+
+        for (int i = 1; i <= 30; i++) {
+            mBackend.execSQL("INSERT INTO items VALUES (?, ?, ?, ?)",
+                    new Object[] {i, "item\u00e9" + i, i * -2.25, new byte[] {(byte) i, 0, -1}});
+        }
+
+        mItems = TestDatabase.dump(mBackend, "items");
+        mDatabase = new RestorableDatabase(mBackend);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void restoresImportedLog() throws IOException {
+        capture();
+        ByteBuffer archive = export();
+
+        RestorableDatabase imported = new RestorableDatabase(mBackend);
+
+        assertEquals(3, imported.importUndoLog(archive));
+        assertEquals(mDatabase.tagSet(), imported.tagSet());
+        assertEquals(mDatabase.getTagQueryTable(), imported.getTagQueryTable());
+        assertEquals(mDatabase.getQueries("update").size(), imported.getQueries("update").size());
+
+        imported.restoreAll();
+
+        assertEquals(mItems, TestDatabase.dump(mBackend, "items"));
+    }
+
+    @Test
+    public void replacesLogByImport() throws IOException {
+        capture();
+        ByteBuffer archive = export();
+
+        mDatabase.delete("items", "id = 1", null, "other");
+        mDatabase.importUndoLog(archive);
+
+        assertFalse(mDatabase.containsTag("other"));
+
+        mDatabase.restore(new String[] {"insert", "delete", "update"});
+        mDatabase.restore(new String[] {"other"});
+
+        assertEquals(mItems.substring(mItems.indexOf(';') + 1), TestDatabase.dump(mBackend, "items"));
+    }
+
+    @Test
+    public void releasesShadowRowsOfReplacedLog() throws IOException {
+        mDatabase.setCaptureMode(RestorableDatabase.CAPTURE_SHADOW);
+        capture();
+        ByteBuffer archive = export();
+
+        mDatabase.delete("items", "id = 1", null, "other");
+        mDatabase.importUndoLog(archive);
+
+        assertEquals("20", TestDatabase.value(mBackend, "SELECT COUNT(*) FROM restorable_undo_image_items"));
+
+        mDatabase.restore(new String[] {"insert", "delete", "update"});
+
+        assertEquals("0", TestDatabase.value(mBackend, "SELECT COUNT(*) FROM restorable_undo_image_items"));
+        assertEquals(mItems.substring(mItems.indexOf(';') + 1), TestDatabase.dump(mBackend, "items"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws IOException {
+        mDatabase.importUndoLog(ByteBuffer.wrap(new byte[] {'N', 'O', 'P', 'E', 0, 0, 0, 1}));
+    }
+
+    private void capture() {
+        mDatabase.updateWithOnConflict("items", values("name", "updated", "data", null), "id <= 10", null,
+                RestorableDatabase.CONFLICT_NONE, "update");
+        mDatabase.delete("items", "id > 20", null, "delete");
+        mDatabase.insertWithOnConflict("items", null, values("name", "new"), RestorableDatabase.CONFLICT_NONE, "insert");
+    }
+
+    private ByteBuffer export() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mDatabase.exportUndoLog(Channels.newChannel(out));
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+}
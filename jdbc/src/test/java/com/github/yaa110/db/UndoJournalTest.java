@@ -0,0 +1,135 @@
+package com.github.yaa110.db;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import static com.github.yaa110.db.TestDatabase.values;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UndoJournalTest {
+
+    private static final Map<String, String> TABLE_ROWID = Collections.singletonMap("items", "id");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private String mItems;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = mFolder.newFile("journal.db");
+
+        JdbcBackend backend = TestDatabase.open(mFile);
+        backend.execSQL("CREATE TABLE items (id INTEGER PRIMARY KEY, name TEXT)", null);
+
+        for (int i = 1; i <= 50; i++) {
+            backend.execSQL("INSERT INTO items VALUES (?, ?)", new Object[] {i, "item" + i});
+        }
+
+        mItems = TestDatabase.dump(backend, "items");
+        backend.close();
+    }
+
+    @Test
+    public void restoresTagsAfterReopen() throws Exception {
+        RestorableDatabase db = new RestorableDatabase(TestDatabase.open(mFile), TABLE_ROWID);
+        db.enableJournal(0);
+        db.updateWithOnConflict("items", values("name", "updated"), "id <= 10", null, RestorableDatabase.CONFLICT_NONE, "update");
+        db.delete("items", "id > 40", null, "delete");
+        db.insertWithOnConflict("items", null, values("name", "new"), RestorableDatabase.CONFLICT_NONE, "insert");
+        db.close();
+
+        JdbcBackend backend = TestDatabase.open(mFile);
+        db = new RestorableDatabase(backend, TABLE_ROWID);
+
+        assertTrue(db.isJournalEnabled());
+        assertTrue(db.containsTag("update") && db.containsTag("delete") && db.containsTag("insert"));
+
+        db.restoreAll();
+
+        assertEquals(mItems, TestDatabase.dump(backend, "items"));
+        assertTrue(db.tagSet().isEmpty());
+        db.close();
+    }
+
+    @Test
+    public void restoresShadowCapturesAfterReopen() throws Exception {
+        RestorableDatabase db = new RestorableDatabase(TestDatabase.open(mFile));
+        db.enableJournal();
+        db.setCaptureMode(RestorableDatabase.CAPTURE_SHADOW);
+        db.updateWithOnConflict("items", values("name", "updated"), "id <= 10", null, RestorableDatabase.CONFLICT_NONE, "update");
+        db.delete("items", "id > 40", null, "delete");
+        db.close();
+
+        JdbcBackend backend = TestDatabase.open(mFile);
+        db = new RestorableDatabase(backend);
+        db.restore(new String[] {"delete", "update"});
+
+        assertEquals(mItems, TestDatabase.dump(backend, "items"));
+        db.close();
+    }
+
+    @Test
+    public void deletesShadowRowsOfLostCaptures() throws Exception {
+        RestorableDatabase db = new RestorableDatabase(TestDatabase.open(mFile));
+        db.setCaptureMode(RestorableDatabase.CAPTURE_SHADOW);
+        db.delete("items", "id > 40", null, "lost");
+        db.close();
+
+        JdbcBackend backend = TestDatabase.open(mFile);
+        db = new RestorableDatabase(backend);
+
+        assertFalse(db.containsTag("lost"));
+        assertEquals("0", TestDatabase.value(backend, "SELECT COUNT(*) FROM restorable_undo_image_items"));
+
+        db.setCaptureMode(RestorableDatabase.CAPTURE_SHADOW);
+        db.delete("items", "id <= 5", null, "delete");
+
+        assertEquals("2", TestDatabase.value(backend, "SELECT capture FROM restorable_undo_image_items LIMIT 1"));
+
+        db.restore("delete");
+
+        assertEquals("0", TestDatabase.value(backend, "SELECT COUNT(*) FROM restorable_undo_image_items"));
+        assertEquals(mItems.substring(0, mItems.indexOf("41,")), TestDatabase.dump(backend, "items"));
+        db.close();
+    }
+
+    @Test
+    public void streamsChunksToJournal() throws Exception {
+        JdbcBackend backend = TestDatabase.open(mFile);
+        RestorableDatabase db = new RestorableDatabase(backend, TABLE_ROWID);
+        db.enableJournal(0);
+        db.setCaptureChunkSize(4);
+        db.delete("items", "id > 10", null, "delete");
+
+        assertEquals(40, db.restore("delete"));
+
+        assertEquals(mItems, TestDatabase.dump(backend, "items"));
+        db.close();
+    }
+
+    @Test
+    public void dropsJournalOnceDisabled() throws Exception {
+        RestorableDatabase db = new RestorableDatabase(TestDatabase.open(mFile), TABLE_ROWID);
+        db.enableJournal(0);
+        db.delete("items", "id <= 5", null, "delete");
+        db.disableJournal();
+        db.close();
+
+        db = new RestorableDatabase(TestDatabase.open(mFile), TABLE_ROWID);
+
+        assertFalse(db.isJournalEnabled());
+        assertFalse(db.containsTag("delete"));
+        db.close();
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.github.yaa110.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.github.yaa110.db.TestDatabase.values;
+import static org.junit.Assert.assertEquals;
+
+public class UndoPlanTest {
+
+    private static final Map<String, String> TABLE_ROWID = new HashMap<>();
+
+    static {
+        TABLE_ROWID.put("items", "id");
+        TABLE_ROWID.put("notes", "id");
+    }
+
+    private JdbcBackend mBackend;
+    private RestorableDatabase mDatabase;
+    private String mItems;
+    private String mNotes;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = TestDatabase.memory();
+        mBackend.execSQL("CREATE TABLE items (id INTEGER PRIMARY KEY, name TEXT)", null);
+        mBackend.execSQL("CREATE TABLE notes (id INTEGER PRIMARY KEY, body TEXT)", null);
+
+        for (int i = 1; i <= 5; i++) {
+            mBackend.execSQL("INSERT INTO items VALUES (?, ?)", new Object[] {i, "item" + i});
+            mBackend.execSQL("INSERT INTO notes VALUES (?, ?)", new Object[] {i, "note" + i});
+        }
+
+        mItems = TestDatabase.dump(mBackend, "items");
+        mNotes = TestDatabase.dump(mBackend, "notes");
+
+        mDatabase = new RestorableDatabase(mBackend, TABLE_ROWID);
+        mDatabase.enableCoalescing();
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void dropsRowInsertedAndDeletedByTag() {
+        mDatabase.insertWithOnConflict("items", null, values("id", 6, "name", "new"), RestorableDatabase.CONFLICT_NONE, "t");
+        mDatabase.updateWithOnConflict("items", values("name", "updated"), "id = 1", null, RestorableDatabase.CONFLICT_NONE, "t");
+        mDatabase.delete("items", "id = 6", null, "t");
+
+        assertEquals(1, mDatabase.restore("t"));
+        assertEquals(mItems, TestDatabase.dump(mBackend, "items"));
+    }
+
+    @Test
+    public void dropsRowInsertedAndDeletedByOtherTags() {
+        mDatabase.insertWithOnConflict("items", null, values("id", 6, "name", "new"), RestorableDatabase.CONFLICT_NONE, "insert");
+        mDatabase.delete("items", "id = 6", null, "delete");
+
+        assertEquals(0, mDatabase.restore(new String[] {"insert", "delete"}));
+        assertEquals(mItems, TestDatabase.dump(mBackend, "items"));
+    }
+
+    @Test
+    public void deletesRowInsertedAndReplacedByTag() {
+        // The replaced image is restored by an update, so the inserted row is still deleted
+        mDatabase.insertWithOnConflict("items", null, values("id", 6, "name", "new"), RestorableDatabase.CONFLICT_NONE, "t");
+        mDatabase.insertWithOnConflict("items", null, values("id", 6, "name", "replaced"), RestorableDatabase.CONFLICT_REPLACE, "t");
+
+        assertEquals(1, mDatabase.restore("t"));
+        assertEquals(mItems, TestDatabase.dump(mBackend, "items"));
+    }
+
+    @Test
+    public void restoresRowDeletedAgainByTag() {
+        mDatabase.delete("items", "id = 2", null, "t");
+        mDatabase.insertWithOnConflict("items", null, values("id", 2, "name", "again"), RestorableDatabase.CONFLICT_NONE, "t");
+        mDatabase.delete("items", "id = 2", null, "t");
+
+        assertEquals(1, mDatabase.restore("t"));
+        assertEquals(mItems, TestDatabase.dump(mBackend, "items"));
+    }
+
+    @Test
+    public void restoresInterleavedTables() {
+        for (int i = 1; i <= 5; i++) {
+            mDatabase.updateWithOnConflict("items", values("name", "x" + i), "id = " + i, null, RestorableDatabase.CONFLICT_NONE, "t");
+            mDatabase.delete("notes", "id = " + i, null, "t");
+            mDatabase.updateWithOnConflict("items", values("name", "y" + i), "id = " + i, null, RestorableDatabase.CONFLICT_NONE, "t");
+        }
+
+        mDatabase.execSQL("INSERT INTO notes (body) VALUES ('raw')", "t");
+        mDatabase.updateWithOnConflict("items", values("name", "z"), null, null, RestorableDatabase.CONFLICT_NONE, "t");
+
+        mDatabase.restore("t");
+
+        assertEquals(mItems, TestDatabase.dump(mBackend, "items"));
+        assertEquals(mNotes, TestDatabase.dump(mBackend, "notes"));
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.github.yaa110.db;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+/**
+ * Stores the database of the {@link RestorableDatabase} in android's SQLiteDatabase.
+ * The wrapped database is replaced once the database is reopened.
+ */
+final class AndroidBackend implements Backend {
+
+    /**
+     * Determines if the cursors provide the type of columns.
+     */
+    private static final boolean TYPED_CURSOR = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+
+    private volatile SQLiteDatabase mSQLiteDatabase;
+
+    AndroidBackend(SQLiteDatabase db) {
+        mSQLiteDatabase = db;
+    }
+
+    /**
+     * Provides the instance of wrapped SQLiteDatabase.
+     * @return the instance of wrapped SQLiteDatabase.
+     */
+    SQLiteDatabase getSQLiteDatabase() {
+        return mSQLiteDatabase;
+    }
+
+    /**
+     * Replaces the wrapped database.
+     * @param db the instance of the SQLiteDatabase to be wrapped.
+     */
+    void reopen(SQLiteDatabase db) {
+        mSQLiteDatabase = db;
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void beginTransaction() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            mSQLiteDatabase.beginTransactionNonExclusive();
+        } else {
+            mSQLiteDatabase.beginTransaction();
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        mSQLiteDatabase.setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        mSQLiteDatabase.endTransaction();
+    }
+
+    @Override
+    public void savepoint(String name) {
+        mSQLiteDatabase.execSQL("SAVEPOINT " + SqlStatement.quote(name));
+    }
+
+    /**
+     * SQLiteDatabase ends its own transaction for statements beginning with ROLLBACK,
+     * so the statement begins with a comment to be executed by SQLite as is.
+     */
+    @Override
+    public void rollbackToSavepoint(String name) {
+        mSQLiteDatabase.execSQL("/* savepoint */ ROLLBACK TO " + SqlStatement.quote(name));
+    }
+
+    @Override
+    public void releaseSavepoint(String name) {
+        mSQLiteDatabase.execSQL("RELEASE " + SqlStatement.quote(name));
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) {
+        if (bindArgs == null) {
+            mSQLiteDatabase.execSQL(sql);
+        } else {
+            mSQLiteDatabase.execSQL(sql, bindArgs);
+        }
+    }
+
+    @Override
+    public BackendCursor query(String sql, String[] selectionArgs) {
+        return new AndroidCursor(mSQLiteDatabase.rawQuery(sql, selectionArgs));
+    }
+
+    @Override
+    public BackendStatement compileStatement(String sql) {
+        return new AndroidStatement(mSQLiteDatabase, mSQLiteDatabase.compileStatement(sql));
+    }
+
+    @Override
+    public void close() {
+        mSQLiteDatabase.close();
+    }
+
+    /**
+     * Reads the rows of android's Cursor.
+     */
+    private static final class AndroidCursor implements BackendCursor {
+
+        private final Cursor mCursor;
+
+        AndroidCursor(Cursor cursor) {
+            mCursor = cursor;
+        }
+
+        @Override
+        public int getCount() {
+            return mCursor.getCount();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mCursor.getColumnCount();
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mCursor.getColumnNames();
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            return mCursor.getColumnIndex(columnName);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return mCursor.moveToFirst();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return mCursor.moveToNext();
+        }
+
+        /**
+         * The cursors provide the type of columns since HONEYCOMB, and the types have the same values.
+         */
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public int getType(int column) {
+            return TYPED_CURSOR ? mCursor.getType(column) : TYPE_UNKNOWN;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return mCursor.isNull(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return mCursor.getInt(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return mCursor.getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return mCursor.getDouble(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return mCursor.getString(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return mCursor.getBlob(column);
+        }
+
+        @Override
+        public void close() {
+            mCursor.close();
+        }
+    }
+
+    /**
+     * Executes android's SQLiteStatement.
+     */
+    private static final class AndroidStatement implements BackendStatement {
+
+        private final SQLiteDatabase mDatabase;
+        private final SQLiteStatement mStatement;
+
+        AndroidStatement(SQLiteDatabase db, SQLiteStatement statement) {
+            mDatabase = db;
+            mStatement = statement;
+        }
+
+        @Override
+        public void bindNull(int index) {
+            mStatement.bindNull(index);
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            mStatement.bindLong(index, value);
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            mStatement.bindDouble(index, value);
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            mStatement.bindString(index, value);
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            mStatement.bindBlob(index, value);
+        }
+
+        @Override
+        public void clearBindings() {
+            mStatement.clearBindings();
+        }
+
+        @Override
+        public void execute() {
+            mStatement.execute();
+        }
+
+        @Override
+        public long executeInsert() {
+            return mStatement.executeInsert();
+        }
+
+        /**
+         * The number of changed rows is read by changes() before HONEYCOMB.
+         */
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public int executeUpdateDelete() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+                return mStatement.executeUpdateDelete();
+
+            mStatement.execute();
+
+            Cursor cursor = mDatabase.rawQuery("SELECT changes()", null);
+
+            try {
+                return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            mStatement.close();
+        }
+    }
+
+}
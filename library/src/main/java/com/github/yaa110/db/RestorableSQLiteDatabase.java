@@ -1,6 +1,8 @@
 package com.github.yaa110.db;
 
+import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -8,117 +10,245 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
 import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.util.Log;
 
 import net.sf.jsqlparser.JSQLParserException;
-import net.sf.jsqlparser.parser.CCJSqlParserUtil;
-import net.sf.jsqlparser.statement.Statement;
-import net.sf.jsqlparser.statement.delete.Delete;
-import net.sf.jsqlparser.statement.insert.Insert;
-import net.sf.jsqlparser.statement.update.Update;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Locale;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 /**
  * A wrapper to replicate android's SQLiteDatabase class with restoring capability.
  * This wrapper makes it possible to undo changes made after execution of SQL commands.
+ * The wrapper is thread-safe: the restoring queries are captured in the same transaction as the change they undo.
+ * The changes are captured and restored by a {@link RestorableDatabase} on the wrapped SQLiteDatabase.
  */
 @SuppressWarnings("UnusedDeclaration")
 public class RestorableSQLiteDatabase {
 
-    private static RestorableSQLiteDatabase mInstance = null;
-    private SQLiteDatabase mSQLiteDatabase;
+    private static volatile RestorableSQLiteDatabase mInstance = null;
     private static final String TAG = "SQLiteDatabase";
 
     /**
-     * The hash table to map a tag to its restoring queries.
+     * Determines if the platform provides the CancellationSignal, which is added in JELLY_BEAN (API level 16).
+     * The library runs from GINGERBREAD (API level 9), so a null signal is passed on earlier platforms.
      */
-    private Hashtable<String, ArrayList<String>> mTagQueryTable;
+    private static final boolean CANCELLATION_SIGNAL = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
 
     /**
-     * The hash table to map a tag to the parameters should be used in the queries.
+     * The default heap budget of the journal in bytes.
      */
-    private Hashtable<String, ArrayList<String[]>> mTagQueryParameters;
+    public static final long DEFAULT_HEAP_BUDGET = RestorableDatabase.DEFAULT_HEAP_BUDGET;
 
     /**
-     * Maps the table name to its ROWID column name.
+     * Disables a limit of the undo log.
      */
-    private HashMap<String, String> mTableRowid;
+    public static final int NO_LIMIT = RestorableDatabase.NO_LIMIT;
+
+    /**
+     * Evicts the tags in the order of their capture.
+     */
+    public static final int EVICTION_OLDEST_FIRST = RestorableDatabase.EVICTION_OLDEST_FIRST;
+
+    /**
+     * Evicts the least recently captured or accessed tags first.
+     */
+    public static final int EVICTION_LEAST_RECENTLY_USED = RestorableDatabase.EVICTION_LEAST_RECENTLY_USED;
+
+    /**
+     * Evicts the tags which expire soonest first, and the tags without time to live in the order of their capture.
+     */
+    public static final int EVICTION_SOONEST_EXPIRING = RestorableDatabase.EVICTION_SOONEST_EXPIRING;
+
+    /**
+     * The tag is evicted since a limit of the undo log is exceeded.
+     */
+    public static final int EVICTED_BY_LIMIT = RestorableDatabase.EVICTED_BY_LIMIT;
+
+    /**
+     * The tag is evicted since its time to live is elapsed.
+     */
+    public static final int EVICTED_BY_TTL = RestorableDatabase.EVICTED_BY_TTL;
+
+    /**
+     * The tag is evicted by {@link #trimMemory(int) trimMemory}.
+     */
+    public static final int EVICTED_BY_MEMORY_PRESSURE = RestorableDatabase.EVICTED_BY_MEMORY_PRESSURE;
+
+    /**
+     * The default number of affected rows read by a single query while capturing.
+     */
+    public static final int DEFAULT_CAPTURE_CHUNK_SIZE = RestorableDatabase.DEFAULT_CAPTURE_CHUNK_SIZE;
+
+    /**
+     * The default number of restoring queries executed in a single transaction by the asynchronous restores.
+     */
+    public static final int DEFAULT_RESTORE_SLICE_SIZE = RestorableDatabase.DEFAULT_RESTORE_SLICE_SIZE;
+
+    /**
+     * Captures the affected rows by reading them through a cursor before each change.
+     */
+    public static final int CAPTURE_CURSOR = RestorableDatabase.CAPTURE_CURSOR;
+
+    /**
+     * Captures the affected rows inside SQLite by temporary triggers on the captured tables.
+     */
+    public static final int CAPTURE_TRIGGERS = RestorableDatabase.CAPTURE_TRIGGERS;
+
+    /**
+     * Captures the rows affected by updates and deletions inside SQLite by copying them into shadow tables,
+     * so each capture is restored by a single set-based query.
+     */
+    public static final int CAPTURE_SHADOW = RestorableDatabase.CAPTURE_SHADOW;
+
+    /**
+     * The change captured by insert, insertWithOnConflict, insertAll or replaceAll.
+     */
+    public static final int OPERATION_INSERT = RestorableDatabase.OPERATION_INSERT;
+
+    /**
+     * The change captured by update or updateWithOnConflict.
+     */
+    public static final int OPERATION_UPDATE = RestorableDatabase.OPERATION_UPDATE;
+
+    /**
+     * The change captured by delete.
+     */
+    public static final int OPERATION_DELETE = RestorableDatabase.OPERATION_DELETE;
+
+    /**
+     * The change captured by rawQuery.
+     */
+    public static final int OPERATION_RAW_QUERY = RestorableDatabase.OPERATION_RAW_QUERY;
+
+    /**
+     * The change captured by execSQL.
+     */
+    public static final int OPERATION_EXEC_SQL = RestorableDatabase.OPERATION_EXEC_SQL;
+
+    /**
+     * Interface definition for a callback to be invoked when a tag is evicted from the undo log.
+     */
+    public interface OnTagEvictedListener extends RestorableDatabase.OnTagEvictedListener {
+    }
+
+    /**
+     * Interface definition for a callback to be invoked while tags are restored asynchronously.
+     */
+    public interface OnRestoreProgressListener extends RestorableDatabase.OnRestoreProgressListener {
+    }
+
+    /**
+     * Captures and restores the changes of the wrapped database.
+     */
+    private final RestorableDatabase mDatabase;
+
+    private final AndroidBackend mBackend;
 
     /**
      * Constructs a new instance of the RestorableSQLiteDatabase only if no instance is constructed.
      * @param mSQLiteDatabase the instance of the SQLiteDatabase to be wrapped.
-     * @param tableRowid maps the table name to its ROWID column name.
+     * @param tableRowid maps the table name to its ROWID column name, where a null column is discovered,
+     *                   or null to capture all tables of the database.
      * @return an instance of this class.
      */
     public static RestorableSQLiteDatabase getInstance(SQLiteDatabase mSQLiteDatabase, HashMap<String, String> tableRowid) {
-        if(mInstance == null) {
-            mInstance = new RestorableSQLiteDatabase(mSQLiteDatabase, tableRowid);
+        RestorableSQLiteDatabase instance = mInstance;
+        if(instance == null) {
+            synchronized (RestorableSQLiteDatabase.class) {
+                instance = mInstance;
+                if(instance == null) {
+                    instance = new RestorableSQLiteDatabase(mSQLiteDatabase, tableRowid);
+                    mInstance = instance;
+                }
+            }
         }
-        return mInstance;
+        return instance;
     }
 
     /**
      * Constructs a new instance of the RestorableSQLiteDatabase only if no instance is constructed.
      * @param helper the instance of the SQLiteOpenHelper to open a database using {@link android.database.sqlite.SQLiteOpenHelper#getWritableDatabase() getWritableDatabase} method.
-     * @param tableRowid maps the table name to its ROWID column name.
+     * @param tableRowid maps the table name to its ROWID column name, where a null column is discovered,
+     *                   or null to capture all tables of the database.
      * @return an instance of this class.
      */
     public static <T extends SQLiteOpenHelper> RestorableSQLiteDatabase getInstance(T helper, HashMap<String, String> tableRowid) {
-        if(mInstance == null) {
-            mInstance = new RestorableSQLiteDatabase(helper, tableRowid);
+        RestorableSQLiteDatabase instance = mInstance;
+        if(instance == null) {
+            synchronized (RestorableSQLiteDatabase.class) {
+                instance = mInstance;
+                if(instance == null) {
+                    instance = new RestorableSQLiteDatabase(helper, tableRowid);
+                    mInstance = instance;
+                }
+            }
         }
-        return mInstance;
+        return instance;
     }
 
     /**
      * Constructs a new instance of the RestorableSQLiteDatabase.
      * @param mSQLiteDatabase the instance of the SQLiteDatabase to be wrapped.
-     * @param tableRowid maps the table name to its ROWID column name.
+     * @param tableRowid maps the table name to its ROWID column name, where a null column is discovered,
+     *                   or null to capture all tables of the database.
      * @return an instance of this class.
      */
     public static RestorableSQLiteDatabase getNewInstance(SQLiteDatabase mSQLiteDatabase, HashMap<String, String> tableRowid) {
-        mInstance = new RestorableSQLiteDatabase(mSQLiteDatabase, tableRowid);
-        return mInstance;
+        synchronized (RestorableSQLiteDatabase.class) {
+            mInstance = new RestorableSQLiteDatabase(mSQLiteDatabase, tableRowid);
+            return mInstance;
+        }
     }
 
     /**
      * Constructs a new instance of the RestorableSQLiteDatabase.
      * @param helper the instance of the SQLiteOpenHelper to open a database using {@link android.database.sqlite.SQLiteOpenHelper#getWritableDatabase() getWritableDatabase} method.
-     * @param tableRowid maps the table name to its ROWID column name.
+     * @param tableRowid maps the table name to its ROWID column name, where a null column is discovered,
+     *                   or null to capture all tables of the database.
      * @return an instance of this class.
      */
     public static <T extends SQLiteOpenHelper> RestorableSQLiteDatabase getNewInstance(T helper, HashMap<String, String> tableRowid) {
-        mInstance = new RestorableSQLiteDatabase(helper, tableRowid);
-        return mInstance;
+        synchronized (RestorableSQLiteDatabase.class) {
+            mInstance = new RestorableSQLiteDatabase(helper, tableRowid);
+            return mInstance;
+        }
     }
 
     /**
      * Private constructor of singleton pattern.
+     * The journal of the database is opened if it exists, so the tags stored by previous instances are restorable.
      * @param mSQLiteDatabase the instance of the SQLiteDatabase to be wrapped.
-     * @param tableRowid maps the table name to its ROWID column name.
+     * @param tableRowid maps the table name to its ROWID column name, where a null column is discovered,
+     *                   or null to capture all tables of the database.
      */
     private RestorableSQLiteDatabase(SQLiteDatabase mSQLiteDatabase, HashMap<String, String> tableRowid) {
-        mTagQueryTable = new Hashtable<>();
-        mTagQueryParameters = new Hashtable<>();
-        mTableRowid = tableRowid;
-        this.mSQLiteDatabase = mSQLiteDatabase;
+        mBackend = new AndroidBackend(mSQLiteDatabase);
+        mDatabase = new RestorableDatabase(mBackend, tableRowid);
     }
 
     /**
      * Private constructor of singleton pattern.
      * @param helper the instance of the SQLiteOpenHelper to open a database using {@link android.database.sqlite.SQLiteOpenHelper#getWritableDatabase() getWritableDatabase} method.
-     * @param tableRowid maps the table name to its ROWID column name.
+     * @param tableRowid maps the table name to its ROWID column name, where a null column is discovered,
+     *                   or null to capture all tables of the database.
      */
     private <T extends SQLiteOpenHelper> RestorableSQLiteDatabase(T helper, HashMap<String, String> tableRowid) {
-        mTagQueryTable = new Hashtable<>();
-        mTagQueryParameters = new Hashtable<>();
-        mTableRowid = tableRowid;
-        this.mSQLiteDatabase = helper.getWritableDatabase();
+        this(helper.getWritableDatabase(), tableRowid);
     }
 
     /**
@@ -126,20 +256,26 @@ public class RestorableSQLiteDatabase {
      * @return the instance of wrapped SQLiteDatabase.
      */
     public SQLiteDatabase getSQLiteDatabase() {
-        return mSQLiteDatabase;
+        return mBackend.getSQLiteDatabase();
+    }
+
+    /**
+     * Provides the platform-independent database which captures and restores the changes.
+     * @return the instance of RestorableDatabase.
+     */
+    public RestorableDatabase getRestorableDatabase() {
+        return mDatabase;
     }
 
     /**
      * Checks if the hash table contains the tag.
+     * The open savepoint tags of the current thread are contained as well.
      * @param tag possible tag of restoring query.
      * @return true if the hash table contains the tag; false otherwise.
      * @throws IllegalArgumentException if the tag is null.
      */
     public boolean containsTag(String tag) {
-        if (tag == null)
-            throw new IllegalArgumentException("The tag must not be null.");
-
-        return mTagQueryTable.containsKey(tag);
+        return mDatabase.containsTag(tag);
     }
 
     /**
@@ -147,7 +283,18 @@ public class RestorableSQLiteDatabase {
      * @return a Set view of the tags contained in the hash table.
      */
     public Set<String> tagSet() {
-        return mTagQueryTable.keySet();
+        return mDatabase.tagSet();
+    }
+
+    /**
+     * Provides the tags which start with the prefix in the order of their capture, e.g. the tags of an editing session.
+     * The tags are found in a sorted index, so the cost depends on the number of matches rather than all tags.
+     * @param prefix the prefix of the tags, e.g. "session:42:".
+     * @return a new Set of the tags which start with the prefix.
+     * @throws IllegalArgumentException if the prefix is null.
+     */
+    public Set<String> tagsWithPrefix(String prefix) {
+        return mDatabase.tagsWithPrefix(prefix);
     }
 
     /**
@@ -157,26 +304,25 @@ public class RestorableSQLiteDatabase {
      * @return the queries to which the tag is mapped, or null if the hash table contains no mapping for the tag.
      */
     public ArrayList<String> getQueries(String tag) {
-        if (tag == null)
-            throw new IllegalArgumentException("The tag must not be null.");
-
-        return mTagQueryTable.get(tag);
+        return mDatabase.getQueries(tag);
     }
 
     /**
      * Provides the hash table.
+     * The hash table is materialized from the undo log, so changing it has no effect on the restoring queries.
      * @return the hash table.
      */
     public Hashtable<String, ArrayList<String>> getTagQueryTable() {
-        return mTagQueryTable;
+        return mDatabase.getTagQueryTable();
     }
 
     /**
      * Provides the parameters hash table.
+     * The hash table is materialized from the undo log, so changing it has no effect on the restoring queries.
      * @return the parameters hash table.
      */
     public Hashtable<String, ArrayList<String[]>> getTagQueryParameters() {
-        return mTagQueryParameters;
+        return mDatabase.getTagQueryParameters();
     }
 
     /**
@@ -184,7 +330,7 @@ public class RestorableSQLiteDatabase {
      * @param tagQueryTable the substitute hash table.
      */
     public void setTagQueryTable(Hashtable<String, ArrayList<String>> tagQueryTable) {
-        this.mTagQueryTable = tagQueryTable;
+        mDatabase.setTagQueryTable(tagQueryTable);
     }
 
     /**
@@ -192,7 +338,271 @@ public class RestorableSQLiteDatabase {
      * @param tagQueryParameters the substitute hash table.
      */
     public void setTagQueryParameters(Hashtable<String, ArrayList<String[]>> tagQueryParameters) {
-        this.mTagQueryParameters = tagQueryParameters;
+        mDatabase.setTagQueryParameters(tagQueryParameters);
+    }
+
+    /**
+     * Writes the undo log to the channel in a versioned binary format, e.g. to survive the death of the process.
+     * @param channel the channel to be written, e.g. a FileChannel.
+     * @return the number of written bytes.
+     * @throws IllegalArgumentException if the channel is null.
+     * @throws IOException if writing to the channel fails.
+     */
+    public long exportUndoLog(WritableByteChannel channel) throws IOException {
+        return mDatabase.exportUndoLog(channel);
+    }
+
+    /**
+     * Replaces the undo log with the undo log written by {@link #exportUndoLog(WritableByteChannel) exportUndoLog}.
+     * @param channel the channel to be read, e.g. a FileChannel.
+     * @return the number of imported tags.
+     * @throws IllegalArgumentException if the channel is null.
+     * @throws IOException if reading from the channel fails, or the data is not an undo log of a supported version.
+     */
+    public int importUndoLog(ReadableByteChannel channel) throws IOException {
+        return mDatabase.importUndoLog(channel);
+    }
+
+    /**
+     * Replaces the undo log with the undo log written by {@link #exportUndoLog(WritableByteChannel) exportUndoLog},
+     * e.g. of a file mapped by FileChannel.map.
+     * @param buffer the buffer positioned at the beginning of the undo log, whose position is advanced past the undo log.
+     * @return the number of imported tags.
+     * @throws IllegalArgumentException if the buffer is null.
+     * @throws IOException if the data is not an undo log of a supported version.
+     */
+    public int importUndoLog(ByteBuffer buffer) throws IOException {
+        return mDatabase.importUndoLog(buffer);
+    }
+
+    /**
+     * Estimates the heap size of the restoring queries to which the tag is mapped.
+     * @param tag possible tag of restoring queries.
+     * @return the estimated size in bytes, or 0 if the undo log contains no mapping for the tag.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public long estimateSize(String tag) {
+        return mDatabase.estimateSize(tag);
+    }
+
+    /**
+     * Estimates the heap size of all restoring queries.
+     * @return the estimated size in bytes.
+     */
+    public long estimateSize() {
+        return mDatabase.estimateSize();
+    }
+
+    /**
+     * Coalesces the restoring queries of the tags restored in a single transaction,
+     * so only the queries which determine the final state of each row are executed.
+     * The tables must not have other unique constraints, foreign keys or triggers which depend on the intermediate states of the rows.
+     */
+    public void enableCoalescing() {
+        mDatabase.enableCoalescing();
+    }
+
+    /**
+     * Executes every restoring query of the restored tags, which is the default.
+     */
+    public void disableCoalescing() {
+        mDatabase.disableCoalescing();
+    }
+
+    /**
+     * Checks if the restoring queries of the tags restored in a single transaction are coalesced.
+     * @return true if the coalescing is enabled; false otherwise.
+     */
+    public boolean isCoalescingEnabled() {
+        return mDatabase.isCoalescingEnabled();
+    }
+
+    /**
+     * Stores the restoring queries in a journal table of the database with the default heap budget.
+     * @see #enableJournal(long)
+     */
+    public void enableJournal() {
+        mDatabase.enableJournal();
+    }
+
+    /**
+     * Stores the restoring queries in a journal table of the database.
+     * Only the most recent restoring queries are kept in the heap until the heap budget is exceeded,
+     * the others are read from the journal while restoring.
+     * The tags survive restarts, since a new instance opens the journal of the database if it exists.
+     * If the journal is already enabled, only the heap budget is changed.
+     * @param heapBudget the maximum estimated heap size of restoring queries, in bytes.
+     * @throws IllegalArgumentException if the heap budget is negative.
+     */
+    public void enableJournal(long heapBudget) {
+        mDatabase.enableJournal(heapBudget);
+    }
+
+    /**
+     * Loads all restoring queries of the journal into the heap and drops the journal table.
+     */
+    public void disableJournal() {
+        mDatabase.disableJournal();
+    }
+
+    /**
+     * Checks if the restoring queries are stored in a journal table.
+     * @return true if the journal is enabled; false otherwise.
+     */
+    public boolean isJournalEnabled() {
+        return mDatabase.isJournalEnabled();
+    }
+
+    /**
+     * Captures the rows changed by each restore, so the restored tags are redoable by {@link #redo(String) redo}.
+     * The changed rows are captured by the triggers of {@link #CAPTURE_TRIGGERS} while the restoring queries are executed,
+     * and the redo of a tag is kept in the heap until the tag is redone or captured again.
+     */
+    public void enableRedo() {
+        mDatabase.enableRedo();
+    }
+
+    /**
+     * Stops capturing the rows changed by restores, and removes the redo of the restored tags.
+     */
+    public void disableRedo() {
+        mDatabase.disableRedo();
+    }
+
+    /**
+     * Checks if the restores capture the rows they change.
+     * @return true if the redo is enabled; false otherwise.
+     */
+    public boolean isRedoEnabled() {
+        return mDatabase.isRedoEnabled();
+    }
+
+    /**
+     * Limits the undo log. Once a limit is exceeded, tags are evicted by the eviction policy.
+     * @param maxTags the maximum number of tags, or {@link #NO_LIMIT}.
+     * @param maxRows the maximum number of captured rows of all tags, or {@link #NO_LIMIT}.
+     * @param maxBytes the maximum heap size of all tags as estimated by {@link #estimateSize() estimateSize}, or {@link #NO_LIMIT}.
+     * @throws IllegalArgumentException if any limit is negative.
+     */
+    public void setLimits(int maxTags, long maxRows, long maxBytes) {
+        mDatabase.setLimits(maxTags, maxRows, maxBytes);
+    }
+
+    /**
+     * Changes the order in which tags are evicted once a limit is exceeded.
+     * The default policy is {@link #EVICTION_OLDEST_FIRST}.
+     * @param policy one of EVICTION_OLDEST_FIRST, EVICTION_LEAST_RECENTLY_USED or EVICTION_SOONEST_EXPIRING.
+     * @throws IllegalArgumentException if the policy is unknown.
+     */
+    public void setEvictionPolicy(int policy) {
+        mDatabase.setEvictionPolicy(policy);
+    }
+
+    /**
+     * Changes the time to live of the tags captured later.
+     * @param ttl the time to live in milliseconds, or 0 if the tags do not expire.
+     * @throws IllegalArgumentException if the time to live is negative.
+     */
+    public void setDefaultTtl(long ttl) {
+        mDatabase.setDefaultTtl(ttl);
+    }
+
+    /**
+     * Changes the time to live of the tag, measured from the capture of its restoring queries.
+     * The tag is evicted once its time to live is elapsed.
+     * @param tag the tag mapped to restoring queries.
+     * @param ttl the time to live in milliseconds, or 0 if the tag does not expire.
+     * @return true if the undo log contains the tag; false otherwise.
+     * @throws IllegalArgumentException if the tag is null or the time to live is negative.
+     */
+    public boolean setTagTtl(String tag, long ttl) {
+        return mDatabase.setTagTtl(tag, ttl);
+    }
+
+    /**
+     * Registers a callback to be invoked when a tag is evicted.
+     * @param listener the callback, or null to remove the callback.
+     */
+    public void setOnTagEvictedListener(OnTagEvictedListener listener) {
+        mDatabase.setOnTagEvictedListener(listener);
+    }
+
+    /**
+     * Registers the callbacks to be invoked with the costs of captures and restores.
+     * No time is measured while no callbacks are registered.
+     * @param listener the callbacks, e.g. an {@link UndoMetrics}, or null to remove the callbacks.
+     */
+    public void setOnMetricsListener(RestorableDatabase.OnMetricsListener listener) {
+        mDatabase.setOnMetricsListener(listener);
+    }
+
+    /**
+     * Changes how the affected rows are captured by the methods with a tag.
+     * The default mode is {@link #CAPTURE_CURSOR}.
+     * The triggers of {@link #CAPTURE_TRIGGERS} are installed on the captured tables once a row is captured,
+     * and they are dropped once the mode is changed to another mode.
+     * The shadow tables of {@link #CAPTURE_SHADOW} are created once a row of their table is captured,
+     * and their rows are deleted once their captures are restored or removed, or are no longer in the undo log when it is opened or replaced.
+     * @param mode one of CAPTURE_CURSOR, CAPTURE_TRIGGERS or CAPTURE_SHADOW.
+     * @throws IllegalArgumentException if the mode is unknown.
+     */
+    public void setCaptureMode(int mode) {
+        mDatabase.setCaptureMode(mode);
+    }
+
+    /**
+     * Provides how the affected rows are captured.
+     * @return one of CAPTURE_CURSOR, CAPTURE_TRIGGERS or CAPTURE_SHADOW.
+     */
+    public int getCaptureMode() {
+        return mDatabase.getCaptureMode();
+    }
+
+    /**
+     * Changes the number of affected rows read by a single query while capturing.
+     * Once the journal is enabled, the restoring queries of each chunk are appended to the journal
+     * before the next chunk is read, so the heap used by a capture is bounded by the chunk size.
+     * Without the journal, the restoring queries of all chunks are kept in the heap by the undo log,
+     * so the chunks only bound the rows read by each query.
+     * @param rows the number of rows of each chunk.
+     * @throws IllegalArgumentException if the number of rows is not positive.
+     */
+    public void setCaptureChunkSize(int rows) {
+        mDatabase.setCaptureChunkSize(rows);
+    }
+
+    /**
+     * Changes the number of restoring queries executed in a single transaction by the asynchronous restores.
+     * Other readers and writers of the database are able to access it between the transactions.
+     * @param queries the number of restoring queries of each slice.
+     * @throws IllegalArgumentException if the number of restoring queries is not positive.
+     */
+    public void setRestoreSliceSize(int queries) {
+        mDatabase.setRestoreSliceSize(queries);
+    }
+
+    /**
+     * Sheds the restoring queries kept in the heap, to be called from
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int) onTrimMemory}.
+     * If the journal is enabled, the restoring queries are only spilled to the journal; otherwise, tags are evicted.
+     * All heap state is shed on TRIM_MEMORY_RUNNING_CRITICAL and TRIM_MEMORY_COMPLETE,
+     * half of it on TRIM_MEMORY_RUNNING_LOW and TRIM_MEMORY_MODERATE,
+     * and only the expired tags are evicted on lower levels.
+     * Nothing is shed while the current thread holds open savepoint tags.
+     * @param level the memory trim level.
+     * @return the estimated number of released bytes.
+     */
+    @SuppressLint("InlinedApi")
+    public long trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            return mDatabase.trimHeap(RestorableDatabase.TRIM_ALL);
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return mDatabase.trimHeap(RestorableDatabase.TRIM_HALF);
+
+        return mDatabase.trimHeap(RestorableDatabase.TRIM_EXPIRED);
     }
 
     /**
@@ -259,90 +669,51 @@ public class RestorableSQLiteDatabase {
 
     /**
      * Use the {@link android.database.sqlite.SQLiteDatabase#replaceOrThrow(String, String, android.content.ContentValues) insertWithOnConflict} method.
+     * The restoring query is captured and the row is inserted in a single transaction.
      * @param tag The tag to be mapped to the restoring query.
      * @throws IllegalArgumentException if the tag is null.
      */
     public long insertWithOnConflict(String table, String nullColumnHack,
                                      ContentValues initialValues, int conflictAlgorithm, String tag) {
-        if (tag == null)
-            throw new IllegalArgumentException("The tag must not be null.");
-
-        ArrayList<String> queries = new ArrayList<>();
-        ArrayList<String[]> queriesParameters = new ArrayList<>();
-
-        // Determines if restoring query of replacement is generated
-        boolean restore_status = false;
-
-        // Generates replacement restoring query
-        if (conflictAlgorithm == SQLiteDatabase.CONFLICT_REPLACE) {
-            Cursor restoring_cursor = mSQLiteDatabase.query(
-                    table,
-                    null,
-                    mTableRowid.get(table) + " = ?",
-                    new String[] {(String) initialValues.get(mTableRowid.get(table))},
-                    null,
-                    null,
-                    null,
-                    null
-            );
-
-            if (restoring_cursor.moveToFirst()) {
-                StringBuilder sql = new StringBuilder();
-                sql.append("UPDATE ");
-                sql.append(table);
-                sql.append(" SET ");
-
-                int i = 0;
-                String[] parameters = new String[restoring_cursor.getColumnCount()];
-
-                for (String columnName : restoring_cursor.getColumnNames()) {
-                    if (columnName.equals(mTableRowid.get(table)))
-                        continue;
-
-                    if (i > 0) sql.append(", ");
-
-                    sql.append(columnName);
-                    sql.append(" = ?");
-                    parameters[i] = restoring_cursor.getString(restoring_cursor.getColumnIndex(columnName));
-
-                    i++;
-                }
-
-                sql.append(" WHERE ");
-                sql.append(mTableRowid.get(table));
-                sql.append(" = ?");
-                parameters[i] = (String) initialValues.get(mTableRowid.get(table));
-
-                queries.add(sql.toString());
-                queriesParameters.add(parameters);
-
-                restore_status = true;
-            }
+        return mDatabase.insertWithOnConflict(table, nullColumnHack, valueMap(initialValues), conflictAlgorithm, tag);
+    }
 
-            restoring_cursor.close();
-        }
+    /**
+     * Inserts the rows in a single transaction, and maps the tag to the restoring queries of all rows.
+     * Each distinct set of columns is compiled once, and the rows replaced by CONFLICT_REPLACE
+     * are captured by a single query for each chunk of rows.
+     * If a row cannot be inserted, the transaction is rolled back and no row is inserted.
+     * @param table the table to insert the rows into.
+     * @param values the initial column values of each row.
+     * @param conflictAlgorithm the conflict algorithm of {@link android.database.sqlite.SQLiteDatabase}, e.g. CONFLICT_NONE.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the row ID of each inserted row, or -1 if the row is not inserted, e.g. by CONFLICT_IGNORE.
+     * @throws IllegalArgumentException if the tag is null.
+     * @throws SQLException if a row cannot be inserted.
+     */
+    public long[] insertAll(String table, List<ContentValues> values, int conflictAlgorithm, String tag)
+            throws SQLException {
+        ArrayList<Map<String, Object>> rows = new ArrayList<>(values.size());
 
-        // Executes query
-        long id = mSQLiteDatabase.insertWithOnConflict(
-                table,
-                nullColumnHack,
-                initialValues,
-                conflictAlgorithm
-        );
-
-        // Generates query to restore insertion
-        if (!restore_status) {
-            queries.add("DELETE FROM " + table + " WHERE " + mTableRowid.get(table) + " = ?");
-            queriesParameters.add(new String[] {id + ""});
+        for (ContentValues rowValues : values) {
+            rows.add(valueMap(rowValues));
         }
 
-        // Add queries and their parameters if no error has occurred
-        if (id != -1) {
-            mTagQueryTable.put(tag, queries);
-            mTagQueryParameters.put(tag, queriesParameters);
-        }
+        return mDatabase.insertAll(table, rows, conflictAlgorithm, tag);
+    }
 
-        return id;
+    /**
+     * Inserts or replaces the rows in a single transaction, and maps the tag to the restoring queries of all rows.
+     * @param table the table to insert the rows into.
+     * @param values the initial column values of each row.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the row ID of each inserted row.
+     * @throws IllegalArgumentException if the tag is null.
+     * @throws SQLException if a row cannot be inserted.
+     * @see #insertAll(String, List, int, String)
+     */
+    public long[] replaceAll(String table, List<ContentValues> values, String tag) throws SQLException {
+        return insertAll(table, values, SQLiteDatabase.CONFLICT_REPLACE, tag);
     }
 
     /**
@@ -359,56 +730,34 @@ public class RestorableSQLiteDatabase {
 
     /**
      * Use the {@link android.database.sqlite.SQLiteDatabase#updateWithOnConflict(String, android.content.ContentValues, String, String[], int) updateWithOnConflict} method.
+     * The restoring queries are captured and the rows are updated in a single transaction.
+     * Only the columns of the values are captured and restored, besides the ROWID which identifies the rows.
      * @param tag The tag to be mapped to the restoring query.
      * @throws IllegalArgumentException if the tag is null.
      */
     public int updateWithOnConflict(String table, ContentValues values,
                                     String whereClause, String[] whereArgs, int conflictAlgorithm, String tag) {
-        if (tag == null)
-            throw new IllegalArgumentException("The tag must not be null.");
-
-        generateRestoringUpdate(
-                table,
-                whereClause,
-                whereArgs,
-                tag
-        );
-
-        return mSQLiteDatabase.updateWithOnConflict(
-                table,
-                values,
-                whereClause,
-                whereArgs,
-                conflictAlgorithm
-        );
+        return mDatabase.updateWithOnConflict(table, valueMap(values), whereClause, whereArgs, conflictAlgorithm, tag);
     }
 
     /**
      * Use the {@link android.database.sqlite.SQLiteDatabase#delete(String, String, String[]) delete} method.
+     * The restoring queries are captured and the rows are deleted in a single transaction.
      * @param tag The tag to be mapped to the restoring query.
      * @throws IllegalArgumentException if the tag is null.
      */
     public int delete(String table, String whereClause, String[] whereArgs, String tag) {
-        if (tag == null)
-            throw new IllegalArgumentException("The tag must not be null.");
-
-        generateRestoringDelete(
-                table,
-                whereClause,
-                whereArgs,
-                tag
-        );
-
-        return mSQLiteDatabase.delete(
-                table,
-                whereClause,
-                whereArgs
-        );
+        return mDatabase.delete(table, whereClause, whereArgs, tag);
     }
 
     /**
      * Use the {@link android.database.sqlite.SQLiteDatabase#rawQuery(String, String[]) rawQuery} method.
-     * This method uses {@link net.sf.jsqlparser.parser.CCJSqlParserUtil#parse(String) parser} method to parse the SQL query.
+     * The SQL query is classified by a single pass over its tokens and cached by its text,
+     * and the {@link net.sf.jsqlparser.parser.CCJSqlParserUtil#parse(String) parser} is only used for SQL queries which cannot be classified.
+     * The changes of REPLACE statements, insertions with a conflict resolution, upserts, UPDATE OR REPLACE, UPDATE ... FROM
+     * and statements with a WITH clause are captured by the temporary triggers of {@link #CAPTURE_TRIGGERS},
+     * since they cannot be captured from the WHERE clause. So are the insertions which may set the ROWID of their rows,
+     * e.g. by their INTEGER PRIMARY KEY, while the other insertions are restored by deleting the range of their ROWIDs.
      * Unlike the rawQuery of the SQLiteDatabase, there is no need to call the moveToFirst method of the returned Cursor to apply SQL query.
      * @param tag The tag to be mapped to the restoring query.
      * @throws IllegalArgumentException if the tag is null.
@@ -418,26 +767,19 @@ public class RestorableSQLiteDatabase {
         if (tag == null)
             throw new IllegalArgumentException("The tag must not be null.");
 
-        Statement statement = CCJSqlParserUtil.parse(sql);
-
-        generateRawUpdateDeleteQuery(statement, sql, selectionArgs, tag);
-
-        Cursor cursor =  mSQLiteDatabase.rawQuery(sql, selectionArgs);
-        cursor.moveToFirst();
-
-        if (sql.toLowerCase(Locale.getDefault()).contains("insert into")) {
-            Insert insertStatement = (Insert) statement;
-            String table = insertStatement.getTable().getName();
-            generateInsertRawQuery(table, tag);
-        }
-
-        return cursor;
+        return executeRawQuery(sql, selectionArgs, null, tag);
     }
 
     /**
      * Use the {@link android.database.sqlite.SQLiteDatabase#rawQuery(String, String[]) rawQuery} method.
-     * This method uses {@link net.sf.jsqlparser.parser.CCJSqlParserUtil#parse(String) parser} method to parse the SQL query.
+     * The SQL query is classified by a single pass over its tokens and cached by its text,
+     * and the {@link net.sf.jsqlparser.parser.CCJSqlParserUtil#parse(String) parser} is only used for SQL queries which cannot be classified.
+     * The changes of REPLACE statements, insertions with a conflict resolution, upserts, UPDATE OR REPLACE, UPDATE ... FROM
+     * and statements with a WITH clause are captured by the temporary triggers of {@link #CAPTURE_TRIGGERS},
+     * since they cannot be captured from the WHERE clause. So are the insertions which may set the ROWID of their rows,
+     * e.g. by their INTEGER PRIMARY KEY, while the other insertions are restored by deleting the range of their ROWIDs.
      * Unlike the rawQuery of the SQLiteDatabase, there is no need to call the moveToFirst method of the returned Cursor to apply SQL query.
+     * The cancellation signal is only provided from API level 16, so it is null on earlier platforms.
      * @param tag The tag to be mapped to the restoring query.
      * @throws IllegalArgumentException if the tag is null.
      */
@@ -448,328 +790,346 @@ public class RestorableSQLiteDatabase {
         if (tag == null)
             throw new IllegalArgumentException("The tag must not be null.");
 
-        Statement statement = CCJSqlParserUtil.parse(sql);
-
-        generateRawUpdateDeleteQuery(statement, sql, selectionArgs, tag);
-
-        Cursor cursor = mSQLiteDatabase.rawQuery(sql, selectionArgs, cancellationSignal);
-        cursor.moveToFirst();
-
-        if (sql.toLowerCase(Locale.getDefault()).contains("insert into")) {
-            Insert insertStatement = (Insert) statement;
-            String table = insertStatement.getTable().getName();
-            generateInsertRawQuery(table, tag);
-        }
-
-        return cursor;
+        return executeRawQuery(sql, selectionArgs, cancellationSignal, tag);
     }
 
     /**
-     * Generates the restoring query of rawQuery methods.
+     * Captures the restoring queries and applies the SQL query of rawQuery methods in a single transaction.
      * @param sql the SQL query.
      * @param selectionArgs arguments to be replaced with ? in the SQL query.
+     * @param cancellationSignal the signal to cancel the SQL query, or null.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @return the cursor of the applied SQL query.
      * @throws JSQLParserException
+     * @throws ClassCastException
      */
-    private void generateRawUpdateDeleteQuery(Statement statement, String sql, String[] selectionArgs, String tag)
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Cursor executeRawQuery(final String sql, final String[] selectionArgs,
+                                   final CancellationSignal cancellationSignal, String tag)
             throws JSQLParserException, ClassCastException {
+        return mDatabase.executeRaw(sql, selectionArgs, tag, new RestorableDatabase.RawQuery<Cursor>() {
+            @Override
+            public Cursor apply() {
+                SQLiteDatabase db = mBackend.getSQLiteDatabase();
 
-        String table;
-        String where;
-
-        if (sql.toLowerCase(Locale.getDefault()).contains("update")) {
-
-            Update updateStatement = (Update) statement;
-            table = updateStatement.getTables().get(0).getName();
-            where = updateStatement.getWhere().toString();
-
-            // Generates selectionArgs for where
-            int argsNumberBeforeWhere = countOccurrences(sql.toLowerCase(Locale.getDefault()).substring(0, sql.toLowerCase(Locale.getDefault()).indexOf("where")), "?");
-            int argsNumberInWhere = countOccurrences(where, "?");
-
-            String[] whereArgs = new String[argsNumberInWhere];
-
-            System.arraycopy(selectionArgs, argsNumberBeforeWhere, whereArgs, 0, argsNumberInWhere);
-
-            generateRestoringUpdate(
-                    table,
-                    where,
-                    whereArgs,
-                    tag
-            );
-
-        } else if (sql.toLowerCase(Locale.getDefault()).contains("delete")) {
-
-            Delete deleteStatement = (Delete) statement;
-            table = deleteStatement.getTable().getName();
-            where = deleteStatement.getWhere().toString();
-
-            // Generates selectionArgs for where
-            int argsNumberBeforeWhere = countOccurrences(sql.toLowerCase(Locale.getDefault()).substring(0, sql.toLowerCase(Locale.getDefault()).indexOf("where")), "?");
-            int argsNumberInWhere = countOccurrences(where, "?");
+                Cursor cursor = cancellationSignal == null || !CANCELLATION_SIGNAL ?
+                        db.rawQuery(sql, selectionArgs) : db.rawQuery(sql, selectionArgs, cancellationSignal);
+                cursor.moveToFirst();
 
-            String[] whereArgs = new String[argsNumberInWhere];
-
-            System.arraycopy(selectionArgs, argsNumberBeforeWhere, whereArgs, 0, argsNumberInWhere);
-
-            generateRestoringDelete(
-                    table,
-                    where,
-                    whereArgs,
-                    tag
-            );
-        }
+                return cursor;
+            }
+        });
     }
 
     /**
-     * Counts the number of occurrences of substring in the string.
-     * Reference: http://stackoverflow.com/a/23517296/1922137
-     * @param str the string to check.
-     * @param sub the substring to count.
-     * @return the number of occurrences of substring in the string.
+     * Use the {@link android.database.sqlite.SQLiteDatabase#execSQL(String) execSQL} method.
+     * The changed rows of the captured tables are captured by triggers, whatever the capture mode is,
+     * so any statement which changes rows is restorable without being parsed.
+     * Rows replaced on a conflict of their ROWID are captured as well, while the rows deleted by the REPLACE conflict resolution
+     * of other unique constraints are only captured if recursive triggers are enabled.
+     * The SQL statement must not begin or end a transaction.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @throws IllegalArgumentException if the tag is null.
      */
-    private int countOccurrences(String str, String sub) {
-        return (str.length() - str.replace(sub, "").length()) / sub.length();
+    public void execSQL(String sql, String tag) throws SQLException {
+        mDatabase.execSQL(sql, tag);
     }
 
     /**
-     * Generates the restoring query of rawQuery insertion.
-     * @param table the table name.
-     * @param tag the tag mapped to restoring queries.
-     * @throws JSQLParserException
-     * @throws ClassCastException
+     * Use the {@link android.database.sqlite.SQLiteDatabase#execSQL(String, Object[]) execSQL} method.
+     * The changed rows of the captured tables are captured by triggers, whatever the capture mode is,
+     * so any statement which changes rows is restorable without being parsed.
+     * Rows replaced on a conflict of their ROWID are captured as well, while the rows deleted by the REPLACE conflict resolution
+     * of other unique constraints are only captured if recursive triggers are enabled.
+     * The SQL statement must not begin or end a transaction.
+     * @param tag the tag to be mapped to the restoring queries.
+     * @throws IllegalArgumentException if the tag is null.
      */
-    private void generateInsertRawQuery(String table, String tag)
-            throws JSQLParserException, ClassCastException {
-        ArrayList<String> queries = new ArrayList<>();
-        ArrayList<String[]> queriesParameters = new ArrayList<>();
-
-        /*Cursor cursor = mSQLiteDatabase.query(
-                false,
-                table,
-                new String[] {mTableRowid.get(table)},
-                null,
-                null,
-                null,
-                null,
-                mTableRowid.get(table) + " DESC",
-                "1"
-        );*/
-
-        Cursor cursor = mSQLiteDatabase.rawQuery("SELECT MAX(" + mTableRowid.get(table) + ") FROM " + table, null);
-
-        if (cursor.moveToFirst()) {
-            queries.add("DELETE FROM " + table + " WHERE " + mTableRowid.get(table) + " = ?");
-            queriesParameters.add(new String[]{cursor.getString(0)});
-
-            mTagQueryTable.put(tag, queries);
-            mTagQueryParameters.put(tag, queriesParameters);
-        }
-
-        cursor.close();
+    public void execSQL(String sql, Object[] bindArgs, String tag) throws SQLException {
+        mDatabase.execSQL(sql, bindArgs, tag);
     }
 
     /**
-     * Generates the restoring query of rawQuery deletion.
-     * @param table the table name.
-     * @param whereClause the optional WHERE clause to apply when deleting.
-     * @param whereArgs arguments to be replaced with ? in the SQL query.
-     * @param tag the tag mapped to restoring queries.
+     * Provides the column values of the ContentValues in their order.
+     * @param values the values of columns, or null if the values are empty.
+     * @return the values of columns by their names.
      */
-    private void generateRestoringDelete(String table,
-                                         String whereClause,
-                                         String[] whereArgs,
-                                         String tag) {
-        // Gets all affected_rows
-        Cursor restoring_cursor = mSQLiteDatabase.query(
-                table,
-                null,
-                whereClause,
-                whereArgs,
-                null,
-                null,
-                null
-        );
-
-        ArrayList<String> queries = new ArrayList<>();
-        ArrayList<String[]> queriesParameters = new ArrayList<>();
-
-        // Generates restoring queries
-        while (restoring_cursor.moveToNext()) {
-            StringBuilder sql = new StringBuilder();
-            sql.append("INSERT OR REPLACE INTO ");
-            sql.append(table);
-
-            int i = 0;
-            String[] parameters = new String[restoring_cursor.getColumnCount()];
-
-            StringBuilder sql_columns = new StringBuilder();
-            StringBuilder sql_values = new StringBuilder();
-
-            for (String columnName : restoring_cursor.getColumnNames()) {
-                if (i > 0) {
-                    sql_columns.append(", ");
-                    sql_values.append(", ");
-                } else {
-                    sql_columns.append(" (");
-                    sql_values.append(" (");
-                }
-
-                sql_columns.append(columnName);
-                sql_values.append("?");
-                parameters[i] = restoring_cursor.getString(restoring_cursor.getColumnIndex(columnName));
+    private static Map<String, Object> valueMap(ContentValues values) {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<>();
 
-                i++;
-            }
+        if (values == null)
+            return map;
 
-            sql_columns.append(")");
-            sql_values.append(")");
-
-            sql.append(sql_columns.toString());
-            sql.append(" VALUES ");
-            sql.append(sql_values.toString());
-
-            queries.add(sql.toString());
-            queriesParameters.add(parameters);
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            map.put(value.getKey(), value.getValue());
         }
 
-        restoring_cursor.close();
-
-        mTagQueryTable.put(tag, queries);
-        mTagQueryParameters.put(tag, queriesParameters);
+        return map;
     }
 
     /**
-     * Generates the restoring query of rawQuery updating.
-     * @param table the table name.
-     * @param whereClause the optional WHERE clause to apply when updating.
-     * @param whereArgs arguments to be replaced with ? in the SQL query.
-     * @param tag the tag mapped to restoring queries.
+     * Opens a savepoint tag, whose changes are undone by rolling back to a SAVEPOINT instead of capturing restoring queries.
+     * The first savepoint tag begins a transaction which holds the write lock of the database until the last savepoint tag
+     * is released or restored, so the savepoint tags are meant for changes which are kept or undone within seconds.
+     * While savepoint tags are open, the thread which opened them only changes and restores the database by those tags.
+     * Since the write lock is held until every savepoint tag is closed,
+     * {@link #runInSavepoint(String, RestorableDatabase.SavepointBody) runInSavepoint} is preferred.
+     * @param tag the tag of the savepoint.
+     * @throws IllegalArgumentException if the tag is null or is already mapped to restoring queries.
+     * @throws IllegalStateException if the tag is already an open savepoint tag.
+     * @see RestorableDatabase#beginSavepoint(String)
      */
-    private void generateRestoringUpdate(String table,
-                                         String whereClause,
-                                         String[] whereArgs,
-                                         String tag) {
-        // Gets all affected_rows
-        Cursor restoring_cursor = mSQLiteDatabase.query(
-                table,
-                null,
-                whereClause,
-                whereArgs,
-                null,
-                null,
-                null
-        );
-
-        ArrayList<String> queries = new ArrayList<>();
-        ArrayList<String[]> queriesParameters = new ArrayList<>();
-
-        // Generates restoring queries
-        while (restoring_cursor.moveToNext()) {
-            StringBuilder sql = new StringBuilder();
-            sql.append("UPDATE ");
-            sql.append(table);
-            sql.append(" SET ");
-
-            int i = 0;
-            String[] parameters = new String[restoring_cursor.getColumnCount() + 1];
-
-            for (String columnName : restoring_cursor.getColumnNames()) {
-                if (i > 0) sql.append(", ");
-
-                sql.append(columnName);
-                sql.append(" = ?");
-                parameters[i] = restoring_cursor.getString(restoring_cursor.getColumnIndex(columnName));
-
-                i++;
-            }
-
-            sql.append(" WHERE ");
-            sql.append(mTableRowid.get(table));
-            sql.append(" = ?");
-            parameters[i] = restoring_cursor.getString(restoring_cursor.getColumnIndex(mTableRowid.get(table)));
+    public void beginSavepoint(String tag) {
+        mDatabase.beginSavepoint(tag);
+    }
 
-            queries.add(sql.toString());
-            queriesParameters.add(parameters);
-        }
+    /**
+     * Releases an open savepoint tag of the current thread and the savepoint tags opened after it, keeping their changes.
+     * Once the last savepoint tag is released, the transaction of the savepoint tags is committed.
+     * @param tag the open savepoint tag.
+     * @throws IllegalArgumentException if the tag is not an open savepoint tag of the current thread.
+     */
+    public void releaseSavepoint(String tag) {
+        mDatabase.releaseSavepoint(tag);
+    }
 
-        restoring_cursor.close();
+    /**
+     * Makes changes within a savepoint tag, which is closed before this method returns,
+     * so the write lock held by the savepoint tags is not left to the caller.
+     * The changes are kept if the body returns, unless it restores the tag, and rolled back if it throws.
+     * @param tag the tag of the savepoint.
+     * @param body makes the changes with the tag.
+     * @return the result of the body.
+     * @throws IllegalArgumentException if the tag is null or is already mapped to restoring queries.
+     * @throws IllegalStateException if the tag is already an open savepoint tag.
+     * @see RestorableDatabase#runInSavepoint(String, RestorableDatabase.SavepointBody)
+     */
+    public <T> T runInSavepoint(String tag, RestorableDatabase.SavepointBody<T> body) {
+        return mDatabase.runInSavepoint(tag, body);
+    }
 
-        mTagQueryTable.put(tag, queries);
-        mTagQueryParameters.put(tag, queriesParameters);
+    /**
+     * Checks if the tag is an open savepoint tag of the current thread.
+     * @param tag possible savepoint tag.
+     * @return true if the changes of the tag are not captured; false otherwise.
+     */
+    public boolean isSavepoint(String tag) {
+        return mDatabase.isSavepoint(tag);
     }
 
     /**
-     * Restores all restoring SQL queries.
+     * Restores all restoring SQL queries in the reverse order of their capture.
+     * All restoring queries are executed in a single transaction,
+     * after the open savepoint tags of the current thread are rolled back.
      * @return possible number of restored queries to which tag is mapped.
      */
     public int restoreAll() {
-        return restore(mTagQueryTable.keySet());
+        return mDatabase.restoreAll();
+    }
+
+    /**
+     * Marks the current point of the undo log, so the changes captured since are restored by {@link #restoreTo(long) restoreTo}.
+     * @return the checkpoint, which is valid for this instance.
+     */
+    public long checkpoint() {
+        return mDatabase.checkpoint();
     }
 
     /**
-     * Restores the queries to which each tag is mapped.
+     * Restores the changes captured after the checkpoint in the reverse order of their capture,
+     * without looking up their tags. The changes captured earlier with the same tags stay restorable.
+     * All restoring queries are executed in a single transaction,
+     * after the savepoint tags of the current thread opened after the checkpoint are rolled back.
+     * @param checkpoint the checkpoint provided by {@link #checkpoint() checkpoint}.
+     * @return possible number of restored queries of the changes.
+     */
+    public int restoreTo(long checkpoint) {
+        return mDatabase.restoreTo(checkpoint);
+    }
+
+    /**
+     * Restores the queries to which each tag is mapped in the reverse order of their capture, whatever the order of the tags is.
+     * All restoring queries are executed in a single transaction.
+     * The open savepoint tags of the current thread are rolled back to the earliest of their savepoints instead.
      * @param tags an array of tags mapped to restoring SQL queries.
      * @return possible number of restored queries to which tag is mapped.
      */
     public int restore(String[] tags) {
-        int restored_queries = 0;
-
-        for (String tag : tags) {
-            restored_queries += restore(tag);
-        }
-
-        return restored_queries;
+        return mDatabase.restore(tags);
     }
 
     /**
-     * Restores the queries to which each tag is mapped.
+     * Restores the queries to which each tag is mapped in the reverse order of their capture, whatever the order of the tags is.
+     * All restoring queries are executed in a single transaction.
+     * The open savepoint tags of the current thread are rolled back to the earliest of their savepoints instead.
      * @param tags a set of tags mapped to restoring SQL queries.
      * @return possible number of restored queries to which tag is mapped.
      */
     public int restore(Set<String> tags) {
-        int restored_queries = 0;
-
-        for (String tag : tags) {
-            restored_queries += restore(tag);
-        }
-
-        return restored_queries;
+        return mDatabase.restore(tags);
     }
 
     /**
      * Restores the SQL queries to which the tag is mapped.
+     * All restoring queries are executed in a single transaction.
+     * An open savepoint tag of the current thread is rolled back to its savepoint and released instead.
      * @param tag the tag mapped to restoring queries.
      * @return possible number of restored queries to which tag is mapped.
      */
     public int restore(String tag) {
-        ArrayList<String> queries = mTagQueryTable.get(tag);
-        ArrayList<String[]> parameters = mTagQueryParameters.get(tag);
+        return mDatabase.restore(tag);
+    }
 
-        if (queries != null && parameters != null) {
-            int restored_queries = queries.size();
+    /**
+     * Restores the queries of the tags which start with the prefix in the reverse order of their capture.
+     * All restoring queries are executed in a single transaction.
+     * The open savepoint tags of the current thread which start with the prefix are rolled back as well.
+     * @param prefix the prefix of the tags, e.g. "session:42:".
+     * @return possible number of restored queries to which the tags are mapped.
+     * @throws IllegalArgumentException if the prefix is null.
+     */
+    public int restoreByPrefix(String prefix) {
+        return mDatabase.restoreByPrefix(prefix);
+    }
 
-            for (int i = 0; i < restored_queries; i++) {
-                mSQLiteDatabase.rawQuery(
-                        queries.get(i),
-                        parameters.get(i)
-                ).moveToFirst();
-            }
+    /**
+     * Removes the tags which start with the prefix without restoring their queries, e.g. once an editing session is saved.
+     * The open savepoint tags are not removed, since they are kept or undone by their savepoints.
+     * @param prefix the prefix of the tags, e.g. "session:42:".
+     * @return the number of removed tags.
+     * @throws IllegalArgumentException if the prefix is null.
+     */
+    public int dropByPrefix(String prefix) {
+        return mDatabase.dropByPrefix(prefix);
+    }
 
-            mTagQueryTable.remove(tag);
-            mTagQueryParameters.remove(tag);
+    /**
+     * Restores all restoring SQL queries on the executor in the reverse order of their capture.
+     * The restoring queries are executed in slices, each in its own transaction.
+     * @param executor the executor which runs the restore.
+     * @param cancellationSignal the signal to stop the restore between slices, or null, which it is below API level 16.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public Future<Integer> restoreAllAsync(Executor executor,
+                                           CancellationSignal cancellationSignal,
+                                           OnRestoreProgressListener listener) {
+        return restoreTagsAsync(null, executor, cancellationSignal, listener);
+    }
 
-            return restored_queries;
-        }
+    /**
+     * Restores the queries to which each tag is mapped on the executor in the reverse order of their capture.
+     * The restoring queries are executed in slices, each in its own transaction.
+     * @param tags an array of tags mapped to restoring SQL queries.
+     * @param executor the executor which runs the restore.
+     * @param cancellationSignal the signal to stop the restore between slices, or null, which it is below API level 16.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public Future<Integer> restoreAsync(String[] tags,
+                                        Executor executor,
+                                        CancellationSignal cancellationSignal,
+                                        OnRestoreProgressListener listener) {
+        return restoreTagsAsync(Arrays.asList(tags), executor, cancellationSignal, listener);
+    }
+
+    /**
+     * Restores the queries to which each tag is mapped on the executor in the reverse order of their capture.
+     * The restoring queries are executed in slices, each in its own transaction.
+     * @param tags a set of tags mapped to restoring SQL queries.
+     * @param executor the executor which runs the restore.
+     * @param cancellationSignal the signal to stop the restore between slices, or null, which it is below API level 16.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public Future<Integer> restoreAsync(Set<String> tags,
+                                        Executor executor,
+                                        CancellationSignal cancellationSignal,
+                                        OnRestoreProgressListener listener) {
+        return restoreTagsAsync(new ArrayList<>(tags), executor, cancellationSignal, listener);
+    }
 
-        return 0;
+    /**
+     * Restores the SQL queries to which the tag is mapped on the executor.
+     * The restoring queries are executed in slices, each in its own transaction.
+     * @param tag the tag mapped to restoring queries.
+     * @param executor the executor which runs the restore.
+     * @param cancellationSignal the signal to stop the restore between slices, or null, which it is below API level 16.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public Future<Integer> restoreAsync(String tag,
+                                        Executor executor,
+                                        CancellationSignal cancellationSignal,
+                                        OnRestoreProgressListener listener) {
+        return restoreTagsAsync(Collections.singletonList(tag), executor, cancellationSignal, listener);
+    }
+
+    /**
+     * Checks if the restore of the tag is redoable.
+     * @param tag possible restored tag.
+     * @return true if the tag is restored while the redo is enabled, and is not redone or captured since; false otherwise.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public boolean containsRedoTag(String tag) {
+        return mDatabase.containsRedoTag(tag);
+    }
+
+    /**
+     * Provides the redoable tags in the order of their restore.
+     * @return a new Set of the redoable tags.
+     */
+    public Set<String> redoTagSet() {
+        return mDatabase.redoTagSet();
+    }
+
+    /**
+     * Redoes the restore of the tag, so the tag is mapped again to the restoring queries of the redone changes.
+     * @param tag the restored tag.
+     * @return the number of executed queries, or 0 if the tag is not redoable.
+     * @throws IllegalArgumentException if the tag is null.
+     */
+    public int redo(String tag) {
+        return mDatabase.redo(tag);
+    }
+
+    /**
+     * Submits the restore of the tags in slices to the executor.
+     * The restore throws {@link OperationCanceledException} once it is stopped by the cancellation signal.
+     * @param tags the tags mapped to restoring queries, or null for all captures.
+     * @param executor the executor which runs the restore.
+     * @param cancellationSignal the signal to stop the restore between slices, or null.
+     * @param listener the callback to be invoked once each slice is committed, or null.
+     * @return the future of the number of restored queries.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Future<Integer> restoreTagsAsync(Iterable<String> tags,
+                                             Executor executor,
+                                             final CancellationSignal cancellationSignal,
+                                             OnRestoreProgressListener listener) {
+        RestorableDatabase.Cancellation cancellation = cancellationSignal == null || !CANCELLATION_SIGNAL ?
+                null : new RestorableDatabase.Cancellation() {
+                    @Override
+                    public void throwIfCanceled() {
+                        cancellationSignal.throwIfCanceled();
+                    }
+                };
+
+        return mDatabase.restoreTagsAsync(tags, executor, cancellation, listener);
     }
 
     /**
      * Use the {@link android.database.sqlite.SQLiteDatabase#close() close} method.
      * Use the reopen methods to reopen the SQLite database.
+     * The open savepoint tags of the current thread are rolled back.
+     * @throws IllegalStateException if savepoint tags are open on another thread.
      */
     public void close() {
-        mSQLiteDatabase.close();
+        mDatabase.close();
     }
 
     /**
@@ -777,7 +1137,7 @@ public class RestorableSQLiteDatabase {
      * @param helper the instance of the SQLiteOpenHelper to open a database using {@link android.database.sqlite.SQLiteOpenHelper#getWritableDatabase() getWritableDatabase} method.
      */
     public <T extends SQLiteOpenHelper> void reopen(T helper) {
-        mSQLiteDatabase = helper.getWritableDatabase();
+        reopen(helper.getWritableDatabase());
     }
 
     /**
@@ -785,7 +1145,8 @@ public class RestorableSQLiteDatabase {
      * @param mSqLiteDatabase the instance of the SQLiteDatabase to be wrapped.
      */
     public void reopen(SQLiteDatabase mSqLiteDatabase) {
-        this.mSQLiteDatabase = mSqLiteDatabase;
+        mDatabase.reopened();
+        mBackend.reopen(mSqLiteDatabase);
     }
 
 }